@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.benchmarks;
+
+import java.io.IOException;
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so every stage reports its allocation rate in bytes per
+ * operation (gc.alloc.rate.norm) next to its time per operation, and with the
+ * {@link ThreadProfiler}, which reports the peak number of platform threads (threads.peak).
+ *
+ * Accepts the same arguments as the JMH command line, for example a regular expression selecting
+ * the benchmarks to run. Passing -prof replaces both profilers with the given ones.
+ */
+public final class BenchmarkRunner {
+
+  private BenchmarkRunner() {
+  }
+
+  public static void main(String[] args)
+      throws CommandLineOptionException, IOException, RunnerException {
+    CommandLineOptions commandLine = new CommandLineOptions(args);
+
+    // Listing and help, or profilers chosen on the command line, are left to JMH
+    if (commandLine.shouldHelp() || commandLine.shouldList()
+        || commandLine.shouldListProfilers() || !commandLine.getProfilers().isEmpty()) {
+      Main.main(args);
+      return;
+    }
+
+    new Runner(new OptionsBuilder()
+        .parent(commandLine)
+        .addProfiler(GCProfiler.class)
+        .addProfiler(ThreadProfiler.class)
+        .build()).run();
+  }
+}
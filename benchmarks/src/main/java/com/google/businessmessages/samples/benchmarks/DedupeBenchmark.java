@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.benchmarks;
+
+import com.google.businessmessages.samples.dedupe.ClaimStatus;
+import com.google.businessmessages.samples.dedupe.ClaimStore;
+import com.google.businessmessages.samples.dedupe.Deduplicator;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the local tier of the Deduplicator, with a claim store that answers without a network
+ * call so only the cache is timed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DedupeBenchmark {
+
+  private static final String REDELIVERED_REQUEST_ID = "9d7b0f3e-6d1a-4e0c-a2c4-1b9f0a7e4c21";
+
+  private Deduplicator deduplicator;
+  private long sequence;
+
+  @Setup
+  public void setUp() {
+    deduplicator = new Deduplicator(new ClaimStore() {
+      @Override
+      public boolean claim(String requestId) {
+        return true;
+      }
+
+      @Override
+      public ClaimStatus claimInFlight(String requestId, int leaseSeconds) {
+        return ClaimStatus.CLAIMED;
+      }
+
+      @Override
+      public void complete(String requestId) {
+      }
+
+      @Override
+      public void release(String requestId) {
+      }
+    }, 10000, 600, 60);
+
+    deduplicator.isDuplicate(REDELIVERED_REQUEST_ID);
+  }
+
+  /**
+   * A redelivered event, answered by the local tier without a memcache call.
+   */
+  @Benchmark
+  public boolean redelivery() {
+    return deduplicator.isDuplicate(REDELIVERED_REQUEST_ID);
+  }
+
+  /**
+   * A new event, which misses locally and is remembered. Includes building its requestId.
+   */
+  @Benchmark
+  public boolean newRequest() {
+    return deduplicator.isDuplicate(Long.toHexString(sequence++));
+  }
+}
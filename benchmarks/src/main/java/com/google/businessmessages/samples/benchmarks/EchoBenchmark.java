@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.benchmarks;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesMessage;
+import com.google.businessmessages.samples.outbound.IdGenerator;
+import com.google.businessmessages.samples.templates.ReplyTemplates;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures creating the echo reply, the one reply whose content differs for every message.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EchoBenchmark {
+
+  private static final String REQUEST_ID = "9d7b0f3e-6d1a-4e0c-a2c4-1b9f0a7e4c21";
+
+  @Param({"SHORT", "LONG"})
+  public String length;
+
+  private final JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
+
+  private String text;
+
+  @Setup
+  public void setUp() {
+    text = length.equals("LONG") ? Payload.longText() : "Hello there";
+  }
+
+  /**
+   * Building the echo message with a random messageId.
+   */
+  @Benchmark
+  public BusinessMessagesMessage build() {
+    return newEcho();
+  }
+
+  /**
+   * Building and serializing the echo message to the request body.
+   */
+  @Benchmark
+  public byte[] buildAndSerialize() throws IOException {
+    return jsonFactory.toByteArray(newEcho());
+  }
+
+  /**
+   * Building and pretty-printing the echo message, as it is logged before it is sent.
+   */
+  @Benchmark
+  public String buildAndLog() throws IOException {
+    return newEcho().toPrettyString();
+  }
+
+  private BusinessMessagesMessage newEcho() {
+    return new BusinessMessagesMessage()
+        .setMessageId(IdGenerator.derive(REQUEST_ID, "message", 0))
+        .setText(text)
+        .setRepresentative(ReplyTemplates.newRepresentative());
+  }
+}
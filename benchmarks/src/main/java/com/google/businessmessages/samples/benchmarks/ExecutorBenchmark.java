@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.benchmarks;
+
+import com.google.businessmessages.samples.async.RejectionPolicy;
+import com.google.businessmessages.samples.async.WorkQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures handling a burst of replies that each block for the latency of a Business Messages API
+ * call, on the default pool of platform workers, on a platform pool sized for the whole burst, and
+ * on a virtual thread per reply.
+ *
+ * The default pool is expected to take about replies / workers times the latency, and the others
+ * about the latency, so the time mostly confirms the setup. What tells the sized pool and virtual
+ * threads apart is their cost: the {@link ThreadProfiler} reports the platform threads alive at the
+ * peak, each of which reserves a native stack, and the GC profiler reports the heap allocated per
+ * burst, where the stacks of virtual threads live.
+ *
+ * The VIRTUAL pool needs a Java 21 runtime and a full_sample installed from a JDK 21 build, which
+ * compiles the virtual-thread executor.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExecutorBenchmark {
+
+  // The default of bm.async.workers
+  private static final int WORKERS = 8;
+
+  /**
+   * The executors compared.
+   */
+  public enum Pool {
+    /** The default pool of bm.async.workers platform threads. */
+    PLATFORM,
+    /** A platform thread for every reply of the burst, as sized for the worst-case latency. */
+    PLATFORM_SIZED,
+    /** A virtual thread for every reply. */
+    VIRTUAL
+  }
+
+  @Param({"PLATFORM", "PLATFORM_SIZED", "VIRTUAL"})
+  public Pool pool;
+
+  @Param({"100", "1000"})
+  public int replies;
+
+  @Param({"20"})
+  public int latencyMillis;
+
+  private WorkQueue workQueue;
+
+  @Setup
+  public void setUp() {
+    switch (pool) {
+      case VIRTUAL:
+        workQueue = WorkQueue.withVirtualThreads(replies, RejectionPolicy.ABORT);
+        break;
+      case PLATFORM_SIZED:
+        workQueue = new WorkQueue(replies, replies, RejectionPolicy.ABORT);
+        break;
+      default:
+        workQueue = new WorkQueue(WORKERS, replies, RejectionPolicy.ABORT);
+    }
+
+    if (workQueue == null) {
+      throw new IllegalStateException("Virtual threads need Java 21 and the java21 build profile");
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    workQueue.shutdown(1, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Queues the replies at once and waits until all of them were sent.
+   */
+  @Benchmark
+  public void burst() throws InterruptedException {
+    CountDownLatch sent = new CountDownLatch(replies);
+
+    for (int i = 0; i < replies; i++) {
+      workQueue.execute(() -> {
+        try {
+          // Stands in for a blocking API call
+          Thread.sleep(latencyMillis);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+
+        sent.countDown();
+      });
+    }
+
+    sent.await();
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.benchmarks;
+
+import com.google.businessmessages.samples.outbound.IdGenerator;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures creating message IDs from several threads at once, with the original
+ * {@link UUID#randomUUID()} compared to the IDs derived from the requestId by the IdGenerator and
+ * its random fallback.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Thread)
+public class IdBenchmark {
+
+  private static final String REQUEST_ID = "9d7b0f3e-6d1a-4e0c-a2c4-1b9f0a7e4c21";
+
+  private int sequence;
+
+  /**
+   * The original random message ID.
+   */
+  @Benchmark
+  public String randomUuid() {
+    return UUID.randomUUID().toString();
+  }
+
+  /**
+   * A message ID derived from the requestId of the inbound event.
+   */
+  @Benchmark
+  public String derived() {
+    return IdGenerator.derive(REQUEST_ID, "message", sequence++);
+  }
+
+  /**
+   * A random message ID for an event without a requestId.
+   */
+  @Benchmark
+  public String fallback() {
+    return IdGenerator.random();
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.benchmarks;
+
+import com.google.businessmessages.samples.metrics.Counter;
+import com.google.businessmessages.samples.metrics.LatencyHistogram;
+import com.google.businessmessages.samples.metrics.MetricsRegistry;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of recording metrics on the webhook path, from several threads at once, and of
+ * writing them for a scrape.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+
+  private final MetricsRegistry registry = MetricsRegistry.getDefault();
+  private final LatencyHistogram histogram =
+      registry.histogram("benchmark_seconds", "Benchmark latency.", "stage", "benchmark");
+  private final Counter counter = registry.counter("benchmark_total", "Benchmark count.");
+
+  /**
+   * Recording a latency between 1 microsecond and 1 second.
+   */
+  @Benchmark
+  @Threads(4)
+  public void recordLatency() {
+    histogram.recordNanos(ThreadLocalRandom.current().nextLong(1000, 1000000000));
+  }
+
+  /**
+   * Incrementing a counter.
+   */
+  @Benchmark
+  @Threads(4)
+  public void incrementCounter() {
+    counter.increment();
+  }
+
+  /**
+   * Writing every registered metric in the Prometheus text format.
+   */
+  @Benchmark
+  public String scrape() throws IOException {
+    StringWriter writer = new StringWriter();
+    registry.writeTo(writer);
+    return writer.toString();
+  }
+}
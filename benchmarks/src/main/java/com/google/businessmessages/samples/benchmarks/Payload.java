@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Realistic webhook payloads, shaped like the ones Business Messages delivers.
+ */
+public enum Payload {
+  /** A short message typed by the user. */
+  TEXT(message("Hello there")),
+  /** A tapped suggested reply. */
+  SUGGESTION_RESPONSE("{"
+      + "\"agent\":\"brands/1234/agents/5678\","
+      + "\"conversationId\":\"e4fb7c2d-2f56-4b2d-8b11-0c0a2a1f5d3e\","
+      + "\"customAgentId\":\"echo-bot\","
+      + "\"requestId\":\"9d7b0f3e-6d1a-4e0c-a2c4-1b9f0a7e4c21\","
+      + "\"suggestionResponse\":{"
+      + "\"message\":\"conversations/e4fb7c2d/messages/7f3a\","
+      + "\"postbackData\":\"sample_chip\","
+      + "\"createTime\":\"2020-09-14T17:12:33.412Z\","
+      + "\"text\":\"Sample Chip\","
+      + "\"suggestionType\":\"REPLY\"},"
+      + context() + ","
+      + "\"sendTime\":\"2020-09-14T17:12:33.520Z\"}"),
+  /** A long message of several paragraphs. */
+  LONG_TEXT(message(longText()));
+
+  private final String json;
+  private final byte[] bytes;
+
+  Payload(String json) {
+    this.json = json;
+    this.bytes = json.getBytes(StandardCharsets.UTF_8);
+  }
+
+  public String json() {
+    return json;
+  }
+
+  public byte[] bytes() {
+    return bytes;
+  }
+
+  private static String message(String text) {
+    return "{"
+        + "\"agent\":\"brands/1234/agents/5678\","
+        + "\"conversationId\":\"e4fb7c2d-2f56-4b2d-8b11-0c0a2a1f5d3e\","
+        + "\"customAgentId\":\"echo-bot\","
+        + "\"requestId\":\"9d7b0f3e-6d1a-4e0c-a2c4-1b9f0a7e4c21\","
+        + "\"message\":{"
+        + "\"messageId\":\"4c1d8a2b-7e5f-4a3c-9b0d-2e6f1a8c3b7d\","
+        + "\"name\":\"conversations/e4fb7c2d/messages/4c1d8a2b\","
+        + "\"text\":\"" + text + "\","
+        + "\"createTime\":\"2020-09-14T17:12:33.412Z\"},"
+        + context() + ","
+        + "\"sendTime\":\"2020-09-14T17:12:33.520Z\"}";
+  }
+
+  private static String context() {
+    return "\"context\":{"
+        + "\"entryPoint\":\"PLACESHEET\","
+        + "\"placeId\":\"ChIJN1t_tDeuEmsRUsoyG83frY4\","
+        + "\"userInfo\":{\"displayName\":\"Jane Doe\",\"userDeviceLocale\":\"en-US\"},"
+        + "\"resolvedLocale\":\"en\"}";
+  }
+
+  static String longText() {
+    StringBuilder text = new StringBuilder();
+
+    for (int i = 0; i < 40; i++) {
+      text.append("I would like to know more about your opening hours and delivery options. ");
+    }
+
+    return text.toString().trim();
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.benchmarks;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesCardContent;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesMessage;
+import com.google.businessmessages.samples.templates.ReplyTemplate;
+import com.google.businessmessages.samples.templates.ReplyTemplates;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures each stage of creating a static reply: building the message, building its fallback
+ * text, and serializing it, compared with rendering its pre-serialized template.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReplyBenchmark {
+
+  private static final String MESSAGE_ID = "4c1d8a2b-7e5f-4a3c-9b0d-2e6f1a8c3b7d";
+
+  /**
+   * The static replies of the bot.
+   */
+  public enum Reply {
+    RICH_CARD {
+      @Override
+      BusinessMessagesMessage build() {
+        return ReplyTemplates.buildRichCard();
+      }
+
+      @Override
+      ReplyTemplate template(ReplyTemplates templates) {
+        return templates.getRichCard();
+      }
+
+      @Override
+      String fallback(BusinessMessagesMessage message) {
+        BusinessMessagesCardContent cardContent =
+            message.getRichCard().getStandaloneCard().getCardContent();
+
+        return new StringBuilder()
+            .append(cardContent.getTitle()).append("\n\n")
+            .append(cardContent.getDescription()).append("\n\n")
+            .append(cardContent.getMedia().getContentInfo().getFileUrl())
+            .toString();
+      }
+    },
+    CAROUSEL {
+      @Override
+      BusinessMessagesMessage build() {
+        return ReplyTemplates.buildCarousel();
+      }
+
+      @Override
+      ReplyTemplate template(ReplyTemplates templates) {
+        return templates.getCarousel();
+      }
+
+      @Override
+      String fallback(BusinessMessagesMessage message) {
+        StringBuilder fallbackText = new StringBuilder();
+
+        for (BusinessMessagesCardContent cardContent
+            : message.getRichCard().getCarouselCard().getCardContents()) {
+          fallbackText.append(cardContent.getTitle()).append("\n\n");
+          fallbackText.append(cardContent.getDescription()).append("\n\n");
+          fallbackText.append(cardContent.getMedia().getContentInfo().getFileUrl()).append("\n");
+          fallbackText.append("---------------------------------------------\n\n");
+        }
+
+        return fallbackText.toString();
+      }
+    },
+    SUGGESTIONS {
+      @Override
+      BusinessMessagesMessage build() {
+        return ReplyTemplates.buildSuggestions();
+      }
+
+      @Override
+      ReplyTemplate template(ReplyTemplates templates) {
+        return templates.getSuggestions();
+      }
+
+      @Override
+      String fallback(BusinessMessagesMessage message) {
+        return message.getFallback();
+      }
+    };
+
+    abstract BusinessMessagesMessage build();
+
+    abstract ReplyTemplate template(ReplyTemplates templates);
+
+    abstract String fallback(BusinessMessagesMessage message);
+  }
+
+  @Param
+  public Reply reply;
+
+  private final JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
+
+  private BusinessMessagesMessage message;
+  private ReplyTemplate template;
+
+  @Setup
+  public void setUp() throws IOException {
+    message = reply.build().setMessageId(MESSAGE_ID);
+    template = reply.template(ReplyTemplates.create(jsonFactory));
+  }
+
+  /**
+   * Building the message model, including its fallback text, as the original bot did per reply.
+   */
+  @Benchmark
+  public BusinessMessagesMessage build() {
+    return reply.build();
+  }
+
+  /**
+   * Building the fallback text alone from a built message.
+   */
+  @Benchmark
+  public String fallback() {
+    return reply.fallback(message);
+  }
+
+  /**
+   * Serializing a built message to the request body, as JsonHttpContent does.
+   */
+  @Benchmark
+  public byte[] serialize() throws IOException {
+    return jsonFactory.toByteArray(message);
+  }
+
+  /**
+   * Building and serializing the message, the full per-reply cost of the original bot.
+   */
+  @Benchmark
+  public byte[] buildAndSerialize() throws IOException {
+    return jsonFactory.toByteArray(reply.build().setMessageId(MESSAGE_ID));
+  }
+
+  /**
+   * The current path: render the pre-serialized template with a messageId.
+   */
+  @Benchmark
+  public byte[] render() {
+    return template.render(MESSAGE_ID);
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.benchmarks;
+
+import com.google.businessmessages.samples.routing.CommandHandler;
+import com.google.businessmessages.samples.routing.CommandRegistry;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the original equals chain of routeMessage against the CommandRegistry.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RoutingBenchmark {
+
+  private static final CommandHandler RICH_CARD = (message, context) -> { };
+  private static final CommandHandler CAROUSEL = (message, context) -> { };
+  private static final CommandHandler SUGGESTIONS = (message, context) -> { };
+  private static final CommandHandler ECHO = (message, context) -> { };
+
+  @Param({"card", " Chips ", "Hello there"})
+  public String message;
+
+  private CommandRegistry registry;
+
+  @Setup
+  public void setUp() {
+    registry = new CommandRegistry(ECHO)
+        .registerKeyword("card", RICH_CARD)
+        .registerKeyword("carousel", CAROUSEL)
+        .registerKeyword("chips", SUGGESTIONS)
+        .registerPostback("sample_chip", ECHO);
+  }
+
+  /**
+   * The original path: normalize a copy of the message and compare it with each command.
+   */
+  @Benchmark
+  public CommandHandler equalsChain() {
+    String normalizedMessage = message.trim().toLowerCase();
+
+    if (normalizedMessage.equals("card")) {
+      return RICH_CARD;
+    } else if (normalizedMessage.equals("carousel")) {
+      return CAROUSEL;
+    } else if (normalizedMessage.equals("chips")) {
+      return SUGGESTIONS;
+    }
+
+    return ECHO;
+  }
+
+  /**
+   * The current path: a case-insensitive table lookup without a normalized copy.
+   */
+  @Benchmark
+  public CommandHandler registry() {
+    return registry.resolve(message, null);
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.benchmarks;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the ways the message_validation_sample has checked the X-Goog-Signature header.
+ *
+ * Both paths are reproduced here, since the sample is packaged separately from the full_sample.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SignatureBenchmark {
+
+  private static final String PARTNER_KEY = "benchmark-partner-key";
+
+  @Param
+  public Payload payload;
+
+  private String signature;
+  private Mac mac;
+
+  @Setup
+  public void setUp() throws GeneralSecurityException {
+    byte[] key = PARTNER_KEY.getBytes(StandardCharsets.UTF_8);
+
+    mac = Mac.getInstance("HmacSHA512");
+    mac.init(new SecretKeySpec(key, "HmacSHA512"));
+    signature = BaseEncoding.base64().encode(mac.doFinal(payload.bytes()));
+  }
+
+  /**
+   * The original generateHash: a new keyed hash per request, compared as base64 text.
+   */
+  @Benchmark
+  public boolean generateHash() {
+    String generated = BaseEncoding.base64().encode(Hashing
+        .hmacSha512(PARTNER_KEY.getBytes(StandardCharsets.UTF_8))
+        .hashBytes(payload.bytes())
+        .asBytes());
+
+    return generated.equals(signature);
+  }
+
+  /**
+   * The SignatureVerificationFilter: a per-thread keyed Mac, compared in constant time.
+   */
+  @Benchmark
+  public boolean reusedMac() {
+    byte[] expected = BaseEncoding.base64().decode(signature);
+
+    mac.update(payload.bytes(), 0, payload.bytes().length);
+    return MessageDigest.isEqual(expected, mac.doFinal());
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.benchmarks;
+
+import com.google.businessmessages.samples.webhook.WebhookEvent;
+import com.google.businessmessages.samples.webhook.WebhookEventDecoder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares decoding a webhook payload with a full Gson tree against the streaming decoder.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WebhookParseBenchmark {
+
+  @Param
+  public Payload payload;
+
+  private final WebhookEvent event = new WebhookEvent();
+
+  /**
+   * The original path: build a JsonObject tree and walk the fields the bot needs.
+   */
+  @Benchmark
+  public String treeParse() {
+    JsonParser parser = new JsonParser();
+    JsonObject obj = parser.parse(new String(payload.bytes(), StandardCharsets.UTF_8))
+        .getAsJsonObject();
+
+    String conversationId = obj.get("conversationId").getAsString();
+    String requestId = obj.get("requestId").getAsString();
+    String text = null;
+
+    if (obj.has("message")) {
+      obj = obj.get("message").getAsJsonObject();
+      if (obj.has("text")) {
+        text = obj.get("text").getAsString();
+      }
+    } else if (obj.has("suggestionResponse")) {
+      obj = obj.get("suggestionResponse").getAsJsonObject();
+      if (obj.has("text")) {
+        text = obj.get("text").getAsString();
+      }
+    }
+
+    return conversationId + requestId + text;
+  }
+
+  /**
+   * The streaming path: extract only the routed fields into a reused event.
+   */
+  @Benchmark
+  public String streamingDecode() throws IOException {
+    WebhookEventDecoder.decode(payload.bytes(), 0, payload.bytes().length, event);
+
+    return event.getConversationId() + event.getRequestId() + event.getText();
+  }
+}
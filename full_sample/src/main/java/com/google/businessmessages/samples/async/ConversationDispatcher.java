@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.async;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Runs tasks in submission order for each conversation while different conversations run in
+ * parallel.
+ *
+ * Each active conversation has a lane holding its pending tasks. A lane is drained by at most one
+ * thread of the underlying executor at a time and is discarded once it is empty, so idle
+ * conversations cost nothing. Lanes are created and retired with per-key atomic map updates
+ * rather than a shared lock.
+ *
+ * Asynchronous tasks hold their lane until the future they return completes, without holding a
+ * thread. The lane is parked and drained again from the executor once the future is done.
+ */
+public final class ConversationDispatcher {
+
+  private static final Logger logger = Logger.getLogger(ConversationDispatcher.class.getName());
+
+  private final Executor executor;
+  private final int maxPending;
+  private final ConcurrentHashMap<String, Lane> lanes = new ConcurrentHashMap<>();
+  private final AtomicInteger pendingCount = new AtomicInteger();
+
+  // The lane being drained by the current thread
+  private final ThreadLocal<Lane> currentLane = new ThreadLocal<>();
+
+  /**
+   * Creates a dispatcher.
+   *
+   * @param executor The executor that drains the lanes.
+   * @param maxPending The maximum number of tasks queued across all conversations.
+   */
+  public ConversationDispatcher(Executor executor, int maxPending) {
+    this.executor = executor;
+    this.maxPending = maxPending;
+  }
+
+  /**
+   * Queues a task behind all tasks previously submitted for the same conversation.
+   *
+   * A task submitted from a task of the same conversation runs immediately, since everything
+   * submitted earlier for that conversation has already run.
+   *
+   * @param conversationId The conversation the task belongs to.
+   * @param task The work to run.
+   * @throws RejectedExecutionException If too many tasks are pending or the executor is full.
+   */
+  public void submit(String conversationId, Runnable task) {
+    submitAsync(conversationId, () -> {
+      task.run();
+      return null;
+    });
+  }
+
+  /**
+   * Queues an asynchronous task behind all tasks previously submitted for the same conversation.
+   * Later tasks of the conversation only start once the returned future has completed.
+   *
+   * A task submitted from a task of the same conversation runs immediately, and the running task
+   * only releases the lane once both have completed.
+   *
+   * @param conversationId The conversation the task belongs to.
+   * @param task Starts the work, returning a future that completes when it is done, or null if
+   *     the work is already done.
+   * @throws RejectedExecutionException If too many tasks are pending or the executor is full.
+   */
+  public void submitAsync(String conversationId, Supplier<? extends CompletionStage<?>> task) {
+    Lane current = currentLane.get();
+
+    if (current != null && conversationId.equals(current.conversationId)) {
+      current.await(task.get());
+      return;
+    }
+
+    if (pendingCount.incrementAndGet() > maxPending) {
+      pendingCount.decrementAndGet();
+
+      throw new RejectedExecutionException("Too many pending tasks");
+    }
+
+    Lane lane = enqueue(conversationId, task);
+
+    // Only the task that made the lane non-empty starts draining it
+    if (lane != null) {
+      try {
+        executor.execute(lane);
+      } catch (RejectedExecutionException e) {
+        lane.tasks.remove(task);
+        pendingCount.decrementAndGet();
+
+        // Tasks queued behind this one in the meantime still need a thread to drain them
+        Lane remaining = lanes.compute(conversationId, (key, l) -> --l.depth == 0 ? null : l);
+        if (remaining != null) {
+          remaining.run();
+        }
+
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Queues a task behind all tasks previously submitted for the same conversation, regardless of
+   * the number of pending tasks, and drains the lane on the calling thread if no other thread is
+   * draining it. Used when the executor is full and the caller runs the work itself.
+   *
+   * Tasks queued by the task, such as its responses, join the lane and run on the calling thread
+   * too. If the lane parks on an incomplete future, it is resumed from the executor or from the
+   * thread that completes the future.
+   *
+   * @param conversationId The conversation the task belongs to.
+   * @param task The work to run.
+   */
+  public void runInLane(String conversationId, Runnable task) {
+    Lane current = currentLane.get();
+
+    if (current != null && conversationId.equals(current.conversationId)) {
+      task.run();
+      return;
+    }
+
+    pendingCount.incrementAndGet();
+
+    Lane lane = enqueue(conversationId, () -> {
+      task.run();
+      return null;
+    });
+
+    if (lane != null) {
+      lane.run();
+    }
+  }
+
+  /**
+   * Adds a task to the lane of its conversation, creating the lane if needed.
+   *
+   * @return The lane if the task made it non-empty and it has to be drained, null otherwise.
+   */
+  private Lane enqueue(String conversationId, Supplier<? extends CompletionStage<?>> task) {
+    boolean[] started = new boolean[1];
+    Lane lane = lanes.compute(conversationId, (key, existing) -> {
+      Lane result = existing == null ? new Lane(key) : existing;
+      result.tasks.add(task);
+      started[0] = ++result.depth == 1;
+      return result;
+    });
+
+    return started[0] ? lane : null;
+  }
+
+  /**
+   * @param conversationId The conversation to inspect.
+   * @return The number of queued or running tasks for the conversation.
+   */
+  public int getQueueDepth(String conversationId) {
+    Lane lane = lanes.get(conversationId);
+
+    return lane == null ? 0 : lane.depth;
+  }
+
+  /**
+   * @return A snapshot of the queue depth of every conversation with pending work.
+   */
+  public Map<String, Integer> getQueueDepths() {
+    Map<String, Integer> depths = new HashMap<>();
+
+    for (Map.Entry<String, Lane> entry : lanes.entrySet()) {
+      depths.put(entry.getKey(), entry.getValue().depth);
+    }
+
+    return depths;
+  }
+
+  /**
+   * @return The number of queued or running tasks across all conversations.
+   */
+  public int getPendingCount() {
+    return pendingCount.get();
+  }
+
+  /**
+   * The pending tasks of a single conversation.
+   */
+  private final class Lane implements Runnable {
+
+    private final String conversationId;
+    private final Queue<Supplier<? extends CompletionStage<?>>> tasks =
+        new ConcurrentLinkedQueue<>();
+
+    // Queued and running tasks, only modified while the lane's map entry is locked
+    private volatile int depth;
+
+    // Completes when the running task is done, only used by the thread draining the lane
+    private CompletableFuture<?> running;
+
+    private Lane(String conversationId) {
+      this.conversationId = conversationId;
+    }
+
+    @Override
+    public void run() {
+      Lane previous = currentLane.get();
+      currentLane.set(this);
+
+      try {
+        boolean more = true;
+
+        while (more) {
+          try {
+            await(tasks.peek().get());
+          } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "Task failed for conversation " + conversationId, e);
+          }
+
+          CompletableFuture<?> pending = running;
+          running = null;
+
+          // Park the lane until the task is done, then drain it from the executor
+          if (pending != null && !pending.isDone()) {
+            pending.whenComplete((result, error) -> resume());
+            return;
+          }
+
+          more = finishTask();
+        }
+      } finally {
+        if (previous == null) {
+          currentLane.remove();
+        } else {
+          currentLane.set(previous);
+        }
+      }
+    }
+
+    /**
+     * Makes the running task wait for a future before the lane moves on.
+     */
+    private void await(CompletionStage<?> stage) {
+      if (stage == null) {
+        return;
+      }
+
+      CompletableFuture<?> future = stage.toCompletableFuture();
+      running = running == null ? future : CompletableFuture.allOf(
+          running.handle((result, error) -> null), future.handle((result, error) -> null));
+    }
+
+    private void resume() {
+      if (!finishTask()) {
+        return;
+      }
+
+      try {
+        executor.execute(this);
+      } catch (RejectedExecutionException e) {
+        // The executor is full, drain on the thread that completed the task instead
+        run();
+      }
+    }
+
+    /**
+     * Removes the finished task.
+     *
+     * @return Whether more tasks are queued.
+     */
+    private boolean finishTask() {
+      tasks.poll();
+      pendingCount.decrementAndGet();
+
+      // Retire the lane once it is empty so the next task starts a new one
+      return lanes.compute(conversationId, (key, lane) -> --lane.depth == 0 ? null : lane)
+          != null;
+    }
+  }
+}
@@ -0,0 +1,24 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.async;
+
+/**
+ * The threads that handle inbound events in async mode.
+ */
+public enum ExecutorMode {
+  /** A fixed pool of platform threads, with a bounded queue in front of it. */
+  PLATFORM,
+  /** A new virtual thread for each event, which needs a Java 21 runtime. */
+  VIRTUAL
+}
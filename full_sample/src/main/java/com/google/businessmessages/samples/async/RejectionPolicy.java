@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.async;
+
+/**
+ * What to do with an inbound event when the work queue is full.
+ */
+public enum RejectionPolicy {
+  /** Fail the webhook with a 503 so Business Messages redelivers the event later. */
+  ABORT,
+  /**
+   * Process the event on the request thread, behind the earlier events of its conversation, as in
+   * synchronous mode.
+   */
+  CALLER_RUNS,
+  /** Acknowledge the webhook and drop the event. */
+  DISCARD
+}
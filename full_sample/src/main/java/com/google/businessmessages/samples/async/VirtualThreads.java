@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.async;
+
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates executors that run each task on its own virtual thread.
+ *
+ * A blocked virtual thread only holds a small stack on the heap rather than a platform thread, so
+ * work that waits on blocking calls needs no pool sized for the worst-case latency of those calls.
+ * Virtual threads need Java 21. Their executor is compiled separately by the java21 build profile
+ * and loaded by name, so the rest of the sample still runs on Java 8.
+ */
+public final class VirtualThreads {
+
+  private static final Logger logger = Logger.getLogger(VirtualThreads.class.getName());
+
+  // Only present when the java21 build profile is active
+  private static final String EXECUTOR_FACTORY_CLASS =
+      "com.google.businessmessages.samples.async.VirtualThreadExecutors";
+
+  private VirtualThreads() {
+  }
+
+  /**
+   * Creates an executor that starts a new virtual thread for every task.
+   *
+   * @param namePrefix The name of the threads, followed by a sequence number.
+   * @return A new executor, or null if virtual threads are not available.
+   */
+  public static ExecutorService newPerTaskExecutor(String namePrefix) {
+    try {
+      return (ExecutorService) Class.forName(EXECUTOR_FACTORY_CLASS)
+          .getMethod("newPerTaskExecutor", String.class)
+          .invoke(null, namePrefix);
+    } catch (ReflectiveOperationException | LinkageError e) {
+      logger.log(Level.WARNING, "Virtual threads are not available, using platform threads", e);
+      return null;
+    }
+  }
+}
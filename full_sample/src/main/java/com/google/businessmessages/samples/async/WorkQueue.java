@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.async;
+
+import com.google.businessmessages.samples.config.BotConfig;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Bounded pool of worker threads that processes inbound events after the webhook has been
+ * acknowledged.
+ *
+ * The queue never grows past its capacity. Once it is full, new work is handled according to the
+ * configured {@link RejectionPolicy}.
+ *
+ * With {@link ExecutorMode#VIRTUAL} every event runs on its own virtual thread instead, and the
+ * capacity bounds the events in flight rather than those waiting, since none wait for a worker.
+ */
+public final class WorkQueue implements Executor {
+
+  private static final Logger logger = Logger.getLogger(WorkQueue.class.getName());
+
+  // System properties used to configure the queue
+  public static final String PROP_WORKERS = "bm.async.workers";
+  public static final String PROP_QUEUE_CAPACITY = "bm.async.queueCapacity";
+  public static final String PROP_REJECTION_POLICY = "bm.async.rejectionPolicy";
+  public static final String PROP_EXECUTOR = "bm.async.executor";
+
+  private static final int DEFAULT_WORKERS = 8;
+  private static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+  private final ExecutorService executor;
+
+  // The platform thread pool, null in virtual mode
+  private final ThreadPoolExecutor pool;
+
+  // Events in flight in virtual mode, null when the pool queue bounds them
+  private final Semaphore permits;
+
+  private final int capacity;
+  private final RejectionPolicy rejectionPolicy;
+  private final AtomicLong rejectedCount = new AtomicLong();
+
+  /**
+   * Creates a work queue.
+   *
+   * @param workers The number of worker threads.
+   * @param capacity The maximum number of events waiting for a worker.
+   * @param rejectionPolicy What to do with events that arrive while the queue is full.
+   */
+  public WorkQueue(int workers, int capacity, RejectionPolicy rejectionPolicy) {
+    this.pool = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(capacity),
+        new ThreadFactoryBuilder().setNameFormat("bm-worker-%d").setDaemon(true).build(),
+        new ThreadPoolExecutor.AbortPolicy());
+    this.executor = pool;
+    this.permits = null;
+    this.capacity = capacity;
+    this.rejectionPolicy = rejectionPolicy;
+  }
+
+  private WorkQueue(ExecutorService virtualThreads, int capacity,
+      RejectionPolicy rejectionPolicy) {
+    this.pool = null;
+    this.executor = virtualThreads;
+    this.permits = new Semaphore(capacity);
+    this.capacity = capacity;
+    this.rejectionPolicy = rejectionPolicy;
+  }
+
+  /**
+   * Creates a work queue that runs every event on its own virtual thread.
+   *
+   * @param capacity The maximum number of events in flight.
+   * @param rejectionPolicy What to do with events that arrive while the queue is full.
+   * @return A new work queue, or null if virtual threads are not available.
+   */
+  public static WorkQueue withVirtualThreads(int capacity, RejectionPolicy rejectionPolicy) {
+    ExecutorService virtualThreads = VirtualThreads.newPerTaskExecutor("bm-worker-");
+
+    return virtualThreads == null ? null : new WorkQueue(virtualThreads, capacity, rejectionPolicy);
+  }
+
+  /**
+   * Creates a work queue from the {@code bm.async.*} system properties.
+   *
+   * @return A new work queue.
+   */
+  public static WorkQueue fromConfig() {
+    int capacity = Math.max(1, BotConfig.getInt(PROP_QUEUE_CAPACITY, DEFAULT_QUEUE_CAPACITY));
+    RejectionPolicy rejectionPolicy =
+        BotConfig.getEnum(PROP_REJECTION_POLICY, RejectionPolicy.class, RejectionPolicy.ABORT);
+
+    if (getConfiguredMode() == ExecutorMode.VIRTUAL) {
+      WorkQueue workQueue = withVirtualThreads(capacity, rejectionPolicy);
+
+      if (workQueue != null) {
+        return workQueue;
+      }
+    }
+
+    return new WorkQueue(Math.max(1, BotConfig.getInt(PROP_WORKERS, DEFAULT_WORKERS)), capacity,
+        rejectionPolicy);
+  }
+
+  /**
+   * @return The executor mode selected by the {@code bm.async.executor} system property.
+   */
+  public static ExecutorMode getConfiguredMode() {
+    return BotConfig.getEnum(PROP_EXECUTOR, ExecutorMode.class, ExecutorMode.PLATFORM);
+  }
+
+  /**
+   * Queues a task for a worker, applying the rejection policy if the queue is full.
+   *
+   * @param task The work to run.
+   * @return False if the task was rejected and the caller should ask for redelivery.
+   */
+  public boolean submit(Runnable task) {
+    try {
+      execute(task);
+
+      return true;
+    } catch (RejectedExecutionException e) {
+      return onRejected(task);
+    }
+  }
+
+  /**
+   * Queues a task for a worker.
+   *
+   * @param task The work to run.
+   * @throws RejectedExecutionException If the queue is full.
+   */
+  @Override
+  public void execute(Runnable task) {
+    if (permits == null) {
+      executor.execute(task);
+      return;
+    }
+
+    if (!permits.tryAcquire()) {
+      throw new RejectedExecutionException("Too many events in flight");
+    }
+
+    try {
+      executor.execute(() -> {
+        try {
+          task.run();
+        } finally {
+          permits.release();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Applies the rejection policy to a task that could not be queued.
+   *
+   * @param task The rejected work.
+   * @return False if the caller should ask for redelivery.
+   */
+  public boolean onRejected(Runnable task) {
+    rejectedCount.incrementAndGet();
+
+    switch (rejectionPolicy) {
+      case CALLER_RUNS:
+        task.run();
+        return true;
+      case DISCARD:
+        logger.warning("Work queue is full, dropping event");
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  public RejectionPolicy getRejectionPolicy() {
+    return rejectionPolicy;
+  }
+
+  /**
+   * @return The maximum number of events waiting for a worker, or in flight in virtual mode.
+   */
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * @return The number of events waiting for a worker.
+   */
+  public int getQueueDepth() {
+    // Virtual threads start right away, nothing waits
+    return pool == null ? 0 : pool.getQueue().size();
+  }
+
+  /**
+   * @return The number of workers currently processing an event.
+   */
+  public int getActiveCount() {
+    return pool == null ? capacity - permits.availablePermits() : pool.getActiveCount();
+  }
+
+  /**
+   * @return The number of events that arrived while the queue was full.
+   */
+  public long getRejectedCount() {
+    return rejectedCount.get();
+  }
+
+  /**
+   * Stops accepting work and waits for queued events to drain.
+   *
+   * @param timeout How long to wait for the queue to drain.
+   * @param unit The unit of the timeout.
+   */
+  public void shutdown(long timeout, TimeUnit unit) {
+    executor.shutdown();
+
+    try {
+      if (!executor.awaitTermination(timeout, unit)) {
+        logger.warning("Work queue did not drain, " + executor.shutdownNow().size()
+            + " events were dropped");
+      }
+    } catch (InterruptedException e) {
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.auth;
+
+/**
+ * An OAuth access token and when it expires.
+ */
+public final class AccessToken {
+
+  private final String value;
+  private final long expiresAtMillis;
+
+  /**
+   * Creates an access token.
+   *
+   * @param value The token sent in the Authorization header.
+   * @param expiresAtMillis When the token expires, in milliseconds since the epoch.
+   */
+  public AccessToken(String value, long expiresAtMillis) {
+    this.value = value;
+    this.expiresAtMillis = expiresAtMillis;
+  }
+
+  public String getValue() {
+    return value;
+  }
+
+  public long getExpiresAtMillis() {
+    return expiresAtMillis;
+  }
+
+  /**
+   * Checks whether the token can still be used.
+   *
+   * @param nowMillis The current time, in milliseconds since the epoch.
+   * @param marginMillis How long the token must remain valid after now.
+   * @return True if the token expires after now plus the margin.
+   */
+  public boolean isValid(long nowMillis, long marginMillis) {
+    return expiresAtMillis - marginMillis > nowMillis;
+  }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.auth;
+
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.businessmessages.samples.config.BotConfig;
+import com.google.businessmessages.samples.metrics.Counter;
+import com.google.businessmessages.samples.metrics.LatencyHistogram;
+import com.google.businessmessages.samples.metrics.MetricsRegistry;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a valid access token cached and authorizes Business Messages API requests with it.
+ *
+ * The token is refreshed on a background thread ahead of its expiry, and refreshes that are
+ * requested while one is in flight share its result. Requests read the cached token without
+ * blocking. They only wait when no valid token exists, at startup or after refreshes kept
+ * failing until the token expired.
+ */
+public final class CredentialManager implements HttpRequestInitializer, HttpExecuteInterceptor {
+
+  private static final Logger logger = Logger.getLogger(CredentialManager.class.getName());
+
+  // System properties used to configure token refresh
+  public static final String PROP_REFRESH_AHEAD_SECONDS = "bm.auth.refreshAheadSeconds";
+
+  private static final long DEFAULT_REFRESH_AHEAD_SECONDS = 300;
+
+  // Tokens this close to expiry are not sent, they could expire in flight
+  private static final long EXPIRY_MARGIN_MILLIS = TimeUnit.SECONDS.toMillis(10);
+  private static final long WAIT_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+  private static final long MIN_RETRY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(1);
+  private static final long MAX_RETRY_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+  private final TokenSource tokenSource;
+  private final long refreshAheadMillis;
+  private final ScheduledExecutorService scheduler;
+  private final AtomicReference<CompletableFuture<AccessToken>> inFlight =
+      new AtomicReference<>();
+
+  private final LatencyHistogram refreshLatency;
+  private final Counter refreshSuccesses;
+  private final Counter refreshFailures;
+  private final Counter blockedRequests;
+
+  private volatile AccessToken token;
+
+  // Guarded by this
+  private ScheduledFuture<?> nextRefresh;
+  private long retryDelayMillis = MIN_RETRY_DELAY_MILLIS;
+
+  /**
+   * Creates a credential manager and starts fetching the first token in the background.
+   *
+   * @param tokenSource Obtains new tokens.
+   * @param refreshAheadMillis How long before expiry a token is replaced.
+   */
+  public CredentialManager(TokenSource tokenSource, long refreshAheadMillis) {
+    this.tokenSource = tokenSource;
+    // Refresh before requests stop using the token
+    this.refreshAheadMillis = Math.max(2 * EXPIRY_MARGIN_MILLIS, refreshAheadMillis);
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("bm-auth-refresh").setDaemon(true).build());
+
+    MetricsRegistry metrics = MetricsRegistry.getDefault();
+    this.refreshLatency = metrics.histogram("bm_auth_refresh_seconds",
+        "Time to obtain a new access token.");
+    this.refreshSuccesses = metrics.counter("bm_auth_refreshes_total",
+        "Access token refreshes by outcome.", "outcome", "success");
+    this.refreshFailures = metrics.counter("bm_auth_refreshes_total",
+        "Access token refreshes by outcome.", "outcome", "failure");
+    this.blockedRequests = metrics.counter("bm_auth_blocked_requests_total",
+        "Requests that waited for a token because none was valid.");
+    metrics.gauge("bm_auth_token_ttl_seconds", "Remaining lifetime of the cached access token.",
+        this::getTokenTtlSeconds);
+
+    refresh();
+  }
+
+  /**
+   * Creates a credential manager from the {@code bm.auth.*} system properties.
+   *
+   * @param tokenSource Obtains new tokens.
+   * @return A new credential manager.
+   */
+  public static CredentialManager fromConfig(TokenSource tokenSource) {
+    return new CredentialManager(tokenSource, TimeUnit.SECONDS.toMillis(Math.max(0,
+        BotConfig.getLong(PROP_REFRESH_AHEAD_SECONDS, DEFAULT_REFRESH_AHEAD_SECONDS))));
+  }
+
+  @Override
+  public void initialize(HttpRequest request) {
+    request.setInterceptor(this);
+  }
+
+  /**
+   * Sets the Authorization header, on every attempt so that retries use the current token.
+   */
+  @Override
+  public void intercept(HttpRequest request) throws IOException {
+    request.getHeaders().setAuthorization("Bearer " + getAccessToken());
+  }
+
+  /**
+   * Returns a valid access token, waiting for a refresh only if the cached token has expired.
+   *
+   * @return The access token.
+   * @throws IOException If no valid token could be obtained.
+   */
+  public String getAccessToken() throws IOException {
+    AccessToken current = token;
+
+    if (current != null && current.isValid(System.currentTimeMillis(), EXPIRY_MARGIN_MILLIS)) {
+      return current.getValue();
+    }
+
+    blockedRequests.increment();
+
+    try {
+      return refresh().get(WAIT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).getValue();
+    } catch (ExecutionException e) {
+      throw new IOException("Unable to obtain an access token", e.getCause());
+    } catch (TimeoutException e) {
+      throw new IOException("Timed out waiting for an access token", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for an access token");
+    }
+  }
+
+  /**
+   * Returns a valid access token without blocking the caller, completing once a refresh finishes
+   * if the cached token has expired.
+   *
+   * @return The access token.
+   */
+  public CompletableFuture<String> getAccessTokenAsync() {
+    AccessToken current = token;
+
+    if (current != null && current.isValid(System.currentTimeMillis(), EXPIRY_MARGIN_MILLIS)) {
+      return CompletableFuture.completedFuture(current.getValue());
+    }
+
+    blockedRequests.increment();
+
+    return refresh().thenApply(AccessToken::getValue);
+  }
+
+  /**
+   * Obtains a new token in the background, or joins the refresh already in flight.
+   *
+   * @return The new token once it has been obtained.
+   */
+  public CompletableFuture<AccessToken> refresh() {
+    CompletableFuture<AccessToken> future = new CompletableFuture<>();
+
+    while (!inFlight.compareAndSet(null, future)) {
+      CompletableFuture<AccessToken> existing = inFlight.get();
+
+      if (existing != null) {
+        return existing;
+      }
+    }
+
+    try {
+      scheduler.execute(() -> fetch(future));
+    } catch (RejectedExecutionException e) {
+      inFlight.set(null);
+      future.completeExceptionally(e);
+    }
+
+    return future;
+  }
+
+  public void shutdown() {
+    scheduler.shutdownNow();
+  }
+
+  private void fetch(CompletableFuture<AccessToken> future) {
+    long start = System.nanoTime();
+    AccessToken fetched;
+
+    try {
+      fetched = tokenSource.fetch();
+    } catch (IOException | RuntimeException e) {
+      refreshLatency.recordSince(start);
+      refreshFailures.increment();
+      logger.log(Level.WARNING, "Unable to refresh the access token", e);
+
+      inFlight.set(null);
+      future.completeExceptionally(e);
+      scheduleRetry();
+      return;
+    }
+
+    refreshLatency.recordSince(start);
+    refreshSuccesses.increment();
+
+    token = fetched;
+    inFlight.set(null);
+    future.complete(fetched);
+    scheduleRefresh(fetched);
+  }
+
+  /**
+   * Schedules the next refresh ahead of the expiry of a new token.
+   */
+  private synchronized void scheduleRefresh(AccessToken fetched) {
+    long delay = fetched.getExpiresAtMillis() - refreshAheadMillis - System.currentTimeMillis();
+
+    retryDelayMillis = MIN_RETRY_DELAY_MILLIS;
+    schedule(Math.max(0, delay));
+  }
+
+  /**
+   * Schedules another attempt after a failed refresh, backing off exponentially.
+   */
+  private synchronized void scheduleRetry() {
+    schedule(retryDelayMillis);
+    retryDelayMillis = Math.min(MAX_RETRY_DELAY_MILLIS, retryDelayMillis * 2);
+  }
+
+  private void schedule(long delayMillis) {
+    if (nextRefresh != null) {
+      nextRefresh.cancel(false);
+    }
+
+    if (!scheduler.isShutdown()) {
+      nextRefresh = scheduler.schedule(this::refresh, delayMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private double getTokenTtlSeconds() {
+    AccessToken current = token;
+
+    return current == null
+        ? 0 : Math.max(0, current.getExpiresAtMillis() - System.currentTimeMillis()) / 1000.0;
+  }
+}
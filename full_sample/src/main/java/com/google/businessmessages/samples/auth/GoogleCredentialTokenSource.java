@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.auth;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Obtains access tokens by exchanging the service account credentials of a
+ * {@link GoogleCredential} at the OAuth token endpoint.
+ */
+public final class GoogleCredentialTokenSource implements TokenSource {
+
+  // Assumed lifetime of tokens returned without one
+  private static final long DEFAULT_EXPIRES_IN_SECONDS = 3600;
+
+  private final GoogleCredential credential;
+
+  /**
+   * Creates a token source.
+   *
+   * @param credential The scoped credential to refresh.
+   */
+  public GoogleCredentialTokenSource(GoogleCredential credential) {
+    this.credential = credential;
+  }
+
+  @Override
+  public AccessToken fetch() throws IOException {
+    long now = System.currentTimeMillis();
+
+    if (!credential.refreshToken()) {
+      throw new IOException("The token endpoint did not return an access token");
+    }
+
+    Long expiresAt = credential.getExpirationTimeMilliseconds();
+
+    return new AccessToken(credential.getAccessToken(), expiresAt != null
+        ? expiresAt : now + TimeUnit.SECONDS.toMillis(DEFAULT_EXPIRES_IN_SECONDS));
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.auth;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.webtoken.JsonWebSignature;
+import com.google.api.client.json.webtoken.JsonWebToken;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mints access tokens locally as JWTs signed with a service account key.
+ *
+ * Google APIs accept a JWT whose audience is the API itself in place of an OAuth access token, so
+ * no call to the token endpoint is needed, at startup or when the token is replaced.
+ */
+public final class SelfSignedJwtTokenSource implements TokenSource {
+
+  private static final long LIFETIME_SECONDS = 3600;
+
+  private final String serviceAccountId;
+  private final String privateKeyId;
+  private final PrivateKey privateKey;
+  private final String audience;
+  private final JsonFactory jsonFactory;
+
+  /**
+   * Creates a token source.
+   *
+   * @param serviceAccountId The email address of the service account.
+   * @param privateKeyId The ID of the service account key, or null.
+   * @param privateKey The service account key.
+   * @param audience The root URL of the API the tokens are for.
+   * @param jsonFactory Serializes the token.
+   */
+  public SelfSignedJwtTokenSource(String serviceAccountId, String privateKeyId,
+      PrivateKey privateKey, String audience, JsonFactory jsonFactory) {
+    this.serviceAccountId = serviceAccountId;
+    this.privateKeyId = privateKeyId;
+    this.privateKey = privateKey;
+    this.audience = audience;
+    this.jsonFactory = jsonFactory;
+  }
+
+  @Override
+  public AccessToken fetch() throws IOException {
+    long now = System.currentTimeMillis();
+    long issuedAt = TimeUnit.MILLISECONDS.toSeconds(now);
+
+    JsonWebSignature.Header header = new JsonWebSignature.Header()
+        .setAlgorithm("RS256")
+        .setType("JWT")
+        .setKeyId(privateKeyId);
+
+    JsonWebToken.Payload payload = new JsonWebToken.Payload()
+        .setIssuer(serviceAccountId)
+        .setSubject(serviceAccountId)
+        .setAudience(audience)
+        .setIssuedAtTimeSeconds(issuedAt)
+        .setExpirationTimeSeconds(issuedAt + LIFETIME_SECONDS);
+
+    try {
+      return new AccessToken(
+          JsonWebSignature.signUsingRsaSha256(privateKey, jsonFactory, header, payload),
+          now + TimeUnit.SECONDS.toMillis(LIFETIME_SECONDS));
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Unable to sign the access token", e);
+    }
+  }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.auth;
+
+import java.io.IOException;
+
+/**
+ * Obtains new access tokens for the Business Messages API.
+ */
+public interface TokenSource {
+
+  /**
+   * Obtains a new access token. May block on network calls.
+   *
+   * @return The access token.
+   * @throws IOException If no token could be obtained.
+   */
+  AccessToken fetch() throws IOException;
+}
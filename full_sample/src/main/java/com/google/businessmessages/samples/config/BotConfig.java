@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.config;
+
+import java.util.Locale;
+import java.util.logging.Logger;
+
+/**
+ * Reads the bot's tuning options from system properties.
+ *
+ * On App Engine, system properties are declared in the {@code <system-properties>} element of
+ * appengine-web.xml. Every option has a default so the sample runs without any configuration.
+ */
+public final class BotConfig {
+
+  private static final Logger logger = Logger.getLogger(BotConfig.class.getName());
+
+  private BotConfig() {
+  }
+
+  /**
+   * Returns the string value of the property, or the default if it is not set.
+   *
+   * @param name The property name.
+   * @param defaultValue The value to use when the property is not set.
+   * @return The configured value.
+   */
+  public static String getString(String name, String defaultValue) {
+    String value = System.getProperty(name);
+
+    return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+  }
+
+  /**
+   * Returns the boolean value of the property, or the default if it is not set.
+   *
+   * @param name The property name.
+   * @param defaultValue The value to use when the property is not set.
+   * @return The configured value.
+   */
+  public static boolean getBoolean(String name, boolean defaultValue) {
+    String value = getString(name, null);
+
+    return value == null ? defaultValue : Boolean.parseBoolean(value);
+  }
+
+  /**
+   * Returns the integer value of the property, or the default if it is not set, malformed or out
+   * of the int range.
+   *
+   * @param name The property name.
+   * @param defaultValue The value to use when the property is not set.
+   * @return The configured value.
+   */
+  public static int getInt(String name, int defaultValue) {
+    long value = getLong(name, defaultValue);
+
+    if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+      logger.warning("Ignoring malformed value for " + name + ": " + value);
+
+      return defaultValue;
+    }
+
+    return (int) value;
+  }
+
+  /**
+   * Returns the long value of the property, or the default if it is not set or malformed.
+   *
+   * @param name The property name.
+   * @param defaultValue The value to use when the property is not set.
+   * @return The configured value.
+   */
+  public static long getLong(String name, long defaultValue) {
+    String value = getString(name, null);
+
+    if (value == null) {
+      return defaultValue;
+    }
+
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      logger.warning("Ignoring malformed value for " + name + ": " + value);
+
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Returns the enum constant named by the property, or the default if it is not set or unknown.
+   *
+   * @param name The property name.
+   * @param type The enum class.
+   * @param defaultValue The value to use when the property is not set.
+   * @return The configured value.
+   */
+  public static <E extends Enum<E>> E getEnum(String name, Class<E> type, E defaultValue) {
+    String value = getString(name, null);
+
+    if (value == null) {
+      return defaultValue;
+    }
+
+    try {
+      return Enum.valueOf(type, value.toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      logger.warning("Ignoring unknown value for " + name + ": " + value);
+
+      return defaultValue;
+    }
+  }
+}
@@ -0,0 +1,26 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.dedupe;
+
+/**
+ * What a claim on a request found.
+ */
+public enum ClaimStatus {
+  /** The request was new and is now claimed by the caller. */
+  CLAIMED,
+  /** Another delivery of the request is being handled and has not finished yet. */
+  IN_FLIGHT,
+  /** The request has already been handled. */
+  HANDLED
+}
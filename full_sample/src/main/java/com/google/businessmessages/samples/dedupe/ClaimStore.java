@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.dedupe;
+
+/**
+ * Shared store that records which requests have already been claimed by an instance.
+ */
+public interface ClaimStore {
+
+  /**
+   * Atomically records the request if no instance has claimed it yet.
+   *
+   * @param requestId The requestId of the inbound event.
+   * @return True if this call claimed the request, false if it had already been claimed.
+   */
+  boolean claim(String requestId);
+
+  /**
+   * Atomically records the request as being handled if no instance has claimed it yet. The claim
+   * expires after a short lease unless it is completed, so that a delivery whose instance went
+   * away before finishing it can be handled by another.
+   *
+   * @param requestId The requestId of the inbound event.
+   * @param leaseSeconds How long the claim holds unless it is completed.
+   * @return CLAIMED if this call claimed the request, otherwise whether the earlier claim is still
+   *     in flight or was completed.
+   */
+  ClaimStatus claimInFlight(String requestId, int leaseSeconds);
+
+  /**
+   * Records that a request claimed with {@link #claimInFlight} has been handled.
+   *
+   * @param requestId The requestId of the inbound event.
+   */
+  void complete(String requestId);
+
+  /**
+   * Forgets a claim so that a redelivery of the request is processed.
+   *
+   * @param requestId The requestId of the inbound event.
+   */
+  void release(String requestId);
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.dedupe;
+
+import com.google.businessmessages.samples.config.BotConfig;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Detects redelivered webhook events in two tiers.
+ *
+ * The local tier is a size-bounded, expiring cache of requestIds seen by this instance. Events the
+ * local tier has not seen
+ * are claimed in the shared {@link ClaimStore} with a single atomic call, so concurrent
+ * redeliveries to different instances cannot both be processed.
+ *
+ * Events that are only acknowledged once they have been handled, such as those pulled from
+ * Pub/Sub, are claimed as in flight instead. Such a claim expires after a short lease unless it is
+ * completed, so an instance that goes away while handling the event does not stop its redelivery
+ * from being handled elsewhere.
+ */
+public final class Deduplicator {
+
+  private static final Logger logger = Logger.getLogger(Deduplicator.class.getName());
+
+  // System properties used to configure deduplication
+  public static final String PROP_LOCAL_MAX_SIZE = "bm.dedupe.localMaxSize";
+  public static final String PROP_TTL_SECONDS = "bm.dedupe.ttlSeconds";
+  public static final String PROP_IN_FLIGHT_SECONDS = "bm.dedupe.inFlightSeconds";
+
+  private static final int DEFAULT_LOCAL_MAX_SIZE = 10000;
+  private static final int DEFAULT_TTL_SECONDS = 600;
+  private static final int DEFAULT_IN_FLIGHT_SECONDS = 60;
+
+  private final Cache<String, ClaimStatus> localCache;
+  private final ClaimStore claimStore;
+  private final int inFlightSeconds;
+
+  private final LongAdder localHits = new LongAdder();
+  private final LongAdder localMisses = new LongAdder();
+  private final LongAdder remoteHits = new LongAdder();
+  private final LongAdder remoteMisses = new LongAdder();
+
+  /**
+   * Creates a deduplicator.
+   *
+   * @param claimStore The shared store of claimed requests.
+   * @param localMaxSize The number of requestIds remembered locally.
+   * @param ttlSeconds How long a requestId is remembered.
+   * @param inFlightSeconds How long an in-flight claim holds unless it is completed.
+   */
+  public Deduplicator(ClaimStore claimStore, int localMaxSize, int ttlSeconds,
+      int inFlightSeconds) {
+    this.claimStore = claimStore;
+    this.inFlightSeconds = inFlightSeconds;
+    this.localCache = CacheBuilder.newBuilder()
+        .maximumSize(localMaxSize)
+        .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+        .build();
+  }
+
+  /**
+   * Creates a memcache-backed deduplicator from the {@code bm.dedupe.*} system properties.
+   *
+   * @return A new deduplicator.
+   */
+  public static Deduplicator fromConfig() {
+    int ttlSeconds = Math.max(1, BotConfig.getInt(PROP_TTL_SECONDS, DEFAULT_TTL_SECONDS));
+
+    return new Deduplicator(new MemcacheClaimStore(ttlSeconds),
+        Math.max(1, BotConfig.getInt(PROP_LOCAL_MAX_SIZE, DEFAULT_LOCAL_MAX_SIZE)), ttlSeconds,
+        Math.max(1, BotConfig.getInt(PROP_IN_FLIGHT_SECONDS, DEFAULT_IN_FLIGHT_SECONDS)));
+  }
+
+  /**
+   * Checks whether an event has already been processed and claims it if not.
+   *
+   * @param requestId The requestId of the inbound event.
+   * @return True if the event is a duplicate and should be ignored.
+   */
+  public boolean isDuplicate(String requestId) {
+    if (localCache.getIfPresent(requestId) != null) {
+      localHits.increment();
+      return true;
+    }
+
+    localMisses.increment();
+
+    boolean claimed;
+    try {
+      claimed = claimStore.claim(requestId);
+    } catch (RuntimeException e) {
+      // Prefer a possible duplicate reply over dropping the user's message
+      logger.log(Level.WARNING, "Unable to claim request " + requestId, e);
+      claimed = true;
+    }
+
+    if (claimed) {
+      remoteMisses.increment();
+    } else {
+      remoteHits.increment();
+    }
+
+    localCache.put(requestId, ClaimStatus.HANDLED);
+
+    return !claimed;
+  }
+
+  /**
+   * Claims an event that is only acknowledged once it has been handled, unless it has already been
+   * handled or another delivery of it is in flight. The claim must then be completed with
+   * {@link #complete} or given up with {@link #release}.
+   *
+   * @param requestId The requestId of the inbound event.
+   * @return CLAIMED if the event should be handled, IN_FLIGHT if it should be redelivered later,
+   *     or HANDLED if it is a duplicate to acknowledge.
+   */
+  public ClaimStatus claimInFlight(String requestId) {
+    ClaimStatus local = localCache.getIfPresent(requestId);
+
+    if (local != null) {
+      localHits.increment();
+      return local;
+    }
+
+    localMisses.increment();
+
+    ClaimStatus status;
+    try {
+      status = claimStore.claimInFlight(requestId, inFlightSeconds);
+    } catch (RuntimeException e) {
+      // Prefer a possible duplicate reply over dropping the user's message
+      logger.log(Level.WARNING, "Unable to claim request " + requestId, e);
+      status = ClaimStatus.CLAIMED;
+    }
+
+    if (status == ClaimStatus.CLAIMED) {
+      remoteMisses.increment();
+      localCache.put(requestId, ClaimStatus.IN_FLIGHT);
+    } else {
+      remoteHits.increment();
+    }
+
+    return status;
+  }
+
+  /**
+   * Records that an event claimed with {@link #claimInFlight} has been handled, so that its
+   * redeliveries are acknowledged as duplicates.
+   *
+   * @param requestId The requestId of the inbound event.
+   */
+  public void complete(String requestId) {
+    localCache.put(requestId, ClaimStatus.HANDLED);
+
+    try {
+      claimStore.complete(requestId);
+    } catch (RuntimeException e) {
+      logger.log(Level.WARNING, "Unable to complete request " + requestId, e);
+    }
+  }
+
+  /**
+   * Forgets a request so that its redelivery is processed.
+   *
+   * @param requestId The requestId of the inbound event.
+   */
+  public void release(String requestId) {
+    localCache.invalidate(requestId);
+
+    try {
+      claimStore.release(requestId);
+    } catch (RuntimeException e) {
+      logger.log(Level.WARNING, "Unable to release request " + requestId, e);
+    }
+  }
+
+  /**
+   * @return The number of duplicates detected without a network call.
+   */
+  public long getLocalHits() {
+    return localHits.sum();
+  }
+
+  /**
+   * @return The number of lookups the local tier could not answer.
+   */
+  public long getLocalMisses() {
+    return localMisses.sum();
+  }
+
+  /**
+   * @return The number of duplicates detected by the shared store.
+   */
+  public long getRemoteHits() {
+    return remoteHits.sum();
+  }
+
+  /**
+   * @return The number of requests claimed in the shared store.
+   */
+  public long getRemoteMisses() {
+    return remoteMisses.sum();
+  }
+
+  /**
+   * @return The fraction of lookups answered by the local tier.
+   */
+  public double getLocalHitRate() {
+    return rate(getLocalHits(), getLocalMisses());
+  }
+
+  /**
+   * @return The fraction of shared store claims that found a duplicate.
+   */
+  public double getRemoteHitRate() {
+    return rate(getRemoteHits(), getRemoteMisses());
+  }
+
+  private static double rate(long hits, long misses) {
+    long total = hits + misses;
+
+    return total == 0 ? 0 : (double) hits / total;
+  }
+}
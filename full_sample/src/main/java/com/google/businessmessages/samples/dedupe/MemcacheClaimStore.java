@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.dedupe;
+
+import com.google.appengine.api.memcache.ErrorHandlers;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+/**
+ * Claims requests in App Engine memcache with a single atomic add.
+ */
+public final class MemcacheClaimStore implements ClaimStore {
+
+  // Values of the claims, those made by claim() are complete right away
+  private static final Boolean HANDLED = Boolean.TRUE;
+  private static final Boolean IN_FLIGHT = Boolean.FALSE;
+
+  private final MemcacheService memcache;
+  private final Expiration expiration;
+
+  /**
+   * Creates a store backed by the default memcache namespace.
+   *
+   * @param ttlSeconds How long a claim is remembered.
+   */
+  public MemcacheClaimStore(int ttlSeconds) {
+    this.memcache = MemcacheServiceFactory.getMemcacheService();
+    this.expiration = Expiration.byDeltaSeconds(ttlSeconds);
+
+    // Surface memcache errors instead of reporting them as an existing claim
+    this.memcache.setErrorHandler(ErrorHandlers.getStrict());
+  }
+
+  @Override
+  public boolean claim(String requestId) {
+    return memcache.put(requestId, HANDLED, expiration, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+  }
+
+  @Override
+  public ClaimStatus claimInFlight(String requestId, int leaseSeconds) {
+    if (memcache.put(requestId, IN_FLIGHT, Expiration.byDeltaSeconds(leaseSeconds),
+        SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+      return ClaimStatus.CLAIMED;
+    }
+
+    // A claim that expired in the meantime is treated as in flight, the request is redelivered
+    return HANDLED.equals(memcache.get(requestId)) ? ClaimStatus.HANDLED : ClaimStatus.IN_FLIGHT;
+  }
+
+  @Override
+  public void complete(String requestId) {
+    memcache.put(requestId, HANDLED, expiration, SetPolicy.SET_ALWAYS);
+  }
+
+  @Override
+  public void release(String requestId) {
+    memcache.delete(requestId);
+  }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.logging;
+
+import com.google.businessmessages.samples.config.BotConfig;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Log handler that hands records to a background thread, which formats and writes them with the
+ * handlers it replaced.
+ *
+ * Publishing never blocks: when the bounded queue is full the record is dropped and counted, and
+ * the number of dropped records is logged once the writer catches up. To avoid walking the stack
+ * of the logging thread, the source class of a record is taken from its logger name, which is the
+ * class name throughout this bot, and the source method is left out.
+ */
+public final class AsyncLogHandler extends Handler {
+
+  // System properties used to configure logging
+  public static final String PROP_ASYNC = "bm.log.async";
+  public static final String PROP_QUEUE_CAPACITY = "bm.log.queueCapacity";
+
+  private static final boolean DEFAULT_ASYNC = false;
+  private static final int DEFAULT_QUEUE_CAPACITY = 10000;
+  private static final long FLUSH_TIMEOUT_MILLIS = 1000;
+
+  private static AsyncLogHandler installed;
+
+  private final BlockingQueue<LogRecord> queue;
+  private final List<Handler> delegates;
+  private final Thread writer;
+  private final LongAdder dropped = new LongAdder();
+
+  private volatile boolean closed;
+
+  /**
+   * Creates a handler and starts its writer thread.
+   *
+   * @param delegates The handlers that write the records.
+   * @param capacity The maximum number of records waiting to be written.
+   */
+  public AsyncLogHandler(List<Handler> delegates, int capacity) {
+    this.delegates = new ArrayList<>(delegates);
+    this.queue = new ArrayBlockingQueue<>(capacity);
+    this.writer = new ThreadFactoryBuilder().setNameFormat("bm-log-writer").setDaemon(true)
+        .build().newThread(this::writeRecords);
+
+    setLevel(Level.ALL);
+    writer.start();
+  }
+
+  /**
+   * Moves the handlers of the root logger behind an async handler when the {@code bm.log.async}
+   * system property is true. Since this replaces the handlers of the whole JVM, including those
+   * configured by the container, logging stays synchronous by default. Installs at most once per
+   * process.
+   *
+   * @return The installed handler, or null if logging stays synchronous.
+   */
+  public static synchronized AsyncLogHandler installFromConfig() {
+    if (installed != null || !BotConfig.getBoolean(PROP_ASYNC, DEFAULT_ASYNC)) {
+      return installed;
+    }
+
+    Logger root = Logger.getLogger("");
+    List<Handler> handlers = new ArrayList<>();
+
+    for (Handler handler : root.getHandlers()) {
+      root.removeHandler(handler);
+      handlers.add(handler);
+    }
+
+    installed = new AsyncLogHandler(handlers,
+        Math.max(1, BotConfig.getInt(PROP_QUEUE_CAPACITY, DEFAULT_QUEUE_CAPACITY)));
+    root.addHandler(installed);
+
+    return installed;
+  }
+
+  @Override
+  public void publish(LogRecord record) {
+    if (closed || !isLoggable(record)) {
+      return;
+    }
+
+    // Setting the source stops the record from inferring it from the stack of another thread
+    record.setSourceClassName(record.getLoggerName());
+    record.setSourceMethodName(null);
+
+    if (!queue.offer(record)) {
+      dropped.increment();
+    }
+  }
+
+  /**
+   * Waits briefly for the queued records to be written.
+   */
+  @Override
+  public void flush() {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FLUSH_TIMEOUT_MILLIS);
+
+    while (!queue.isEmpty() && System.nanoTime() < deadline) {
+      try {
+        TimeUnit.MILLISECONDS.sleep(10);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    flush();
+    closed = true;
+    writer.interrupt();
+
+    for (Handler delegate : delegates) {
+      delegate.close();
+    }
+  }
+
+  /**
+   * @return The number of records dropped because the queue was full.
+   */
+  public long getDroppedCount() {
+    return dropped.sum();
+  }
+
+  /**
+   * @return The number of records waiting to be written.
+   */
+  public int getQueueDepth() {
+    return queue.size();
+  }
+
+  private void writeRecords() {
+    long reportedDrops = 0;
+
+    while (!closed) {
+      try {
+        write(queue.take());
+      } catch (InterruptedException e) {
+        break;
+      }
+
+      if (queue.isEmpty()) {
+        long drops = dropped.sum();
+
+        if (drops > reportedDrops) {
+          LogRecord record = new LogRecord(Level.WARNING,
+              "Dropped " + (drops - reportedDrops) + " log records, the log queue was full");
+          record.setLoggerName(AsyncLogHandler.class.getName());
+          record.setSourceClassName(AsyncLogHandler.class.getName());
+          write(record);
+          reportedDrops = drops;
+        }
+
+        for (Handler delegate : delegates) {
+          delegate.flush();
+        }
+      }
+    }
+
+    // Write what is left when closing
+    LogRecord record;
+    while ((record = queue.poll()) != null) {
+      write(record);
+    }
+  }
+
+  private void write(LogRecord record) {
+    for (Handler delegate : delegates) {
+      try {
+        delegate.publish(record);
+      } catch (RuntimeException e) {
+        reportError(null, e, ErrorManager.WRITE_FAILURE);
+      }
+    }
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.logging;
+
+import com.google.businessmessages.samples.config.BotConfig;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Logs request and response payloads, which are too large to log in full at high volume.
+ *
+ * Payloads are logged at INFO for a sample of 1 in N requests, and at WARNING for every failed
+ * one. They are truncated to a maximum length, and are only decoded or serialized once it is known
+ * that they will be written.
+ */
+public final class PayloadLog {
+
+  // System properties used to configure payload logging
+  public static final String PROP_SAMPLE_RATE = "bm.log.payloadSampleRate";
+  public static final String PROP_MAX_CHARS = "bm.log.maxPayloadChars";
+
+  private static final int DEFAULT_SAMPLE_RATE = 1;
+  private static final int DEFAULT_MAX_CHARS = 2048;
+
+  private final Logger logger;
+  private final int sampleRate;
+  private final int maxChars;
+
+  /**
+   * Creates a payload log.
+   *
+   * @param logger The logger to write to.
+   * @param sampleRate Log the payloads of 1 in this many requests, 1 logs every payload and 0
+   *     none.
+   * @param maxChars The maximum number of characters of a payload that are logged.
+   */
+  public PayloadLog(Logger logger, int sampleRate, int maxChars) {
+    this.logger = logger;
+    this.sampleRate = sampleRate;
+    this.maxChars = maxChars;
+  }
+
+  /**
+   * Creates a payload log from the {@code bm.log.*} system properties.
+   *
+   * @param logger The logger to write to.
+   * @return A new payload log.
+   */
+  public static PayloadLog fromConfig(Logger logger) {
+    return new PayloadLog(logger,
+        Math.max(0, BotConfig.getInt(PROP_SAMPLE_RATE, DEFAULT_SAMPLE_RATE)),
+        Math.max(0, BotConfig.getInt(PROP_MAX_CHARS, DEFAULT_MAX_CHARS)));
+  }
+
+  /**
+   * Logs a UTF-8 payload if this request is sampled.
+   *
+   * @param label What the payload is.
+   * @param payload The payload.
+   */
+  public void sampled(String label, byte[] payload) {
+    if (isSampled()) {
+      logger.info(label + ": " + truncate(payload));
+    }
+  }
+
+  /**
+   * Logs a payload if this request is sampled. The payload is only created if it is logged.
+   *
+   * @param label What the payload is.
+   * @param payload Creates the payload.
+   */
+  public void sampled(String label, Supplier<String> payload) {
+    if (isSampled()) {
+      logger.info(label + ": " + truncate(payload.get()));
+    }
+  }
+
+  /**
+   * Logs the UTF-8 payload of a failed request.
+   *
+   * @param label What the payload is.
+   * @param payload The payload.
+   */
+  public void failure(String label, byte[] payload) {
+    if (logger.isLoggable(Level.WARNING)) {
+      logger.warning(label + ": " + truncate(payload));
+    }
+  }
+
+  private boolean isSampled() {
+    return sampleRate > 0 && logger.isLoggable(Level.INFO)
+        && (sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0);
+  }
+
+  private String truncate(byte[] payload) {
+    if (payload.length <= maxChars) {
+      return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    // A UTF-8 character is at least one byte, so this decodes every character that is kept
+    return new String(payload, 0, maxChars, StandardCharsets.UTF_8)
+        + "... (" + payload.length + " bytes)";
+  }
+
+  private String truncate(String payload) {
+    if (payload.length() <= maxChars) {
+      return payload;
+    }
+
+    return payload.substring(0, maxChars) + "... (" + payload.length() + " chars)";
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with log-linear buckets, in the style of HdrHistogram.
+ *
+ * Latencies are kept in microseconds, in buckets that split every power of two into 16 equal
+ * parts, so every recorded value is known to within 1/16 of its magnitude from 1 microsecond to
+ * about 12 days. Recording does not allocate and does not lock.
+ */
+public final class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKET_HALF_COUNT = 1 << SUB_BUCKET_BITS;
+  private static final int SUB_BUCKET_COUNT = SUB_BUCKET_HALF_COUNT << 1;
+  private static final int MAX_MAGNITUDE = 40;
+  private static final long MAX_VALUE = (1L << MAX_MAGNITUDE) - 1;
+  private static final int BUCKET_COUNT =
+      SUB_BUCKET_COUNT + (MAX_MAGNITUDE - SUB_BUCKET_BITS - 1) * SUB_BUCKET_HALF_COUNT;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+  private final LongAdder sumMicros = new LongAdder();
+
+  LatencyHistogram() {
+  }
+
+  /**
+   * Records a latency.
+   *
+   * @param nanos The latency in nanoseconds.
+   */
+  public void recordNanos(long nanos) {
+    long micros = Math.min(MAX_VALUE, Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos)));
+
+    counts.incrementAndGet(bucketIndex(micros));
+    sumMicros.add(micros);
+  }
+
+  /**
+   * Records the time elapsed since a start time.
+   *
+   * @param startNanos The start time, from {@link System#nanoTime()}.
+   */
+  public void recordSince(long startNanos) {
+    recordNanos(System.nanoTime() - startNanos);
+  }
+
+  /**
+   * Copies the bucket counts.
+   *
+   * @return The snapshot.
+   */
+  Snapshot snapshot() {
+    long[] copy = new long[BUCKET_COUNT];
+    long count = 0;
+
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      copy[i] = counts.get(i);
+      count += copy[i];
+    }
+
+    return new Snapshot(copy, count, sumMicros.sum());
+  }
+
+  static int bucketIndex(long micros) {
+    if (micros < SUB_BUCKET_COUNT) {
+      return (int) micros;
+    }
+
+    int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+    int subBucket = (int) (micros >>> shift);
+
+    return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF_COUNT
+        + (subBucket - SUB_BUCKET_HALF_COUNT);
+  }
+
+  static long bucketUpperBound(int index) {
+    if (index < SUB_BUCKET_COUNT) {
+      return index;
+    }
+
+    int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF_COUNT + 1;
+    long subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT;
+
+    return ((subBucket + 1) << shift) - 1;
+  }
+
+  /**
+   * The recorded latencies at one point in time.
+   */
+  static final class Snapshot {
+
+    private final long[] counts;
+    private final long count;
+    private final long sumMicros;
+
+    private Snapshot(long[] counts, long count, long sumMicros) {
+      this.counts = counts;
+      this.count = count;
+      this.sumMicros = sumMicros;
+    }
+
+    long getCount() {
+      return count;
+    }
+
+    long getSumMicros() {
+      return sumMicros;
+    }
+
+    /**
+     * Finds the latency below which a share of the recorded latencies fall.
+     *
+     * @param quantile The share, between 0 and 1.
+     * @return The highest latency of the bucket holding the quantile, in microseconds, or 0 if
+     *     nothing was recorded.
+     */
+    long quantileMicros(double quantile) {
+      long rank = Math.max(1, (long) Math.ceil(quantile * count));
+      long seen = 0;
+
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+
+        if (seen >= rank) {
+          return bucketUpperBound(i);
+        }
+      }
+
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.metrics;
+
+import com.google.common.base.Preconditions;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * The metrics of the process, written in the Prometheus text exposition format.
+ *
+ * Metrics are registered once, usually when a component is created, and the returned histogram or
+ * counter is kept in a field so that recording does not look anything up. Registering the same
+ * name and labels again returns the existing metric, or replaces the function of a gauge.
+ *
+ * Latencies are exported as summaries in seconds, with the quantiles in {@link #QUANTILES}.
+ */
+public final class MetricsRegistry {
+
+  private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+  private enum Type {
+    COUNTER("counter"), GAUGE("gauge"), SUMMARY("summary");
+
+    private final String text;
+
+    Type(String text) {
+      this.text = text;
+    }
+  }
+
+  private final Map<String, Family> families = new LinkedHashMap<>();
+
+  /**
+   * @return The registry shared by the process.
+   */
+  public static MetricsRegistry getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Registers a latency histogram.
+   *
+   * @param name The metric name, ending in _seconds.
+   * @param help The description of the metric.
+   * @param labels Label names and values, alternating.
+   * @return The histogram.
+   */
+  public LatencyHistogram histogram(String name, String help, String... labels) {
+    return (LatencyHistogram) register(name, help, Type.SUMMARY, labels, null);
+  }
+
+  /**
+   * Registers a counter.
+   *
+   * @param name The metric name, ending in _total.
+   * @param help The description of the metric.
+   * @param labels Label names and values, alternating.
+   * @return The counter.
+   */
+  public Counter counter(String name, String help, String... labels) {
+    return (Counter) register(name, help, Type.COUNTER, labels, null);
+  }
+
+  /**
+   * Registers a counter kept by another component.
+   *
+   * @param name The metric name, ending in _total.
+   * @param help The description of the metric.
+   * @param value Reads the current count.
+   * @param labels Label names and values, alternating.
+   */
+  public void counterFunction(String name, String help, LongSupplier value, String... labels) {
+    register(name, help, Type.COUNTER, labels, value);
+  }
+
+  /**
+   * Registers a gauge, read when the metrics are written.
+   *
+   * @param name The metric name.
+   * @param help The description of the metric.
+   * @param value Reads the current value.
+   * @param labels Label names and values, alternating.
+   */
+  public void gauge(String name, String help, DoubleSupplier value, String... labels) {
+    register(name, help, Type.GAUGE, labels, value);
+  }
+
+  /**
+   * Writes every metric in the Prometheus text exposition format, version 0.0.4.
+   *
+   * @param writer The destination.
+   * @throws IOException If writing fails.
+   */
+  public void writeTo(Writer writer) throws IOException {
+    List<Family> snapshot;
+
+    synchronized (this) {
+      snapshot = new ArrayList<>(families.values());
+    }
+
+    StringBuilder text = new StringBuilder(4096);
+
+    for (Family family : snapshot) {
+      family.writeTo(text);
+    }
+
+    writer.write(text.toString());
+  }
+
+  private synchronized Object register(String name, String help, Type type, String[] labels,
+      Object function) {
+    Preconditions.checkArgument(labels.length % 2 == 0, "Labels must be name and value pairs");
+
+    Family family = families.get(name);
+
+    if (family == null) {
+      family = new Family(name, help, type);
+      families.put(name, family);
+    }
+
+    Preconditions.checkArgument(family.type == type, "%s is already registered as a %s", name,
+        family.type.text);
+
+    return family.get(formatLabels(labels), function);
+  }
+
+  private static String formatLabels(String[] labels) {
+    StringBuilder text = new StringBuilder();
+
+    for (int i = 0; i < labels.length; i += 2) {
+      text.append(text.length() == 0 ? "" : ",").append(labels[i]).append("=\"")
+          .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"")
+              .replace("\n", "\\n"))
+          .append('"');
+    }
+
+    return text.toString();
+  }
+
+  /**
+   * The metrics that share a name, one per set of labels.
+   */
+  private static final class Family {
+
+    private final String name;
+    private final String help;
+    private final Type type;
+    private final Map<String, Object> metrics = new LinkedHashMap<>();
+
+    Family(String name, String help, Type type) {
+      this.name = name;
+      this.help = help;
+      this.type = type;
+    }
+
+    Object get(String labels, Object function) {
+      synchronized (metrics) {
+        if (function != null) {
+          metrics.put(labels, function);
+          return function;
+        }
+
+        return metrics.computeIfAbsent(labels,
+            key -> type == Type.SUMMARY ? new LatencyHistogram() : new Counter());
+      }
+    }
+
+    void writeTo(StringBuilder text) {
+      List<Map.Entry<String, Object>> entries;
+
+      synchronized (metrics) {
+        entries = new ArrayList<>(metrics.entrySet());
+      }
+
+      text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+      text.append("# TYPE ").append(name).append(' ').append(type.text).append('\n');
+
+      for (Map.Entry<String, Object> entry : entries) {
+        String labels = entry.getKey();
+        Object metric = entry.getValue();
+
+        if (metric instanceof LatencyHistogram) {
+          writeSummary(text, labels, ((LatencyHistogram) metric).snapshot());
+        } else if (metric instanceof Counter) {
+          writeSample(text, name, labels, ((Counter) metric).get());
+        } else if (metric instanceof LongSupplier) {
+          writeSample(text, name, labels, ((LongSupplier) metric).getAsLong());
+        } else {
+          writeSample(text, name, labels, ((DoubleSupplier) metric).getAsDouble());
+        }
+      }
+    }
+
+    private void writeSummary(StringBuilder text, String labels,
+        LatencyHistogram.Snapshot snapshot) {
+      String separator = labels.isEmpty() ? "" : ",";
+
+      for (double quantile : QUANTILES) {
+        writeSample(text, name, labels + separator + "quantile=\"" + quantile + "\"",
+            seconds(snapshot.quantileMicros(quantile)));
+      }
+
+      writeSample(text, name + "_sum", labels, seconds(snapshot.getSumMicros()));
+      writeSample(text, name + "_count", labels, snapshot.getCount());
+    }
+
+    private static void writeSample(StringBuilder text, String name, String labels,
+        double value) {
+      text.append(name);
+
+      if (!labels.isEmpty()) {
+        text.append('{').append(labels).append('}');
+      }
+
+      text.append(' ');
+
+      if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+        text.append((long) value);
+      } else {
+        text.append(value);
+      }
+
+      text.append('\n');
+    }
+
+    private static double seconds(long micros) {
+      return micros / 1e6;
+    }
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.nlu;
+
+import com.google.api.core.ApiFuture;
+import com.google.businessmessages.samples.config.BotConfig;
+import com.google.businessmessages.samples.metrics.Counter;
+import com.google.businessmessages.samples.metrics.LatencyHistogram;
+import com.google.businessmessages.samples.metrics.MetricsRegistry;
+import com.google.cloud.dialogflow.v2.DetectIntentRequest;
+import com.google.cloud.dialogflow.v2.DetectIntentResponse;
+import com.google.cloud.dialogflow.v2.QueryInput;
+import com.google.cloud.dialogflow.v2.QueryResult;
+import com.google.cloud.dialogflow.v2.SessionName;
+import com.google.cloud.dialogflow.v2.SessionsClient;
+import com.google.cloud.dialogflow.v2.TextInput;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Logger;
+
+/**
+ * Detects intents with the Dialogflow detectIntent API, using the conversation ID as the
+ * Dialogflow session. Cancelling a returned future cancels its call.
+ */
+public final class DialogflowIntentDetector implements IntentDetector {
+
+  private static final Logger logger = Logger.getLogger(DialogflowIntentDetector.class.getName());
+
+  // System properties used to configure the agent
+  public static final String PROP_PROJECT_ID = "bm.dialogflow.projectId";
+  public static final String PROP_LANGUAGE_CODE = "bm.dialogflow.languageCode";
+
+  private static final String DEFAULT_LANGUAGE_CODE = "en-US";
+
+  private final SessionsClient client;
+  private final String projectId;
+
+  private final LatencyHistogram detectLatency;
+  private final Counter detectErrors;
+
+  /**
+   * Creates a detector.
+   *
+   * @param client The Dialogflow sessions client.
+   * @param projectId The project of the Dialogflow agent.
+   */
+  public DialogflowIntentDetector(SessionsClient client, String projectId) {
+    this.client = client;
+    this.projectId = projectId;
+
+    MetricsRegistry metrics = MetricsRegistry.getDefault();
+    this.detectLatency = metrics.histogram("bm_dialogflow_detect_seconds",
+        "Time of Dialogflow detectIntent calls.");
+    this.detectErrors = metrics.counter("bm_dialogflow_detect_errors_total",
+        "Dialogflow detectIntent calls that failed.");
+  }
+
+  /**
+   * Creates a detector from the {@code bm.dialogflow.*} system properties.
+   *
+   * @return A new detector, or null if no Dialogflow project is configured.
+   * @throws IOException If the Dialogflow client cannot be created.
+   */
+  public static DialogflowIntentDetector fromConfig() throws IOException {
+    String projectId = BotConfig.getString(PROP_PROJECT_ID, null);
+
+    if (projectId == null || projectId.isEmpty()) {
+      return null;
+    }
+
+    logger.info("Detecting intents with the Dialogflow agent of " + projectId);
+
+    return new DialogflowIntentDetector(SessionsClient.create(), projectId);
+  }
+
+  /**
+   * @return The language of the agent, from the {@code bm.dialogflow.languageCode} property.
+   */
+  public static String getLanguageCode() {
+    return BotConfig.getString(PROP_LANGUAGE_CODE, DEFAULT_LANGUAGE_CODE);
+  }
+
+  @Override
+  public CompletableFuture<IntentResult> detect(String sessionId, String text,
+      String languageCode) {
+    DetectIntentRequest request = DetectIntentRequest.newBuilder()
+        .setSession(SessionName.format(projectId, sessionId))
+        .setQueryInput(QueryInput.newBuilder()
+            .setText(TextInput.newBuilder().setText(text).setLanguageCode(languageCode).build())
+            .build())
+        .build();
+
+    long start = System.nanoTime();
+    CompletableFuture<IntentResult> result = new CompletableFuture<>();
+    ApiFuture<DetectIntentResponse> response = client.detectIntentCallable().futureCall(request);
+
+    response.addListener(() -> {
+      detectLatency.recordSince(start);
+
+      try {
+        result.complete(toResult(response.get().getQueryResult()));
+      } catch (CancellationException e) {
+        result.cancel(false);
+      } catch (ExecutionException e) {
+        detectErrors.increment();
+        result.completeExceptionally(e.getCause());
+      } catch (InterruptedException e) {
+        detectErrors.increment();
+        Thread.currentThread().interrupt();
+        result.completeExceptionally(e);
+      }
+    }, MoreExecutors.directExecutor());
+
+    // Cancelling the result abandons the call, which frees its stream on the channel
+    result.whenComplete((intent, error) -> {
+      if (result.isCancelled()) {
+        response.cancel(true);
+      }
+    });
+
+    return result;
+  }
+
+  /**
+   * Stops the Dialogflow client.
+   */
+  public void shutdown() {
+    client.shutdown();
+  }
+
+  private static IntentResult toResult(QueryResult queryResult) {
+    return new IntentResult(
+        queryResult.hasIntent() ? queryResult.getIntent().getDisplayName() : null,
+        queryResult.getFulfillmentText(),
+        queryResult.getIntentDetectionConfidence(),
+        // Intents that set contexts influence what the next message resolves to
+        queryResult.getOutputContextsCount() == 0);
+  }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.nlu;
+
+import com.google.businessmessages.samples.config.BotConfig;
+import com.google.businessmessages.samples.metrics.Counter;
+import com.google.businessmessages.samples.metrics.MetricsRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.text.Normalizer;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves messages to intents, remembering the results for repeated texts.
+ *
+ * Many messages are the same few words, such as greetings and thanks. Results are cached by the
+ * normalized text and language, so those skip the round trip to the {@link IntentDetector}
+ * until they expire. The cache holds futures: concurrent messages with the same text share a
+ * single detection that is in flight, and no thread waits for it. Failed detections and results
+ * that depend on the conversation are not kept. The detector is always sent the text as the user
+ * typed it, the normalized text is only the key.
+ *
+ * A conversation whose last detection left Dialogflow contexts active bypasses the cache until
+ * they end: its next message may mean something else in those contexts, and has to reach
+ * Dialogflow to advance them. A result that set contexts in the conversation of another message
+ * is not shared either, the message is detected again in its own conversation.
+ *
+ * Each message has a deadline, counted from when it was received. A message whose intent is not
+ * detected by then fails with a {@link TimeoutException}, so that the caller can answer without
+ * it, and a detection that every waiting message gave up on is cancelled.
+ */
+public final class IntentCache {
+
+  // System properties used to configure the cache
+  public static final String PROP_MAX_SIZE = "bm.intentCache.maxSize";
+  public static final String PROP_TTL_SECONDS = "bm.intentCache.ttlSeconds";
+  public static final String PROP_DEADLINE_MS = "bm.intent.deadlineMs";
+
+  private static final int DEFAULT_MAX_SIZE = 10000;
+  private static final int DEFAULT_TTL_SECONDS = 3600;
+  private static final long DEFAULT_DEADLINE_MS = 2000;
+
+  // Dialogflow drops the contexts of a session that stays idle this long
+  private static final long CONTEXT_EXPIRY_MINUTES = 20;
+
+  private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+  private static final Pattern TRAILING_PUNCTUATION = Pattern.compile("[\\p{P}\\s]+$");
+
+  private final IntentDetector detector;
+  private final String languageCode;
+  private final long deadlineNanos;
+  private final Cache<String, Detection> cache;
+  private final ScheduledExecutorService timer;
+
+  // Sessions whose last detection left contexts active
+  private final Cache<String, Boolean> contextSessions;
+
+  private final Counter timeouts;
+  private final Counter bypasses;
+  private final Counter cancellations;
+
+  /**
+   * Creates a cache.
+   *
+   * @param detector Detects the intents of texts that are not cached.
+   * @param languageCode The language of the messages.
+   * @param maxSize The number of texts remembered.
+   * @param ttlSeconds How long a result is remembered.
+   * @param deadlineMillis How long after a message was received its intent may be detected.
+   */
+  public IntentCache(IntentDetector detector, String languageCode, int maxSize, int ttlSeconds,
+      long deadlineMillis) {
+    this.detector = detector;
+    this.languageCode = languageCode;
+    this.deadlineNanos = TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+    this.timer = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("bm-intent-timer").setDaemon(true).build());
+    this.cache = CacheBuilder.newBuilder()
+        .maximumSize(maxSize)
+        .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+        .recordStats()
+        .build();
+    this.contextSessions = CacheBuilder.newBuilder()
+        .maximumSize(maxSize)
+        .expireAfterWrite(CONTEXT_EXPIRY_MINUTES, TimeUnit.MINUTES)
+        .build();
+
+    MetricsRegistry metrics = MetricsRegistry.getDefault();
+    String lookupsHelp = "Intent lookups answered from the cache or by a detectIntent call.";
+    metrics.counterFunction("bm_intent_cache_lookups_total", lookupsHelp,
+        () -> cache.stats().hitCount(), "result", "hit");
+    metrics.counterFunction("bm_intent_cache_lookups_total", lookupsHelp,
+        () -> cache.stats().missCount(), "result", "miss");
+    metrics.counterFunction("bm_intent_cache_evictions_total",
+        "Intent results dropped from the cache because it was full or they expired.",
+        () -> cache.stats().evictionCount());
+    metrics.gauge("bm_intent_cache_hit_ratio", "Share of intent lookups answered from the cache.",
+        () -> cache.stats().hitRate());
+    metrics.gauge("bm_intent_cache_size", "Texts in the intent cache.", cache::size);
+    this.timeouts = metrics.counter("bm_intent_timeouts_total",
+        "Messages whose intent was not detected before their deadline.");
+    this.bypasses = metrics.counter("bm_intent_cache_bypassed_total",
+        "Messages detected without the cache because their conversation had active contexts.");
+    this.cancellations = metrics.counter("bm_intent_cancelled_total",
+        "detectIntent calls cancelled because every message waiting for them passed its deadline.");
+  }
+
+  /**
+   * Creates a cache from the {@code bm.intentCache.*} and {@code bm.intent.deadlineMs} system
+   * properties.
+   *
+   * @param detector Detects the intents of texts that are not cached.
+   * @param languageCode The language of the messages.
+   * @return A new cache.
+   */
+  public static IntentCache fromConfig(IntentDetector detector, String languageCode) {
+    return new IntentCache(detector, languageCode,
+        Math.max(1, BotConfig.getInt(PROP_MAX_SIZE, DEFAULT_MAX_SIZE)),
+        Math.max(1, BotConfig.getInt(PROP_TTL_SECONDS, DEFAULT_TTL_SECONDS)),
+        Math.max(0, BotConfig.getLong(PROP_DEADLINE_MS, DEFAULT_DEADLINE_MS)));
+  }
+
+  /**
+   * Resolves a message to its intent, from the cache if the same text was resolved recently.
+   *
+   * @param sessionId Identifies the conversation of the message.
+   * @param text The message text received from the user.
+   * @param receivedAtNanos When the message was received, from {@link System#nanoTime()}.
+   * @return Completes with the intent of the message, or with a {@link TimeoutException} once its
+   *     deadline has passed.
+   */
+  public CompletableFuture<IntentResult> resolve(String sessionId, String text,
+      long receivedAtNanos) {
+    String key = languageCode + '|' + normalize(text);
+    long deadlineAtNanos = receivedAtNanos + deadlineNanos;
+    long remainingNanos = deadlineAtNanos - System.nanoTime();
+    boolean contexts = contextSessions.getIfPresent(sessionId) != null;
+
+    if (remainingNanos <= 0) {
+      // Too late to call the detector, but a result that is already known costs nothing
+      Detection known = contexts ? null : cache.asMap().get(key);
+
+      if (known != null && known.future.isDone()) {
+        return known.future;
+      }
+
+      timeouts.increment();
+      return failed(new TimeoutException("Deadline passed before the intent was detected"));
+    }
+
+    if (contexts) {
+      bypasses.increment();
+      return detectUncached(sessionId, text, deadlineAtNanos);
+    }
+
+    for (;;) {
+      boolean[] loaded = new boolean[1];
+      Detection detection;
+
+      try {
+        detection = cache.get(key, () -> {
+          loaded[0] = true;
+          return detect(sessionId, text);
+        });
+      } catch (ExecutionException e) {
+        return failed(e.getCause());
+      }
+
+      // Only the caller that started the detection decides whether its result is kept
+      if (loaded[0]) {
+        detection.future.whenComplete((intent, error) -> {
+          if (error != null || !intent.isCacheable()) {
+            cache.asMap().remove(key, detection);
+          }
+        });
+      }
+
+      CompletableFuture<IntentResult> result =
+          detection.await(deadlineAtNanos - System.nanoTime());
+
+      if (result != null && !detection.sessionId.equals(sessionId)) {
+        // Contexts the result set belong to the session that made the call
+        return result.thenCompose(intent -> intent.isCacheable()
+            ? CompletableFuture.completedFuture(intent)
+            : detectUncached(sessionId, text, deadlineAtNanos));
+      } else if (result != null) {
+        return result;
+      }
+
+      // The detection is being cancelled, start another one
+      cache.asMap().remove(key, detection);
+    }
+  }
+
+  /**
+   * Detects the intent of a message in its own session, without the cache.
+   */
+  private CompletableFuture<IntentResult> detectUncached(String sessionId, String text,
+      long deadlineAtNanos) {
+    long remainingNanos = deadlineAtNanos - System.nanoTime();
+
+    if (remainingNanos <= 0) {
+      timeouts.increment();
+      return failed(new TimeoutException("Deadline passed before the intent was detected"));
+    }
+
+    return detect(sessionId, text).await(remainingNanos);
+  }
+
+  /**
+   * Starts a detectIntent call, remembering whether it left contexts active in the session.
+   */
+  private Detection detect(String sessionId, String text) {
+    CompletableFuture<IntentResult> future = detector.detect(sessionId, text, languageCode);
+
+    future.thenAccept(intent -> {
+      if (intent.isCacheable()) {
+        contextSessions.invalidate(sessionId);
+      } else {
+        contextSessions.put(sessionId, Boolean.TRUE);
+      }
+    });
+
+    return new Detection(sessionId, future);
+  }
+
+  /**
+   * Stops the timer of the deadlines.
+   */
+  public void shutdown() {
+    timer.shutdownNow();
+  }
+
+  /**
+   * Folds case, compatibility characters and whitespace, and drops trailing punctuation, so that
+   * "Hours?" and "hours" share a cache entry.
+   */
+  static String normalize(String text) {
+    String folded = Normalizer.normalize(text, Normalizer.Form.NFKC).toLowerCase(Locale.ROOT);
+
+    return TRAILING_PUNCTUATION.matcher(WHITESPACE.matcher(folded).replaceAll(" ").trim())
+        .replaceAll("");
+  }
+
+  private static <T> CompletableFuture<T> failed(Throwable error) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    future.completeExceptionally(error);
+    return future;
+  }
+
+  /**
+   * A detectIntent call and the number of messages still waiting for it.
+   */
+  private final class Detection {
+
+    // The session the call was made in
+    private final String sessionId;
+    private final CompletableFuture<IntentResult> future;
+    // Negative once the detection was abandoned
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    Detection(String sessionId, CompletableFuture<IntentResult> future) {
+      this.sessionId = sessionId;
+      this.future = future;
+    }
+
+    /**
+     * Returns a future of this detection for one message, which fails when its deadline passes
+     * without affecting the other messages waiting for the same detection.
+     *
+     * @return The future, or null if the detection was abandoned and cannot be waited for.
+     */
+    CompletableFuture<IntentResult> await(long timeoutNanos) {
+      if (future.isCancelled()) {
+        return null;
+      } else if (future.isDone()) {
+        return future;
+      }
+
+      int count;
+      do {
+        count = waiters.get();
+
+        if (count < 0) {
+          return null;
+        }
+      } while (!waiters.compareAndSet(count, count + 1));
+
+      CompletableFuture<IntentResult> result = new CompletableFuture<>();
+      ScheduledFuture<?> timeout = timer.schedule(() -> {
+        if (result.completeExceptionally(
+            new TimeoutException("Deadline passed before the intent was detected"))) {
+          timeouts.increment();
+          abandon();
+        }
+      }, timeoutNanos, TimeUnit.NANOSECONDS);
+
+      future.whenComplete((intent, error) -> {
+        timeout.cancel(false);
+
+        if (error != null) {
+          result.completeExceptionally(error);
+        } else {
+          result.complete(intent);
+        }
+      });
+
+      return result;
+    }
+
+    /**
+     * Cancels the call once no message is waiting for it, so a late answer is not waited for.
+     */
+    private void abandon() {
+      int count;
+      do {
+        count = waiters.get();
+      } while (!waiters.compareAndSet(count, count == 1 ? -1 : count - 1));
+
+      if (count == 1 && future.cancel(true)) {
+        cancellations.increment();
+      }
+    }
+  }
+}
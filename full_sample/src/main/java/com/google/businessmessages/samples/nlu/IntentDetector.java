@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.nlu;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Detects the intent of a user's message with a natural language understanding service.
+ */
+public interface IntentDetector {
+
+  /**
+   * Detects an intent without blocking the caller.
+   *
+   * @param sessionId Identifies the conversation, so that the service can keep its context.
+   * @param text The text to classify.
+   * @param languageCode The language of the text, for example en-US.
+   * @return Completes with the detected intent.
+   */
+  CompletableFuture<IntentResult> detect(String sessionId, String text, String languageCode);
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.nlu;
+
+/**
+ * The intent detected for a user's message and the reply configured for it.
+ */
+public final class IntentResult {
+
+  private final String intent;
+  private final String fulfillmentText;
+  private final float confidence;
+  private final boolean cacheable;
+
+  /**
+   * Creates a result.
+   *
+   * @param intent The display name of the intent, or null if none matched.
+   * @param fulfillmentText The reply to send, or null if the intent has none.
+   * @param confidence How confident the detection is, between 0 and 1.
+   * @param cacheable Whether the same text always resolves to this result, which is not the case
+   *     for intents that depend on or change the state of the conversation.
+   */
+  public IntentResult(String intent, String fulfillmentText, float confidence,
+      boolean cacheable) {
+    this.intent = intent;
+    this.fulfillmentText = fulfillmentText;
+    this.confidence = confidence;
+    this.cacheable = cacheable;
+  }
+
+  public String getIntent() {
+    return intent;
+  }
+
+  public String getFulfillmentText() {
+    return fulfillmentText;
+  }
+
+  public float getConfidence() {
+    return confidence;
+  }
+
+  public boolean isCacheable() {
+    return cacheable;
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.outbound;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the Business Messages API answers a request with an error status.
+ */
+public final class ApiCallException extends IOException {
+
+  private final int statusCode;
+
+  /**
+   * Creates an exception.
+   *
+   * @param statusCode The HTTP status of the response.
+   * @param body The body of the response.
+   */
+  public ApiCallException(int statusCode, String body) {
+    super(statusCode + " " + body);
+    this.statusCode = statusCode;
+  }
+
+  public int getStatusCode() {
+    return statusCode;
+  }
+
+  /**
+   * @return Whether the API failed rather than rejected the request, so it may succeed if sent
+   *     again.
+   */
+  public boolean isServerError() {
+    return statusCode >= 500;
+  }
+}
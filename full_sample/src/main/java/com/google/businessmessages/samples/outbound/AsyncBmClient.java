@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.outbound;
+
+import com.google.api.client.util.BackOff;
+import com.google.api.client.util.escape.CharEscapers;
+import com.google.businessmessages.samples.auth.CredentialManager;
+import com.google.businessmessages.samples.config.BotConfig;
+import com.google.businessmessages.samples.metrics.Counter;
+import com.google.businessmessages.samples.metrics.LatencyHistogram;
+import com.google.businessmessages.samples.metrics.MetricsRegistry;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Creates messages and events with the Business Messages API over an {@link AsyncTransport}.
+ *
+ * Calls return futures instead of blocking. A {@link RateLimiter} first delays messages and drops
+ * events that would exceed the agent's quota or the rate of their conversation. Every attempt then
+ * passes through a shared {@link CircuitBreaker}, which sheds events before messages while the API
+ * is failing. Calls that fail because the API is unavailable are retried with decorrelated jitter
+ * as long as the shared {@link RetryBudget} allows. Delays and retries are scheduled on a timer
+ * rather than by sleeping on the calling thread. The timer only starts attempts, the transport
+ * makes the calls without blocking it, so one slow call cannot hold up the retries of others.
+ *
+ * Every call has a deadline, after which it no longer matters to the user. Calls are not made,
+ * delayed or retried past it, and the time left bounds the HTTP timeouts of each attempt.
+ */
+public final class AsyncBmClient {
+
+  // System properties used to configure retries
+  public static final String PROP_BASE_DELAY_MS = "bm.retry.baseDelayMs";
+  public static final String PROP_MAX_DELAY_MS = "bm.retry.maxDelayMs";
+  public static final String PROP_MAX_RETRIES = "bm.retry.maxRetries";
+  public static final String PROP_EVENT_MAX_RETRIES = "bm.retry.eventMaxRetries";
+
+  private static final long DEFAULT_BASE_DELAY_MS = 100;
+  private static final long DEFAULT_MAX_DELAY_MS = 10000;
+  private static final int DEFAULT_MAX_RETRIES = 3;
+  private static final int DEFAULT_EVENT_MAX_RETRIES = 1;
+
+  private static final int HTTP_CONFLICT = 409;
+  private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+  private final AsyncTransport transport;
+  private final CredentialManager credentials;
+  private final String rootUrl;
+  private final ScheduledExecutorService scheduler;
+  private final RateLimiter rateLimiter;
+  private final RetryBudget retryBudget;
+  private final CircuitBreaker breaker;
+  private final CallKind messages;
+  private final CallKind events;
+
+  private final Counter budgetExhausted;
+  private final LatencyHistogram rateLimitWait;
+
+  /**
+   * Creates a client.
+   *
+   * @param transport Sends the requests.
+   * @param credentials Authorizes the requests, or null to send them without credentials.
+   * @param rootUrl The root URL of the API, ending with a slash.
+   * @param scheduler Runs delayed calls and the retries of failed calls.
+   * @param rateLimiter Spreads calls out to stay within the quota.
+   * @param retryBudget Limits retries across all calls.
+   * @param breaker Refuses calls while the API is failing.
+   * @param messageBackOff Creates the retry schedule of each message.
+   * @param eventBackOff Creates the retry schedule of each event.
+   */
+  public AsyncBmClient(AsyncTransport transport, CredentialManager credentials, String rootUrl,
+      ScheduledExecutorService scheduler, RateLimiter rateLimiter, RetryBudget retryBudget,
+      CircuitBreaker breaker, Supplier<BackOff> messageBackOff, Supplier<BackOff> eventBackOff) {
+    this.transport = transport;
+    this.credentials = credentials;
+    this.rootUrl = rootUrl;
+    this.scheduler = scheduler;
+    this.rateLimiter = rateLimiter;
+    this.retryBudget = retryBudget;
+    this.breaker = breaker;
+    this.messages = new CallKind("message", CircuitBreaker.Priority.HIGH, messageBackOff);
+    this.events = new CallKind("event", CircuitBreaker.Priority.LOW, eventBackOff);
+
+    MetricsRegistry metrics = MetricsRegistry.getDefault();
+    this.budgetExhausted = metrics.counter("bm_api_retry_budget_exhausted_total",
+        "Retries not made because the retry budget was used up.");
+    this.rateLimitWait = metrics.histogram("bm_ratelimit_wait_seconds",
+        "Time messages were delayed to stay within the rate limits.");
+    metrics.gauge("bm_api_retry_budget", "Retries the retry budget currently allows.",
+        retryBudget::getAvailable);
+    metrics.gauge("bm_api_breaker_state",
+        "State of the circuit breaker: 0 closed, 1 shedding, 2 open, 3 half open.",
+        () -> breaker.getState().ordinal());
+  }
+
+  /**
+   * Creates a client from the {@code bm.rateLimit.*}, {@code bm.retry.*} and
+   * {@code bm.breaker.*} system properties.
+   *
+   * @param transport Sends the requests.
+   * @param credentials Authorizes the requests, or null to send them without credentials.
+   * @param rootUrl The root URL of the API, ending with a slash.
+   * @return A new client.
+   */
+  public static AsyncBmClient fromConfig(AsyncTransport transport, CredentialManager credentials,
+      String rootUrl) {
+    long baseDelayMillis = Math.max(1, BotConfig.getLong(PROP_BASE_DELAY_MS,
+        DEFAULT_BASE_DELAY_MS));
+    long maxDelayMillis = Math.max(1, BotConfig.getLong(PROP_MAX_DELAY_MS,
+        DEFAULT_MAX_DELAY_MS));
+    int maxRetries = Math.max(0, BotConfig.getInt(PROP_MAX_RETRIES, DEFAULT_MAX_RETRIES));
+    int eventMaxRetries = Math.max(0, BotConfig.getInt(PROP_EVENT_MAX_RETRIES,
+        DEFAULT_EVENT_MAX_RETRIES));
+
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("bm-api-timer").setDaemon(true).build());
+
+    return new AsyncBmClient(transport, credentials, rootUrl, scheduler,
+        RateLimiter.fromConfig(), RetryBudget.fromConfig(), CircuitBreaker.fromConfig(),
+        () -> new DecorrelatedJitterBackOff(baseDelayMillis, maxDelayMillis, maxRetries),
+        () -> new DecorrelatedJitterBackOff(baseDelayMillis, maxDelayMillis, eventMaxRetries));
+  }
+
+  /**
+   * Posts a message to a conversation, delaying it if the rate limits require.
+   *
+   * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   * @param message The serialized BusinessMessagesMessage.
+   * @param deadlineNanos When the message stops being worth posting, from
+   *     {@link System#nanoTime()}.
+   * @return Completes once the message was accepted.
+   */
+  public CompletableFuture<Void> createMessage(String conversationId, byte[] message,
+      long deadlineNanos) {
+    Call call = new Call(messages, conversationUrl(conversationId) + "/messages", message,
+        deadlineNanos);
+    long remaining = deadlineNanos - System.nanoTime();
+
+    // An expired message fails when it starts, without using up a slot
+    long wait = remaining > 0 ? rateLimiter.reserveMessage(conversationId, remaining) : 0;
+
+    if (wait > 0) {
+      rateLimitWait.recordNanos(wait);
+    }
+
+    return call.start(wait);
+  }
+
+  /**
+   * Posts an event to a conversation. Events are dropped rather than delayed by the rate limits
+   * and are shed first when the API is failing.
+   *
+   * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   * @param eventId The unique ID of the event.
+   * @param event The serialized BusinessMessagesEvent.
+   * @param deadlineNanos When the event stops being worth posting, from
+   *     {@link System#nanoTime()}.
+   * @return Completes once the event was accepted.
+   */
+  public CompletableFuture<Void> createEvent(String conversationId, String eventId,
+      byte[] event, long deadlineNanos) {
+    Call call = new Call(events, conversationUrl(conversationId) + "/events?eventId="
+        + CharEscapers.escapeUri(eventId), event, deadlineNanos);
+
+    return call.start(rateLimiter.tryEvent(conversationId) ? 0 : -1);
+  }
+
+  private CompletableFuture<String> authorization() {
+    return credentials == null
+        ? CompletableFuture.completedFuture(null)
+        : credentials.getAccessTokenAsync().thenApply(token -> "Bearer " + token);
+  }
+
+  private String conversationUrl(String conversationId) {
+    return rootUrl + "v1/conversations/" + CharEscapers.escapeUriPath(conversationId);
+  }
+
+  /**
+   * @return Whether a failure means the API is unavailable, rather than that the request was
+   *     rejected.
+   */
+  private static boolean isUnavailable(Throwable error) {
+    if (error instanceof ApiCallException) {
+      ApiCallException apiError = (ApiCallException) error;
+
+      return apiError.isServerError() || apiError.getStatusCode() == HTTP_TOO_MANY_REQUESTS;
+    }
+
+    return error instanceof IOException && !(error instanceof CircuitOpenException)
+        && !(error instanceof RateLimitedException)
+        && !(error instanceof DeadlineExceededException);
+  }
+
+  /**
+   * What differs between messages and events: their priority, retries and counters.
+   */
+  private static final class CallKind {
+
+    private final CircuitBreaker.Priority priority;
+    private final Supplier<BackOff> backOff;
+    private final Counter retries;
+    private final Counter shed;
+    private final Counter rateLimited;
+    private final Counter expired;
+
+    CallKind(String call, CircuitBreaker.Priority priority, Supplier<BackOff> backOff) {
+      MetricsRegistry metrics = MetricsRegistry.getDefault();
+
+      this.priority = priority;
+      this.backOff = backOff;
+      this.retries = metrics.counter("bm_api_retries_total",
+          "Retries of failed Business Messages API calls.", "call", call);
+      this.shed = metrics.counter("bm_api_shed_total",
+          "Business Messages API calls refused by the circuit breaker.", "call", call);
+      this.rateLimited = metrics.counter("bm_ratelimit_dropped_total",
+          "Calls dropped because the rate limits would have delayed them for too long.",
+          "call", call);
+      this.expired = metrics.counter("bm_stale_dropped_total",
+          "Work dropped because the event it was for had become too old to matter.",
+          "item", call);
+    }
+  }
+
+  /**
+   * A single API call and its retries.
+   */
+  private final class Call {
+
+    private final CallKind kind;
+    private final String url;
+    private final byte[] body;
+    private final long deadlineNanos;
+    private final BackOff backOff;
+    private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+    Call(CallKind kind, String url, byte[] body, long deadlineNanos) {
+      this.kind = kind;
+      this.url = url;
+      this.body = body;
+      this.deadlineNanos = deadlineNanos;
+      this.backOff = kind.backOff.get();
+    }
+
+    /**
+     * Makes the first attempt.
+     *
+     * @param delayNanos How long the rate limits delay the call, or -1 to drop it.
+     * @return Completes once the call succeeded or finally failed.
+     */
+    CompletableFuture<Void> start(long delayNanos) {
+      if (delayNanos < 0) {
+        kind.rateLimited.increment();
+        result.completeExceptionally(new RateLimitedException());
+        return result;
+      }
+
+      if (expire()) {
+        return result;
+      }
+
+      retryBudget.onCall();
+
+      if (delayNanos == 0) {
+        attempt();
+        return result;
+      }
+
+      try {
+        scheduler.schedule(this::attempt, delayNanos, TimeUnit.NANOSECONDS);
+      } catch (RejectedExecutionException e) {
+        result.completeExceptionally(e);
+      }
+
+      return result;
+    }
+
+    private void attempt() {
+      if (expire()) {
+        return;
+      }
+
+      if (!breaker.allow(kind.priority)) {
+        kind.shed.increment();
+        result.completeExceptionally(new CircuitOpenException(breaker.getState()));
+        return;
+      }
+
+      authorization()
+          .thenCompose(authorization -> transport.post(url, authorization, body,
+              TimeUnit.NANOSECONDS.toMillis(Math.max(0, deadlineNanos - System.nanoTime())) + 1))
+          .whenComplete((ignored, error) -> onComplete(
+              error instanceof CompletionException ? error.getCause() : error));
+    }
+
+    private void onComplete(Throwable error) {
+      // IDs are derived from the inbound event, a conflict means an earlier attempt or an
+      // earlier delivery of the same event already posted this reply
+      if (error == null || (error instanceof ApiCallException
+          && ((ApiCallException) error).getStatusCode() == HTTP_CONFLICT)) {
+        breaker.onSuccess();
+        result.complete(null);
+        return;
+      }
+
+      if (!isUnavailable(error)) {
+        breaker.onSuccess();
+        result.completeExceptionally(error);
+        return;
+      }
+
+      // Timeouts shortened to fit the deadline say little about the health of the API
+      if (System.nanoTime() - deadlineNanos >= 0) {
+        kind.expired.increment();
+        result.completeExceptionally(error);
+        return;
+      }
+
+      breaker.onFailure();
+
+      long delay;
+      try {
+        delay = backOff.nextBackOffMillis();
+      } catch (IOException e) {
+        delay = BackOff.STOP;
+      }
+
+      if (delay == BackOff.STOP) {
+        result.completeExceptionally(error);
+        return;
+      }
+
+      // A retry that could only start after the deadline is not worth a slot in the budget
+      if (System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay) - deadlineNanos >= 0) {
+        kind.expired.increment();
+        result.completeExceptionally(error);
+        return;
+      }
+
+      if (!retryBudget.tryRetry()) {
+        budgetExhausted.increment();
+        result.completeExceptionally(error);
+        return;
+      }
+
+      kind.retries.increment();
+
+      try {
+        scheduler.schedule(this::attempt, delay, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+        result.completeExceptionally(error);
+      }
+    }
+
+    /**
+     * Fails the call if its deadline has passed.
+     *
+     * @return Whether the call was dropped.
+     */
+    private boolean expire() {
+      if (System.nanoTime() - deadlineNanos < 0) {
+        return false;
+      }
+
+      kind.expired.increment();
+      result.completeExceptionally(new DeadlineExceededException());
+      return true;
+    }
+  }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.outbound;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Posts JSON requests to the Business Messages API without holding the caller's thread for the
+ * duration of the call.
+ *
+ * Calls are started from request threads, workers and the timer that schedules delayed calls and
+ * retries, so implementations must not block the calling thread on the network.
+ */
+public interface AsyncTransport {
+
+  /**
+   * Posts a JSON body.
+   *
+   * @param url The URL to post to.
+   * @param authorization The value of the Authorization header, or null to send none.
+   * @param body The serialized JSON body.
+   * @param timeoutMillis How long the call may take, at most, before it fails.
+   * @return Completes once the API accepted the request, or exceptionally with an
+   *     {@link ApiCallException} if it answered with an error status.
+   */
+  CompletableFuture<Void> post(String url, String authorization, byte[] body,
+      long timeoutMillis);
+
+  /**
+   * Releases the connections and threads of the transport.
+   */
+  void shutdown();
+}
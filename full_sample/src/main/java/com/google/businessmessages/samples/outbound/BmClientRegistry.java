@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.outbound;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.http.apache.v2.ApacheHttpTransport;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.businessmessages.v1.Businessmessages;
+import com.google.businessmessages.samples.async.ExecutorMode;
+import com.google.businessmessages.samples.async.VirtualThreads;
+import com.google.businessmessages.samples.async.WorkQueue;
+import com.google.businessmessages.samples.auth.AuthMode;
+import com.google.businessmessages.samples.auth.CredentialManager;
+import com.google.businessmessages.samples.auth.GoogleCredentialTokenSource;
+import com.google.businessmessages.samples.auth.SelfSignedJwtTokenSource;
+import com.google.businessmessages.samples.config.BotConfig;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+/**
+ * Holds the asynchronous Business Messages client shared by every servlet instance in the process.
+ *
+ * The client is created on first use, together with its credentials, on top of an HTTP transport
+ * that keeps connections to the API alive and reuses them across requests. Idle connections are
+ * closed in the background. The client and credentials are thread-safe.
+ *
+ * The pooled transport uses Apache HttpClient 4.5, whose default socket factory verifies the host
+ * name of the API against its certificate.
+ */
+public final class BmClientRegistry {
+
+  private static final Logger logger = Logger.getLogger(BmClientRegistry.class.getName());
+
+  // System properties used to configure the connection pool
+  public static final String PROP_MAX_CONNECTIONS = "bm.http.maxConnections";
+  public static final String PROP_MAX_CONNECTIONS_PER_ROUTE = "bm.http.maxConnectionsPerRoute";
+  public static final String PROP_IDLE_TIMEOUT_MS = "bm.http.idleTimeoutMs";
+  public static final String PROP_ROOT_URL = "bm.api.rootUrl";
+  public static final String PROP_AUTH_MODE = "bm.auth.mode";
+  public static final String PROP_TRANSPORT = "bm.http.transport";
+  public static final String PROP_HTTP2_THREADS = "bm.http.http2Threads";
+
+  private static final int DEFAULT_MAX_CONNECTIONS = 100;
+  private static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+  private static final long DEFAULT_IDLE_TIMEOUT_MS = 60000;
+  private static final int DEFAULT_HTTP2_THREADS = 2;
+
+  // Only present when the java11 build profile is active
+  private static final String HTTP2_TRANSPORT_CLASS =
+      "com.google.businessmessages.samples.outbound.Http2AsyncTransport";
+
+  private static final String BM_SCOPE = "https://www.googleapis.com/auth/businessmessages";
+
+  private static volatile BmClientRegistry instance;
+
+  private final PoolingHttpClientConnectionManager connectionManager;
+  private final ApacheHttpTransport transport;
+  private final CredentialManager credentials;
+  private final AsyncBmClient asyncClient;
+
+  private BmClientRegistry() {
+    int maxConnections = Math.max(1, BotConfig.getInt(PROP_MAX_CONNECTIONS,
+        DEFAULT_MAX_CONNECTIONS));
+    int maxConnectionsPerRoute = Math.max(1, BotConfig.getInt(PROP_MAX_CONNECTIONS_PER_ROUTE,
+        DEFAULT_MAX_CONNECTIONS_PER_ROUTE));
+    long idleTimeoutMillis = Math.max(1, BotConfig.getLong(PROP_IDLE_TIMEOUT_MS,
+        DEFAULT_IDLE_TIMEOUT_MS));
+
+    this.connectionManager = new PoolingHttpClientConnectionManager();
+    connectionManager.setMaxTotal(maxConnections);
+    connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+
+    CloseableHttpClient httpClient = HttpClientBuilder.create()
+        .setConnectionManager(connectionManager)
+        .useSystemProperties()
+        .disableRedirectHandling()
+        // Retries are decided by the callers, not the connection layer
+        .disableAutomaticRetries()
+        .build();
+
+    this.transport = new ApacheHttpTransport(httpClient);
+    this.credentials = initCredentials();
+
+    String rootUrl = BotConfig.getString(PROP_ROOT_URL, Businessmessages.DEFAULT_ROOT_URL);
+    this.asyncClient = AsyncBmClient.fromConfig(createAsyncTransport(maxConnectionsPerRoute),
+        credentials,
+        rootUrl.endsWith("/") ? rootUrl : rootUrl + "/");
+
+    startIdleConnectionEviction(idleTimeoutMillis);
+  }
+
+  /**
+   * Returns the shared registry, creating it on first use.
+   *
+   * @return The registry.
+   */
+  public static BmClientRegistry get() {
+    BmClientRegistry result = instance;
+
+    if (result == null) {
+      synchronized (BmClientRegistry.class) {
+        result = instance;
+
+        if (result == null) {
+          logger.info("Initializing Business Messages API");
+
+          result = new BmClientRegistry();
+          instance = result;
+        }
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * @return The shared client that sends messages and events without blocking.
+   */
+  public AsyncBmClient getAsyncClient() {
+    return asyncClient;
+  }
+
+  /**
+   * Initializes credentials used by the Business Messages API. The first access token is fetched
+   * in the background.
+   *
+   * @return The credentials, or null if they could not be loaded.
+   */
+  private CredentialManager initCredentials() {
+    logger.info("Initializing credentials for Business Messages.");
+
+    try {
+      GoogleCredential credential = GoogleCredential
+          .getApplicationDefault(transport, JacksonFactory.getDefaultInstance());
+      AuthMode mode = BotConfig.getEnum(PROP_AUTH_MODE, AuthMode.class, AuthMode.OAUTH);
+
+      if (mode == AuthMode.SELF_SIGNED_JWT) {
+        if (credential.getServiceAccountPrivateKey() != null) {
+          return CredentialManager.fromConfig(new SelfSignedJwtTokenSource(
+              credential.getServiceAccountId(), credential.getServiceAccountPrivateKeyId(),
+              credential.getServiceAccountPrivateKey(), Businessmessages.DEFAULT_ROOT_URL,
+              JacksonFactory.getDefaultInstance()));
+        }
+
+        logger.warning("Self-signed JWTs need service account credentials, using OAuth instead");
+      }
+
+      return CredentialManager.fromConfig(new GoogleCredentialTokenSource(
+          credential.createScoped(Arrays.asList(BM_SCOPE))));
+    } catch (Exception e) {
+      logger.log(Level.SEVERE, "Unable to initialize credentials", e);
+
+      return null;
+    }
+  }
+
+  /**
+   * Creates the transport of the asynchronous client selected by {@link #PROP_TRANSPORT}.
+   *
+   * The HTTP/2 transport is loaded by name since it is only compiled for Java 11 and later. If it
+   * is missing the pooled transport is used instead. The pooled transport makes each call on a
+   * thread of its own, a virtual thread with virtual-thread workers, so that neither workers nor
+   * the timer that retries calls wait on the network.
+   *
+   * @param maxConnectionsPerRoute The number of connections to the API, and of platform threads
+   *     making calls over them.
+   * @return The transport.
+   */
+  private AsyncTransport createAsyncTransport(int maxConnectionsPerRoute) {
+    TransportMode mode = BotConfig.getEnum(PROP_TRANSPORT, TransportMode.class,
+        TransportMode.POOLED);
+
+    if (mode == TransportMode.HTTP2) {
+      int threads = Math.max(1, BotConfig.getInt(PROP_HTTP2_THREADS, DEFAULT_HTTP2_THREADS));
+
+      try {
+        return Class.forName(HTTP2_TRANSPORT_CLASS)
+            .asSubclass(AsyncTransport.class)
+            .getConstructor(int.class)
+            .newInstance(threads);
+      } catch (ReflectiveOperationException | LinkageError e) {
+        logger.log(Level.WARNING, "HTTP/2 transport is not available, using the pool instead", e);
+      }
+    }
+
+    ExecutorService callThreads = WorkQueue.getConfiguredMode() == ExecutorMode.VIRTUAL
+        ? VirtualThreads.newPerTaskExecutor("bm-http-")
+        : null;
+
+    // Calls beyond the connection pool would only wait for a connection, they wait here instead
+    if (callThreads == null) {
+      callThreads = Executors.newFixedThreadPool(maxConnectionsPerRoute,
+          new ThreadFactoryBuilder().setNameFormat("bm-http-%d").setDaemon(true).build());
+    }
+
+    return new PooledAsyncTransport(transport, callThreads);
+  }
+
+  /**
+   * Periodically closes pooled connections that have been idle for longer than the timeout.
+   *
+   * @param idleTimeoutMillis How long a connection may stay idle in the pool.
+   */
+  private void startIdleConnectionEviction(long idleTimeoutMillis) {
+    ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("bm-http-evictor").setDaemon(true).build());
+
+    long period = Math.max(1000, idleTimeoutMillis / 2);
+    evictor.scheduleWithFixedDelay(() -> {
+      connectionManager.closeExpiredConnections();
+      connectionManager.closeIdleConnections(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+    }, period, period, TimeUnit.MILLISECONDS);
+  }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.outbound;
+
+import com.google.businessmessages.samples.config.BotConfig;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops calls to the Business Messages API while most of them fail.
+ *
+ * Outcomes are counted in a sliding window of one second buckets. When the share of failures
+ * reaches the shedding threshold, low priority calls such as typing events are refused so that
+ * the remaining capacity goes to messages. When it reaches the open threshold, every call fails
+ * fast for a while. After that a single probe is let through, and its outcome decides whether the
+ * breaker closes again or stays open.
+ */
+public final class CircuitBreaker {
+
+  // System properties used to configure the breaker
+  public static final String PROP_WINDOW_SECONDS = "bm.breaker.windowSeconds";
+  public static final String PROP_MIN_CALLS = "bm.breaker.minCalls";
+  public static final String PROP_SHED_PERCENT = "bm.breaker.shedPercent";
+  public static final String PROP_OPEN_PERCENT = "bm.breaker.openPercent";
+  public static final String PROP_OPEN_MS = "bm.breaker.openMs";
+
+  private static final int DEFAULT_WINDOW_SECONDS = 10;
+  private static final int DEFAULT_MIN_CALLS = 20;
+  private static final int DEFAULT_SHED_PERCENT = 25;
+  private static final int DEFAULT_OPEN_PERCENT = 50;
+  private static final long DEFAULT_OPEN_MS = 5000;
+
+  /**
+   * The state of the breaker.
+   */
+  public enum State {
+    /** All calls are allowed. */
+    CLOSED,
+    /** Only high priority calls are allowed. */
+    SHEDDING,
+    /** No calls are allowed. */
+    OPEN,
+    /** A single high priority call is allowed to probe whether the API has recovered. */
+    HALF_OPEN
+  }
+
+  /**
+   * How important a call is. Low priority calls are shed first.
+   */
+  public enum Priority {
+    HIGH,
+    LOW
+  }
+
+  private final int minCalls;
+  private final int shedPercent;
+  private final int openPercent;
+  private final long openNanos;
+
+  // Guarded by this
+  private final long[] bucketSeconds;
+  private final int[] successes;
+  private final int[] failures;
+  private State state = State.CLOSED;
+  private long openedAt;
+  private long probeStartedAt;
+  private boolean probing;
+
+  /**
+   * Creates a closed breaker.
+   *
+   * @param windowSeconds How many seconds of outcomes the error rate is computed over.
+   * @param minCalls The number of calls in the window below which the breaker stays closed.
+   * @param shedPercent The share of failures, in percent, at which low priority calls are shed.
+   * @param openPercent The share of failures, in percent, at which the breaker opens.
+   * @param openMillis How long the breaker stays open before probing.
+   */
+  public CircuitBreaker(int windowSeconds, int minCalls, int shedPercent, int openPercent,
+      long openMillis) {
+    this.minCalls = minCalls;
+    this.shedPercent = shedPercent;
+    this.openPercent = openPercent;
+    this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+    this.bucketSeconds = new long[windowSeconds];
+    this.successes = new int[windowSeconds];
+    this.failures = new int[windowSeconds];
+  }
+
+  /**
+   * Creates a breaker from the {@code bm.breaker.*} system properties.
+   *
+   * @return A new breaker.
+   */
+  public static CircuitBreaker fromConfig() {
+    return new CircuitBreaker(
+        Math.max(1, BotConfig.getInt(PROP_WINDOW_SECONDS, DEFAULT_WINDOW_SECONDS)),
+        Math.max(1, BotConfig.getInt(PROP_MIN_CALLS, DEFAULT_MIN_CALLS)),
+        Math.max(1, BotConfig.getInt(PROP_SHED_PERCENT, DEFAULT_SHED_PERCENT)),
+        Math.max(1, BotConfig.getInt(PROP_OPEN_PERCENT, DEFAULT_OPEN_PERCENT)),
+        Math.max(1, BotConfig.getLong(PROP_OPEN_MS, DEFAULT_OPEN_MS)));
+  }
+
+  /**
+   * Decides whether a call may be made. Every allowed call must report its outcome.
+   *
+   * @param priority The priority of the call.
+   * @return Whether the call may be made.
+   */
+  public synchronized boolean allow(Priority priority) {
+    long now = System.nanoTime();
+
+    if (state == State.OPEN) {
+      if (now - openedAt < openNanos) {
+        return false;
+      }
+
+      state = State.HALF_OPEN;
+      probing = false;
+    }
+
+    if (state == State.HALF_OPEN) {
+      // A probe that never reported back must not keep the breaker half open forever
+      if (priority == Priority.LOW || (probing && now - probeStartedAt < openNanos)) {
+        return false;
+      }
+
+      probing = true;
+      probeStartedAt = now;
+      return true;
+    }
+
+    updateState(now);
+
+    return state == State.CLOSED || priority == Priority.HIGH;
+  }
+
+  /**
+   * Records a call that reached a healthy API.
+   */
+  public synchronized void onSuccess() {
+    if (state == State.HALF_OPEN) {
+      probing = false;
+      state = State.CLOSED;
+      clearWindow();
+      return;
+    }
+
+    if (state != State.OPEN) {
+      long now = System.nanoTime();
+      successes[bucket(now)]++;
+      updateState(now);
+    }
+  }
+
+  /**
+   * Records a call that failed because the API is unavailable or overloaded.
+   */
+  public synchronized void onFailure() {
+    long now = System.nanoTime();
+
+    if (state == State.HALF_OPEN) {
+      probing = false;
+      open(now);
+      return;
+    }
+
+    if (state != State.OPEN) {
+      failures[bucket(now)]++;
+      updateState(now);
+    }
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  private void updateState(long now) {
+    long second = TimeUnit.NANOSECONDS.toSeconds(now);
+    long total = 0;
+    long failed = 0;
+
+    for (int i = 0; i < bucketSeconds.length; i++) {
+      if (second - bucketSeconds[i] < bucketSeconds.length) {
+        total += successes[i] + failures[i];
+        failed += failures[i];
+      }
+    }
+
+    if (total < minCalls) {
+      state = State.CLOSED;
+    } else if (failed * 100 >= total * openPercent) {
+      open(now);
+    } else {
+      state = failed * 100 >= total * shedPercent ? State.SHEDDING : State.CLOSED;
+    }
+  }
+
+  private void open(long now) {
+    state = State.OPEN;
+    openedAt = now;
+    clearWindow();
+  }
+
+  /**
+   * Returns the bucket of the current second, emptying it if it last held an older second.
+   */
+  private int bucket(long now) {
+    long second = TimeUnit.NANOSECONDS.toSeconds(now);
+    int index = (int) Math.floorMod(second, (long) bucketSeconds.length);
+
+    if (bucketSeconds[index] != second) {
+      bucketSeconds[index] = second;
+      successes[index] = 0;
+      failures[index] = 0;
+    }
+
+    return index;
+  }
+
+  private void clearWindow() {
+    for (int i = 0; i < bucketSeconds.length; i++) {
+      successes[i] = 0;
+      failures[i] = 0;
+    }
+  }
+}
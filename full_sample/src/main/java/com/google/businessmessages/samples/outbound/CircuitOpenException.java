@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.outbound;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a call is refused by the {@link CircuitBreaker} without being sent.
+ */
+public final class CircuitOpenException extends IOException {
+
+  /**
+   * Creates an exception.
+   *
+   * @param state The state of the breaker that refused the call.
+   */
+  public CircuitOpenException(CircuitBreaker.State state) {
+    super("Circuit breaker is " + state);
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.outbound;
+
+import com.google.api.client.util.BackOff;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Backs off exponentially with decorrelated jitter: each delay is drawn at random between the
+ * base delay and three times the previous delay, capped at a maximum.
+ *
+ * Compared to jittering a fixed exponential schedule, the delays of callers that failed at the
+ * same moment drift apart quickly, so their retries do not arrive at the API in waves.
+ */
+public final class DecorrelatedJitterBackOff implements BackOff {
+
+  private final long baseMillis;
+  private final long maxMillis;
+  private final int maxRetries;
+
+  private long previousMillis;
+  private int retries;
+
+  /**
+   * Creates a back off.
+   *
+   * @param baseMillis The shortest delay.
+   * @param maxMillis The longest delay.
+   * @param maxRetries The number of delays returned before {@link #STOP}.
+   */
+  public DecorrelatedJitterBackOff(long baseMillis, long maxMillis, int maxRetries) {
+    this.baseMillis = Math.max(1, baseMillis);
+    this.maxMillis = Math.max(this.baseMillis, maxMillis);
+    this.maxRetries = maxRetries;
+    reset();
+  }
+
+  @Override
+  public void reset() {
+    previousMillis = baseMillis;
+    retries = 0;
+  }
+
+  @Override
+  public long nextBackOffMillis() {
+    if (retries >= maxRetries) {
+      return STOP;
+    }
+
+    retries++;
+
+    long upper = Math.min(maxMillis, previousMillis * 3);
+    previousMillis = upper > baseMillis
+        ? ThreadLocalRandom.current().nextLong(baseMillis, upper + 1) : baseMillis;
+
+    return previousMillis;
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.outbound;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Creates the IDs of outbound messages and events.
+ *
+ * IDs are derived from the requestId of the inbound event they answer, what they are and their
+ * position among the replies to that event. A redelivered event that gets past de-duplication
+ * therefore produces the same IDs, and the API rejects the second copy instead of posting it
+ * twice. Events without a requestId get random IDs from a per-thread generator, which unlike
+ * {@link UUID#randomUUID()} does not share a lock between threads.
+ */
+public final class IdGenerator {
+
+  private static final HashFunction hash = Hashing.murmur3_128();
+
+  private IdGenerator() {
+  }
+
+  /**
+   * Derives the ID of a reply.
+   *
+   * @param requestId The requestId of the inbound event, or null.
+   * @param kind What the reply is, for example "message" or an event type.
+   * @param sequence The position of the reply among those of the same kind for the event.
+   * @return A UUID string, the same for the same arguments unless the requestId is null.
+   */
+  public static String derive(String requestId, String kind, int sequence) {
+    if (requestId == null) {
+      return random();
+    }
+
+    String name = requestId + '/' + kind + '/' + sequence;
+    ByteBuffer bytes = ByteBuffer.wrap(
+        hash.hashBytes(name.getBytes(StandardCharsets.UTF_8)).asBytes());
+
+    // Version 5 would claim a SHA-1 hash, mark it as a custom UUID so it cannot collide with
+    // random ones either
+    return toUuid(bytes.getLong(), bytes.getLong(), 0x8000L);
+  }
+
+  /**
+   * @return A random UUID string.
+   */
+  public static String random() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+
+    return toUuid(random.nextLong(), random.nextLong(), 0x4000L);
+  }
+
+  private static String toUuid(long high, long low, long version) {
+    return new UUID((high & ~0xf000L) | version,
+        (low & 0x3fffffffffffffffL) | 0x8000000000000000L).toString();
+  }
+}
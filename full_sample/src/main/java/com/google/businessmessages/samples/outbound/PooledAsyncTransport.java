@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.outbound;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.Json;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Makes blocking calls over a pooled HTTP transport.
+ *
+ * Each call blocks a thread of the given executor for its duration, never the calling thread. The
+ * executor is typically a pool of platform threads as large as the connection pool, or virtual
+ * threads. This works on every Java version.
+ */
+public final class PooledAsyncTransport implements AsyncTransport {
+
+  private final HttpTransport transport;
+  private final HttpRequestFactory requestFactory;
+  private final ExecutorService callThreads;
+
+  /**
+   * Creates a transport.
+   *
+   * @param transport The pooled HTTP transport to send requests over.
+   * @param callThreads The threads that make the calls.
+   */
+  public PooledAsyncTransport(HttpTransport transport, ExecutorService callThreads) {
+    this.transport = transport;
+    this.requestFactory = transport.createRequestFactory();
+    this.callThreads = callThreads;
+  }
+
+  @Override
+  public CompletableFuture<Void> post(String url, String authorization, byte[] body,
+      long timeoutMillis) {
+    CompletableFuture<Void> result = new CompletableFuture<>();
+
+    try {
+      callThreads.execute(() -> call(url, authorization, body, timeoutMillis, result));
+    } catch (RejectedExecutionException e) {
+      result.completeExceptionally(e);
+    }
+
+    return result;
+  }
+
+  private void call(String url, String authorization, byte[] body, long timeoutMillis,
+      CompletableFuture<Void> result) {
+    try {
+      HttpRequest request = requestFactory.buildPostRequest(new GenericUrl(url),
+          new ByteArrayContent(Json.MEDIA_TYPE, body));
+      request.setThrowExceptionOnExecuteError(false);
+      request.setNumberOfRetries(0);
+
+      // Shorten the configured timeouts to what is left of the caller's deadline
+      int timeout = (int) Math.min(Integer.MAX_VALUE, timeoutMillis);
+      request.setConnectTimeout(Math.min(request.getConnectTimeout(), timeout));
+      request.setReadTimeout(Math.min(request.getReadTimeout(), timeout));
+
+      if (authorization != null) {
+        request.getHeaders().setAuthorization(authorization);
+      }
+
+      HttpResponse response = request.execute();
+      try {
+        if (response.isSuccessStatusCode()) {
+          result.complete(null);
+        } else {
+          result.completeExceptionally(
+              new ApiCallException(response.getStatusCode(), response.parseAsString()));
+        }
+      } finally {
+        response.disconnect();
+      }
+    } catch (IOException | RuntimeException e) {
+      result.completeExceptionally(e);
+    }
+  }
+
+  @Override
+  public void shutdown() {
+    callThreads.shutdownNow();
+
+    try {
+      transport.shutdown();
+    } catch (IOException e) {
+      // Best effort, the process is going away
+    }
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.outbound;
+
+import com.google.businessmessages.samples.config.BotConfig;
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps outbound calls within the API quota of the agent and spreads out the replies of each
+ * conversation.
+ *
+ * Every message takes a slot from the bucket of its conversation and from the bucket shared by the
+ * agent. Messages that find a bucket empty are delayed until a slot frees up, rather than sent,
+ * refused with 429 and retried. Typing events are only worth sending right away, and are only
+ * sent while both buckets have a free slot. They do not take it, so they never delay a message.
+ * The bucket of a conversation is forgotten once it has been idle long enough to refill after its
+ * furthest possible reservation, which lies up to the maximum wait ahead, so a conversation never
+ * gets a fresh burst while messages it booked are still waiting.
+ */
+public final class RateLimiter {
+
+  // System properties used to configure the limits
+  public static final String PROP_AGENT_PER_SECOND = "bm.rateLimit.agentPerSecond";
+  public static final String PROP_AGENT_BURST = "bm.rateLimit.agentBurst";
+  public static final String PROP_CONVERSATION_PER_SECOND = "bm.rateLimit.conversationPerSecond";
+  public static final String PROP_CONVERSATION_BURST = "bm.rateLimit.conversationBurst";
+  public static final String PROP_MAX_WAIT_MS = "bm.rateLimit.maxWaitMs";
+
+  private static final int DEFAULT_AGENT_PER_SECOND = 0;
+  private static final int DEFAULT_AGENT_BURST = 20;
+  private static final int DEFAULT_CONVERSATION_PER_SECOND = 2;
+  private static final int DEFAULT_CONVERSATION_BURST = 5;
+  private static final long DEFAULT_MAX_WAIT_MS = 10000;
+
+  private final TokenBucket agentBucket;
+  private final LoadingCache<String, TokenBucket> conversationBuckets;
+  private final long maxWaitNanos;
+
+  /**
+   * Creates a limiter.
+   *
+   * @param agentPerSecond The calls per second allowed for the agent, 0 for no limit.
+   * @param agentBurst The calls the agent can make at once.
+   * @param conversationPerSecond The calls per second allowed for each conversation, 0 for no
+   *     limit.
+   * @param conversationBurst The calls a conversation can make at once.
+   * @param maxWaitMillis How long a message may be delayed before it is dropped.
+   */
+  public RateLimiter(double agentPerSecond, int agentBurst, double conversationPerSecond,
+      int conversationBurst, long maxWaitMillis) {
+    this(agentPerSecond, agentBurst, conversationPerSecond, conversationBurst, maxWaitMillis,
+        Ticker.systemTicker());
+  }
+
+  /**
+   * Creates a limiter whose conversation buckets expire by the given ticker.
+   */
+  RateLimiter(double agentPerSecond, int agentBurst, double conversationPerSecond,
+      int conversationBurst, long maxWaitMillis, Ticker ticker) {
+    this.agentBucket = agentPerSecond > 0 ? new TokenBucket(agentPerSecond, agentBurst) : null;
+    this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+
+    // A reservation is at most the maximum wait ahead, and the bucket refills a burst after it
+    long idleNanos = conversationPerSecond > 0 ? maxWaitNanos
+        + (long) Math.ceil(TimeUnit.SECONDS.toNanos(conversationBurst) / conversationPerSecond)
+        + TimeUnit.SECONDS.toNanos(1) : 0;
+    this.conversationBuckets = conversationPerSecond > 0
+        ? CacheBuilder.newBuilder()
+            .ticker(ticker)
+            .expireAfterAccess(idleNanos, TimeUnit.NANOSECONDS)
+            .build(CacheLoader.from(() -> new TokenBucket(conversationPerSecond,
+                conversationBurst)))
+        : null;
+  }
+
+  /**
+   * Creates a limiter from the {@code bm.rateLimit.*} system properties.
+   *
+   * @return A new limiter.
+   */
+  public static RateLimiter fromConfig() {
+    return new RateLimiter(
+        Math.max(0, BotConfig.getInt(PROP_AGENT_PER_SECOND, DEFAULT_AGENT_PER_SECOND)),
+        Math.max(1, BotConfig.getInt(PROP_AGENT_BURST, DEFAULT_AGENT_BURST)),
+        Math.max(0, BotConfig.getInt(PROP_CONVERSATION_PER_SECOND,
+            DEFAULT_CONVERSATION_PER_SECOND)),
+        Math.max(1, BotConfig.getInt(PROP_CONVERSATION_BURST, DEFAULT_CONVERSATION_BURST)),
+        Math.max(0, BotConfig.getLong(PROP_MAX_WAIT_MS, DEFAULT_MAX_WAIT_MS)));
+  }
+
+  /**
+   * Reserves a slot for a message.
+   *
+   * @param conversationId The conversation the message is posted to.
+   * @param remainingNanos How long until the deadline of the message, which it may not wait
+   *     beyond even if the configured maximum wait allows.
+   * @return How long to delay the message, in nanoseconds, or -1 if it would wait too long.
+   */
+  public long reserveMessage(String conversationId, long remainingNanos) {
+    return reserve(conversationId, Math.min(maxWaitNanos, remainingNanos));
+  }
+
+  /**
+   * Checks whether an event can be sent right away, without taking a slot from the messages.
+   *
+   * @param conversationId The conversation the event is posted to.
+   * @return Whether the event may be sent.
+   */
+  public boolean tryEvent(String conversationId) {
+    return (agentBucket == null || agentBucket.hasFreeSlot())
+        && (conversationBuckets == null
+            || conversationBuckets.getUnchecked(conversationId).hasFreeSlot());
+  }
+
+  private long reserve(String conversationId, long maxWait) {
+    TokenBucket conversationBucket = null;
+    long wait = 0;
+
+    if (conversationBuckets != null) {
+      conversationBucket = conversationBuckets.getUnchecked(conversationId);
+      wait = conversationBucket.reserve(maxWait);
+
+      if (wait < 0) {
+        return -1;
+      }
+    }
+
+    if (agentBucket != null) {
+      long agentWait = agentBucket.reserve(maxWait);
+
+      if (agentWait < 0) {
+        // The message is dropped, it must not use up the conversation's slot either
+        if (conversationBucket != null) {
+          conversationBucket.cancel();
+        }
+
+        return -1;
+      }
+
+      wait = Math.max(wait, agentWait);
+    }
+
+    return wait;
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.outbound;
+
+import com.google.businessmessages.samples.config.BotConfig;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caps retries across the whole process to a percentage of the calls made.
+ *
+ * Every call deposits a fraction of a retry into a shared balance and every retry withdraws a
+ * whole one. While the API is healthy the balance fills up to a small burst allowance. When it
+ * degrades and most calls fail, retries are limited to the configured share of traffic instead
+ * of multiplying the load on the API.
+ */
+public final class RetryBudget {
+
+  // System properties used to configure the budget
+  public static final String PROP_PERCENT = "bm.retry.budgetPercent";
+  public static final String PROP_BURST = "bm.retry.budgetBurst";
+
+  private static final int DEFAULT_PERCENT = 10;
+  private static final int DEFAULT_BURST = 20;
+
+  // The balance is kept in hundredths of a retry so that deposits stay integral
+  private static final long RETRY_COST = 100;
+
+  private final long deposit;
+  private final long maxBalance;
+  private final AtomicLong balance;
+
+  /**
+   * Creates a budget that starts full.
+   *
+   * @param percent The number of retries allowed per hundred calls.
+   * @param burst The number of retries that can be saved up while calls succeed.
+   */
+  public RetryBudget(int percent, int burst) {
+    this.deposit = percent;
+    this.maxBalance = burst * RETRY_COST;
+    this.balance = new AtomicLong(maxBalance);
+  }
+
+  /**
+   * Creates a budget from the {@code bm.retry.budget*} system properties.
+   *
+   * @return A new budget.
+   */
+  public static RetryBudget fromConfig() {
+    return new RetryBudget(
+        Math.max(0, BotConfig.getInt(PROP_PERCENT, DEFAULT_PERCENT)),
+        Math.max(0, BotConfig.getInt(PROP_BURST, DEFAULT_BURST)));
+  }
+
+  /**
+   * Records a first attempt, which earns a share of a retry.
+   */
+  public void onCall() {
+    long current;
+
+    do {
+      current = balance.get();
+
+      if (current >= maxBalance) {
+        return;
+      }
+    } while (!balance.compareAndSet(current, Math.min(maxBalance, current + deposit)));
+  }
+
+  /**
+   * Withdraws a retry from the budget.
+   *
+   * @return Whether the retry may be made.
+   */
+  public boolean tryRetry() {
+    long current;
+
+    do {
+      current = balance.get();
+
+      if (current < RETRY_COST) {
+        return false;
+      }
+    } while (!balance.compareAndSet(current, current - RETRY_COST));
+
+    return true;
+  }
+
+  /**
+   * @return The number of retries that could be made right now.
+   */
+  public double getAvailable() {
+    return balance.get() / (double) RETRY_COST;
+  }
+}
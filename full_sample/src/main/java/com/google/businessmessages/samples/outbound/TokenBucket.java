@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.outbound;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket, implemented with the generic cell rate algorithm.
+ *
+ * Instead of a token count the bucket keeps the theoretical arrival time of the next call, the
+ * time at which it would be allowed if calls arrived exactly at the configured rate. A call
+ * reserves a slot by moving that time forward with a single compare-and-set, so callers never
+ * block each other. A slot in the future can be reserved, which tells the caller how long to wait
+ * rather than refusing the call.
+ */
+public final class TokenBucket {
+
+  private final long intervalNanos;
+  private final long burstNanos;
+  private final AtomicLong arrivalTime;
+
+  /**
+   * Creates a full bucket.
+   *
+   * @param permitsPerSecond The sustained rate of calls.
+   * @param burst The number of calls that can be made at once after a quiet period.
+   */
+  public TokenBucket(double permitsPerSecond, int burst) {
+    this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+    this.burstNanos = intervalNanos * Math.max(0, burst - 1);
+    this.arrivalTime = new AtomicLong(System.nanoTime());
+  }
+
+  /**
+   * Reserves the next slot unless it is further away than the maximum wait.
+   *
+   * @param maxWaitNanos How long the caller is willing to wait.
+   * @return How long to wait before making the call, or -1 if no slot was reserved.
+   */
+  public long reserve(long maxWaitNanos) {
+    long now = System.nanoTime();
+    long current;
+    long next;
+    long wait;
+
+    do {
+      current = arrivalTime.get();
+
+      // Unused capacity is not saved up beyond the burst
+      long start = Math.max(current, now);
+      wait = Math.max(0, start - burstNanos - now);
+
+      if (wait > maxWaitNanos) {
+        return -1;
+      }
+
+      next = start + intervalNanos;
+    } while (!arrivalTime.compareAndSet(current, next));
+
+    return wait;
+  }
+
+  /**
+   * Gives back a slot reserved by {@link #reserve}, for a call that will not be made after all.
+   */
+  public void cancel() {
+    arrivalTime.addAndGet(-intervalNanos);
+  }
+
+  /**
+   * @return Whether a call made now would get a slot without waiting, without reserving it.
+   */
+  public boolean hasFreeSlot() {
+    long now = System.nanoTime();
+
+    return Math.max(arrivalTime.get(), now) - burstNanos - now <= 0;
+  }
+}
@@ -0,0 +1,24 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.outbound;
+
+/**
+ * The HTTP client used for outbound Business Messages API calls.
+ */
+public enum TransportMode {
+  /** Blocking HTTP/1.1 calls over a connection pool, made on the calling thread. */
+  POOLED,
+  /** Non-blocking calls multiplexed over a few HTTP/2 connections. Requires Java 11. */
+  HTTP2
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.outbound;
+
+import com.google.businessmessages.samples.config.BotConfig;
+import com.google.businessmessages.samples.metrics.Counter;
+import com.google.businessmessages.samples.metrics.MetricsRegistry;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.communications.businessmessages.v1.EventType;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decides when typing indicators are sent around a response.
+ *
+ * The TYPING_STARTED event is only sent if the response is not ready within a threshold, and then
+ * from a background thread while the response is still being built. A response that is ready in
+ * time is posted without any typing events. TYPING_STOPPED is redundant once the message lands, so
+ * by default it is only sent if the message could not be posted.
+ *
+ * Events are sent asynchronously. A message never waits on a thread for a typing indicator that is
+ * in flight, it is chained to complete after it instead.
+ *
+ * Once the inbound event is stale, its reply is already late and no TYPING_STARTED is sent for
+ * it. A TYPING_STOPPED is still sent for an indicator that was shown, however late, so that it
+ * does not stay on.
+ */
+public final class TypingIndicatorPolicy {
+
+  private static final Logger logger = Logger.getLogger(TypingIndicatorPolicy.class.getName());
+
+  // System properties used to configure the policy
+  public static final String PROP_ENABLED = "bm.typing.enabled";
+  public static final String PROP_THRESHOLD_MS = "bm.typing.thresholdMs";
+  public static final String PROP_STOP_MODE = "bm.typing.stopMode";
+  public static final String PROP_THREADS = "bm.typing.threads";
+
+  private static final long DEFAULT_THRESHOLD_MS = 500;
+  private static final int DEFAULT_THREADS = 2;
+
+  // How long a TYPING_STOPPED is still tried, it is not bound to the staleness of the event
+  private static final long STOPPED_DEADLINE_MS = 10000;
+
+  /**
+   * When to send TYPING_STOPPED after a typing indicator has been shown.
+   */
+  public enum StopMode {
+    /** Only when the message could not be posted and the indicator would otherwise stay on. */
+    ON_FAILURE,
+    /** Always, in the background after the message has been posted. */
+    ALWAYS
+  }
+
+  /**
+   * Sends a typing event to a conversation.
+   */
+  public interface EventSender {
+    CompletableFuture<Void> sendEvent(String conversationId, String eventId, EventType eventType,
+        long deadlineNanos);
+  }
+
+  private final EventSender sender;
+  private final boolean enabled;
+  private final long thresholdMillis;
+  private final StopMode stopMode;
+  private final ScheduledExecutorService scheduler;
+
+  private final Counter staleSkipped;
+
+  /**
+   * Creates a policy.
+   *
+   * @param sender Sends the typing events.
+   * @param enabled Whether typing indicators are sent at all.
+   * @param thresholdMillis How long a response may take before a typing indicator is shown.
+   * @param stopMode When to send TYPING_STOPPED.
+   * @param threads The number of threads that send typing events.
+   */
+  public TypingIndicatorPolicy(EventSender sender, boolean enabled, long thresholdMillis,
+      StopMode stopMode, int threads) {
+    this.sender = sender;
+    this.enabled = enabled;
+    this.thresholdMillis = thresholdMillis;
+    this.stopMode = stopMode;
+    this.scheduler = Executors.newScheduledThreadPool(threads,
+        new ThreadFactoryBuilder().setNameFormat("bm-typing-%d").setDaemon(true).build());
+    this.staleSkipped = MetricsRegistry.getDefault().counter("bm_stale_dropped_total",
+        "Work dropped because the event it was for had become too old to matter.",
+        "item", "typing");
+  }
+
+  /**
+   * Creates a policy from the {@code bm.typing.*} system properties.
+   *
+   * @param sender Sends the typing events.
+   * @return A new policy.
+   */
+  public static TypingIndicatorPolicy fromConfig(EventSender sender) {
+    return new TypingIndicatorPolicy(sender,
+        BotConfig.getBoolean(PROP_ENABLED, true),
+        Math.max(0, BotConfig.getLong(PROP_THRESHOLD_MS, DEFAULT_THRESHOLD_MS)),
+        BotConfig.getEnum(PROP_STOP_MODE, StopMode.class, StopMode.ON_FAILURE),
+        Math.max(1, BotConfig.getInt(PROP_THREADS, DEFAULT_THREADS)));
+  }
+
+  /**
+   * Starts the typing indicator clock for a response that is about to be built.
+   *
+   * @param conversationId The conversation the response is for.
+   * @param requestId The requestId of the inbound event, from which event IDs are derived, or
+   *     null.
+   * @param staleAtNanos When the inbound event becomes stale, from {@link System#nanoTime()}.
+   * @return The session to notify once the response is ready.
+   */
+  public Session begin(String conversationId, String requestId, long staleAtNanos) {
+    return new Session(conversationId, requestId, staleAtNanos);
+  }
+
+  /**
+   * Stops the background threads.
+   */
+  public void shutdown() {
+    scheduler.shutdownNow();
+  }
+
+  /**
+   * Sends a typing event, logging failures.
+   *
+   * @return Completes once the event was sent or failed.
+   */
+  private CompletableFuture<Void> send(String conversationId, String requestId,
+      EventType eventType, long deadlineNanos) {
+    CompletableFuture<Void> sent;
+
+    try {
+      // Each type of event is sent at most once per response
+      sent = sender.sendEvent(conversationId,
+          IdGenerator.derive(requestId, eventType.toString(), 0), eventType, deadlineNanos);
+    } catch (RuntimeException e) {
+      sent = new CompletableFuture<>();
+      sent.completeExceptionally(e);
+    }
+
+    return sent.handle((ignored, error) -> {
+      Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+
+      if (cause instanceof CircuitOpenException || cause instanceof RateLimitedException) {
+        // Typing events are the first calls dropped while the API is failing or busy
+        logger.fine(() -> eventType + " shed: " + cause.getMessage());
+      } else if (cause != null) {
+        logger.log(Level.WARNING, "Unable to send " + eventType, cause);
+      }
+      return null;
+    });
+  }
+
+  /**
+   * The typing indicator state of a single response.
+   */
+  public final class Session {
+
+    private final String conversationId;
+    private final String requestId;
+    private final long staleAtNanos;
+    private final ScheduledFuture<?> started;
+
+    // Completes once the TYPING_STARTED event was sent, skipped or failed
+    private final CompletableFuture<Void> startedSent = new CompletableFuture<>();
+
+    // Whether TYPING_STARTED was sent rather than skipped as stale
+    private volatile boolean startedShown;
+
+    private Session(String conversationId, String requestId, long staleAtNanos) {
+      this.conversationId = conversationId;
+      this.requestId = requestId;
+      this.staleAtNanos = staleAtNanos;
+      this.started = enabled
+          ? scheduler.schedule(this::sendStarted, thresholdMillis, TimeUnit.MILLISECONDS)
+          : null;
+    }
+
+    /**
+     * Sends TYPING_STARTED unless the inbound event is stale.
+     */
+    private void sendStarted() {
+      if (System.nanoTime() - staleAtNanos >= 0) {
+        staleSkipped.increment();
+        startedSent.complete(null);
+        return;
+      }
+
+      startedShown = true;
+      send(conversationId, requestId, EventType.TYPING_STARTED, staleAtNanos)
+          .whenComplete((ignored, error) -> startedSent.complete(null));
+    }
+
+    /**
+     * Called when the response is ready to be posted.
+     *
+     * Cancels the typing indicator if it has not been sent yet. If it is already in flight, the
+     * message has to be posted after it so that the indicator cannot land after the message.
+     *
+     * @return Completes once the message may be posted.
+     */
+    public CompletableFuture<Void> responseReady() {
+      if (started == null || started.cancel(false)) {
+        return CompletableFuture.completedFuture(null);
+      }
+
+      return startedSent;
+    }
+
+    /**
+     * Called when no response will be posted, for example because building it failed. Cancels the
+     * typing indicator, or stops it once it has been sent.
+     */
+    public void responseAbandoned() {
+      responseReady().thenRun(() -> responseSent(false));
+    }
+
+    /**
+     * Called after the response has been posted, or failed to post.
+     *
+     * Sends TYPING_STOPPED if a TYPING_STARTED was sent, even once the inbound event is stale.
+     *
+     * @param delivered Whether the message was accepted by the API.
+     */
+    public void responseSent(boolean delivered) {
+      if (!startedShown) {
+        return;
+      }
+
+      if (!delivered || stopMode == StopMode.ALWAYS) {
+        scheduler.execute(() -> send(conversationId, requestId, EventType.TYPING_STOPPED,
+            System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STOPPED_DEADLINE_MS)));
+      }
+    }
+  }
+}
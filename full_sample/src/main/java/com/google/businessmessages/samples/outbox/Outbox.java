@@ -0,0 +1,677 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.outbox;
+
+import com.google.businessmessages.samples.config.BotConfig;
+import com.google.businessmessages.samples.metrics.Counter;
+import com.google.businessmessages.samples.metrics.LatencyHistogram;
+import com.google.businessmessages.samples.metrics.MetricsRegistry;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A durable record of the events whose webhooks are acknowledged before their replies are sent.
+ *
+ * Accepted events are appended to a memory-mapped, append-only log, and the webhook is only
+ * acknowledged once the record is on disk. A single thread syncs the log. Events accepted while a
+ * sync is in progress are made durable together by the next one, so under load one sync is shared
+ * by a whole batch of events rather than paid by each. An entry is marked done once its event has
+ * been handled, and the entries that were not are replayed when the outbox is opened again after
+ * a restart.
+ *
+ * Opening the outbox compacts the log: the pending entries are copied to a new file, which then
+ * atomically replaces the log. Once the log is three quarters full the sync thread compacts it in
+ * the background. The new file is written without holding the lock, so events are still accepted
+ * and marked done meanwhile, and only the records appended since are copied over under it. The
+ * mapping of the replaced log is released right away where the runtime allows it. An event that
+ * finds the log full waits for the compaction, within its sync timeout.
+ *
+ * Each record is framed by its length and a CRC32 of its contents, so that a record torn by a
+ * crash ends the replay instead of being misread.
+ */
+public final class Outbox {
+
+  private static final Logger logger = Logger.getLogger(Outbox.class.getName());
+
+  // System properties used to configure the outbox
+  public static final String PROP_PATH = "bm.outbox.path";
+  public static final String PROP_FILE_BYTES = "bm.outbox.fileBytes";
+  public static final String PROP_SYNC_TIMEOUT_MS = "bm.outbox.syncTimeoutMs";
+
+  private static final int DEFAULT_FILE_BYTES = 64 * 1024 * 1024;
+  private static final long DEFAULT_SYNC_TIMEOUT_MS = 1000;
+
+  private static final byte ACCEPTED = 1;
+  private static final byte DONE = 2;
+
+  // Length and CRC32 in front of each record
+  private static final int FRAME_BYTES = 8;
+
+  private final Path path;
+  private final int fileBytes;
+  private final long syncTimeoutMillis;
+  private final Thread syncer;
+  private final List<Entry> recovered;
+
+  private final Counter appends;
+  private final Counter syncs;
+  private final Counter syncTimeouts;
+  private final Counter compactions;
+  private final LatencyHistogram syncLatency;
+
+  // Guarded by this
+  private MappedByteBuffer log;
+  private final Map<Long, byte[]> pending = new LinkedHashMap<>();
+  // Done marks that did not fit in a full log, written to the compacted one
+  private final List<byte[]> deferred = new ArrayList<>();
+  // Room a record that did not fit needs in the compacted log
+  private int reserveBytes;
+  private long nextSequence;
+  private long written;
+  private long synced;
+  private boolean closed;
+
+  private volatile int pendingCount;
+
+  /**
+   * Opens the outbox, compacting the log and keeping its pending entries for {@link #recover()}.
+   *
+   * @param path The log file, created if it does not exist.
+   * @param fileBytes The size of the log, which is compacted when full.
+   * @param syncTimeoutMillis How long accepting an event may wait for the log to be synced.
+   * @throws IOException If the log cannot be read or written.
+   */
+  public Outbox(Path path, int fileBytes, long syncTimeoutMillis) throws IOException {
+    this.path = path;
+    this.fileBytes = fileBytes;
+    this.syncTimeoutMillis = syncTimeoutMillis;
+
+    MetricsRegistry metrics = MetricsRegistry.getDefault();
+    this.appends = metrics.counter("bm_outbox_appends_total",
+        "Events recorded in the outbox before their webhook was acknowledged.");
+    this.syncs = metrics.counter("bm_outbox_syncs_total",
+        "Syncs of the outbox log, each making a batch of events durable.");
+    this.syncTimeouts = metrics.counter("bm_outbox_sync_timeouts_total",
+        "Events refused because the outbox log was not synced in time.");
+    this.compactions = metrics.counter("bm_outbox_compactions_total",
+        "Rewrites of the outbox log keeping only its pending entries.");
+    this.syncLatency = metrics.histogram("bm_outbox_sync_seconds",
+        "Time to sync the outbox log.");
+    metrics.gauge("bm_outbox_pending", "Events in the outbox that were not handled yet.",
+        () -> pendingCount);
+
+    List<Entry> entries = new ArrayList<>();
+
+    synchronized (this) {
+      if (Files.exists(path)) {
+        read(entries);
+      }
+
+      List<byte[]> records = new ArrayList<>(pending.values());
+      log = create(records, compactedSize(records, 0));
+      replace(log);
+      compactions.increment();
+    }
+
+    this.recovered = Collections.unmodifiableList(entries);
+    this.syncer = new Thread(this::syncLoop, "bm-outbox-sync");
+    syncer.setDaemon(true);
+    syncer.start();
+
+    if (!entries.isEmpty()) {
+      logger.info("Recovered " + entries.size() + " pending events from the outbox");
+    }
+  }
+
+  /**
+   * Opens the outbox configured by the {@code bm.outbox.*} system properties.
+   *
+   * @return The outbox, or null if no log file is configured.
+   * @throws IOException If the log cannot be read or written.
+   */
+  public static Outbox fromConfig() throws IOException {
+    String path = BotConfig.getString(PROP_PATH, null);
+
+    if (path == null || path.isEmpty()) {
+      return null;
+    }
+
+    return new Outbox(Paths.get(path),
+        Math.max(4096, BotConfig.getInt(PROP_FILE_BYTES, DEFAULT_FILE_BYTES)),
+        Math.max(1, BotConfig.getLong(PROP_SYNC_TIMEOUT_MS, DEFAULT_SYNC_TIMEOUT_MS)));
+  }
+
+  /**
+   * @return The entries that were not done when the outbox was opened, in the order they were
+   *     accepted. They stay pending until they are marked done.
+   */
+  public List<Entry> recover() {
+    return recovered;
+  }
+
+  /**
+   * Records an event and waits until the record is durable.
+   *
+   * @param conversationId The conversation ID of the event.
+   * @param requestId The requestId of the event.
+   * @param text The text of the message or tapped suggestion.
+   * @param postbackData The postback data of the tapped suggestion, or null.
+   * @param receivedAtMillis When the event was received, from {@link System#currentTimeMillis()}.
+   * @return The sequence number of the entry, to mark it done with.
+   * @throws IOException If the record could not be made durable in time. The entry is then
+   *     marked done, and the event should be redelivered.
+   */
+  public synchronized long accept(String conversationId, String requestId, String text,
+      String postbackData, long receivedAtMillis) throws IOException {
+    if (closed) {
+      throw new IOException("The outbox is closed");
+    }
+
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(syncTimeoutMillis);
+    long sequence = nextSequence++;
+    byte[] record = encode(ACCEPTED, sequence, receivedAtMillis, conversationId, requestId, text,
+        postbackData);
+
+    try {
+      // The sync thread makes room in a full log
+      while (!append(record)) {
+        await(deadline, "Timed out waiting for the outbox to be compacted");
+      }
+
+      pending.put(sequence, record);
+      pendingCount = pending.size();
+      appends.increment();
+
+      long ticket = ++written;
+      notifyAll();
+
+      while (synced < ticket) {
+        try {
+          await(deadline, "Timed out waiting for the outbox to be synced");
+        } catch (IOException e) {
+          markDone(sequence);
+          throw e;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      markDone(sequence);
+      throw new InterruptedIOException("Interrupted waiting for the outbox to be synced");
+    }
+
+    return sequence;
+  }
+
+  /**
+   * Marks an entry done, so that it is not replayed. The mark becomes durable with the next sync,
+   * an entry replayed because the mark was lost only repeats replies with the same IDs.
+   *
+   * @param sequence The sequence number returned by {@link #accept}.
+   */
+  public synchronized void markDone(long sequence) {
+    if (pending.remove(sequence) == null) {
+      return;
+    }
+
+    pendingCount = pending.size();
+
+    if (closed) {
+      return;
+    }
+
+    byte[] record = encode(DONE, sequence, 0, null, null, null, null);
+
+    if (!append(record)) {
+      deferred.add(record);
+    }
+  }
+
+  /**
+   * Syncs the log a last time and stops the sync thread.
+   */
+  public void close() {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+
+      closed = true;
+      notifyAll();
+    }
+
+    try {
+      syncer.join(TimeUnit.SECONDS.toMillis(10));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    synchronized (this) {
+      log.force();
+    }
+  }
+
+  /**
+   * Syncs the log whenever events are waiting for it. Events accepted during a sync are covered by
+   * the next one.
+   */
+  private void syncLoop() {
+    try {
+      for (;;) {
+        MappedByteBuffer target;
+        long ticket;
+        List<byte[]> snapshot = null;
+        int snapshotEnd = 0;
+        int size = 0;
+
+        synchronized (this) {
+          while (synced == written && !compactionDue() && !closed) {
+            wait();
+          }
+
+          if (closed) {
+            return;
+          }
+
+          target = log;
+          ticket = written;
+
+          if (compactionDue()) {
+            snapshot = new ArrayList<>(pending.values());
+            snapshotEnd = log.position();
+            // Whatever is appended until the switch has to fit too
+            size = compactedSize(snapshot, log.capacity() - snapshotEnd + reserveBytes);
+          }
+        }
+
+        if (snapshot != null) {
+          compact(target, snapshot, snapshotEnd, size);
+          continue;
+        }
+
+        long start = System.nanoTime();
+        target.force();
+        syncLatency.recordSince(start);
+        syncs.increment();
+
+        synchronized (this) {
+          synced = Math.max(synced, ticket);
+          notifyAll();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IOException | RuntimeException e) {
+      logger.log(Level.SEVERE, "Outbox sync failed, events are no longer accepted", e);
+
+      synchronized (this) {
+        closed = true;
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Appends a record if it fits, and wakes the sync thread once the log has to be compacted.
+   *
+   * @return Whether the record was appended.
+   */
+  private boolean append(byte[] record) {
+    boolean fits = log.remaining() >= record.length;
+
+    if (fits) {
+      log.put(record);
+    } else {
+      reserveBytes = Math.max(reserveBytes, record.length);
+    }
+
+    if (compactionDue()) {
+      notifyAll();
+    }
+
+    return fits;
+  }
+
+  private boolean compactionDue() {
+    return reserveBytes > 0 || log.remaining() < log.capacity() / 4;
+  }
+
+  /**
+   * Waits on the lock until notified or the deadline passes.
+   *
+   * @param message The message of the exception thrown once the deadline passed.
+   * @throws IOException If the deadline passed or the outbox was closed.
+   */
+  private void await(long deadline, String message) throws IOException, InterruptedException {
+    long remaining = deadline - System.nanoTime();
+
+    if (remaining <= 0 || closed) {
+      syncTimeouts.increment();
+      throw new IOException(message);
+    }
+
+    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+  }
+
+  /**
+   * Replaces the log with a new file holding only the pending entries, and makes it durable. Runs
+   * on the sync thread, holding the lock only to copy the records appended since the snapshot and
+   * to switch to the new file.
+   *
+   * @param old The log the snapshot was taken from.
+   * @param snapshot The records pending when the snapshot was taken.
+   * @param snapshotEnd The position of the log when the snapshot was taken.
+   * @param size The size of the new file.
+   */
+  private void compact(MappedByteBuffer old, List<byte[]> snapshot, int snapshotEnd, int size)
+      throws IOException {
+    MappedByteBuffer next = create(snapshot, size);
+    long ticket;
+
+    synchronized (this) {
+      ByteBuffer appended = old.duplicate();
+      appended.limit(old.position()).position(snapshotEnd);
+      next.put(appended);
+
+      for (byte[] record : deferred) {
+        next.put(record);
+      }
+
+      deferred.clear();
+      reserveBytes = 0;
+      log = next;
+      ticket = written;
+
+      // Records appended from now on are acknowledged once the new file has replaced the log
+      notifyAll();
+    }
+
+    replace(next);
+    unmap(old);
+
+    synchronized (this) {
+      // Every pending entry is now durable, and the others are done
+      synced = Math.max(synced, ticket);
+      notifyAll();
+    }
+
+    compactions.increment();
+  }
+
+  /**
+   * @param records The pending records.
+   * @param extraBytes Room needed after them.
+   * @return The size of a compacted log, leaving room to grow so that it is not compacted again
+   *     right away.
+   */
+  private int compactedSize(List<byte[]> records, int extraBytes) {
+    long needed = extraBytes;
+
+    for (byte[] record : records) {
+      needed += record.length;
+    }
+
+    return needed > fileBytes / 2 ? (int) Math.min(Integer.MAX_VALUE, 2 * needed) : fileBytes;
+  }
+
+  /**
+   * Writes records to the start of a new file next to the log, which is not durable yet.
+   */
+  private MappedByteBuffer create(List<byte[]> records, int size) throws IOException {
+    MappedByteBuffer next;
+
+    try (FileChannel channel = FileChannel.open(compactedPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+        StandardOpenOption.WRITE)) {
+      next = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    for (byte[] record : records) {
+      next.put(record);
+    }
+
+    return next;
+  }
+
+  /**
+   * Makes a new file durable and atomically replaces the log with it.
+   */
+  private void replace(MappedByteBuffer next) throws IOException {
+    next.force();
+    Files.move(compactedPath(), path, StandardCopyOption.ATOMIC_MOVE);
+    syncDirectory();
+  }
+
+  private Path compactedPath() {
+    return path.resolveSibling(path.getFileName() + ".compact");
+  }
+
+  /**
+   * Releases the mapping of a replaced log instead of leaving it to the garbage collector, where
+   * the runtime allows it. The buffer must not be used afterwards.
+   */
+  private static void unmap(MappedByteBuffer buffer) {
+    try {
+      Method invokeCleaner = null;
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+
+      try {
+        invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      } catch (NoSuchMethodException e) {
+        // Java 8, which has no invokeCleaner
+      }
+
+      if (invokeCleaner != null) {
+        Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+        theUnsafe.setAccessible(true);
+        invokeCleaner.invoke(theUnsafe.get(null), buffer);
+      } else {
+        Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+        cleanerMethod.setAccessible(true);
+        Object cleaner = cleanerMethod.invoke(buffer);
+        cleaner.getClass().getMethod("clean").invoke(cleaner);
+      }
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      logger.log(Level.FINE, "Unable to unmap the replaced outbox log", e);
+    }
+  }
+
+  /**
+   * Makes the rename of the compacted log durable, where the platform allows syncing a directory.
+   */
+  private void syncDirectory() {
+    Path directory = path.toAbsolutePath().getParent();
+
+    try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (IOException e) {
+      logger.log(Level.FINE, "Unable to sync the outbox directory", e);
+    }
+  }
+
+  /**
+   * Reads the log up to its end or its first torn record, keeping the entries not marked done.
+   */
+  private void read(List<Entry> entries) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+    Map<Long, Entry> accepted = new LinkedHashMap<>();
+    CRC32 crc = new CRC32();
+
+    while (buffer.remaining() >= FRAME_BYTES) {
+      int start = buffer.position();
+      int length = buffer.getInt();
+      int checksum = buffer.getInt();
+
+      // A zero length is the unwritten end of the log
+      if (length <= 0 || length > buffer.remaining()) {
+        break;
+      }
+
+      crc.reset();
+      crc.update(buffer.array(), buffer.position(), length);
+
+      if ((int) crc.getValue() != checksum) {
+        logger.warning("Outbox log is torn at offset " + start + ", ignoring the rest");
+        break;
+      }
+
+      ByteBuffer body = ByteBuffer.wrap(buffer.array(), buffer.position(), length).slice();
+      buffer.position(buffer.position() + length);
+
+      byte type = body.get();
+      long sequence = body.getLong();
+      nextSequence = Math.max(nextSequence, sequence + 1);
+
+      if (type == DONE) {
+        accepted.remove(sequence);
+        pending.remove(sequence);
+      } else if (type == ACCEPTED) {
+        long receivedAtMillis = body.getLong();
+        accepted.put(sequence, new Entry(sequence, receivedAtMillis, readString(body),
+            readString(body), readString(body), readString(body)));
+        pending.put(sequence, copyRecord(buffer.array(), start, FRAME_BYTES + length));
+      }
+    }
+
+    entries.addAll(accepted.values());
+    pendingCount = pending.size();
+  }
+
+  private static byte[] copyRecord(byte[] source, int offset, int length) {
+    byte[] record = new byte[length];
+    System.arraycopy(source, offset, record, 0, length);
+    return record;
+  }
+
+  private static byte[] encode(byte type, long sequence, long receivedAtMillis,
+      String conversationId, String requestId, String text, String postbackData) {
+    byte[][] strings = {utf8(conversationId), utf8(requestId), utf8(text), utf8(postbackData)};
+    int length = 1 + 8;
+
+    if (type == ACCEPTED) {
+      length += 8;
+
+      for (byte[] string : strings) {
+        length += 4 + (string == null ? 0 : string.length);
+      }
+    }
+
+    ByteBuffer record = ByteBuffer.allocate(FRAME_BYTES + length);
+    record.putInt(length).putInt(0).put(type).putLong(sequence);
+
+    if (type == ACCEPTED) {
+      record.putLong(receivedAtMillis);
+
+      for (byte[] string : strings) {
+        if (string == null) {
+          record.putInt(-1);
+        } else {
+          record.putInt(string.length).put(string);
+        }
+      }
+    }
+
+    CRC32 crc = new CRC32();
+    crc.update(record.array(), FRAME_BYTES, length);
+    record.putInt(4, (int) crc.getValue());
+
+    return record.array();
+  }
+
+  private static byte[] utf8(String value) {
+    return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String readString(ByteBuffer body) {
+    int length = body.getInt();
+
+    if (length < 0) {
+      return null;
+    }
+
+    String value = new String(body.array(), body.arrayOffset() + body.position(), length,
+        StandardCharsets.UTF_8);
+    body.position(body.position() + length);
+    return value;
+  }
+
+  /**
+   * An event recorded in the outbox.
+   */
+  public static final class Entry {
+
+    private final long sequence;
+    private final long receivedAtMillis;
+    private final String conversationId;
+    private final String requestId;
+    private final String text;
+    private final String postbackData;
+
+    Entry(long sequence, long receivedAtMillis, String conversationId, String requestId,
+        String text, String postbackData) {
+      this.sequence = sequence;
+      this.receivedAtMillis = receivedAtMillis;
+      this.conversationId = conversationId;
+      this.requestId = requestId;
+      this.text = text;
+      this.postbackData = postbackData;
+    }
+
+    public long getSequence() {
+      return sequence;
+    }
+
+    /**
+     * @return When the event was received, from {@link System#currentTimeMillis()}.
+     */
+    public long getReceivedAtMillis() {
+      return receivedAtMillis;
+    }
+
+    public String getConversationId() {
+      return conversationId;
+    }
+
+    public String getRequestId() {
+      return requestId;
+    }
+
+    public String getText() {
+      return text;
+    }
+
+    public String getPostbackData() {
+      return postbackData;
+    }
+  }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.pubsub;
+
+import com.google.api.core.ApiService;
+import com.google.api.gax.batching.FlowControlSettings;
+import com.google.api.gax.batching.FlowController;
+import com.google.api.gax.core.FixedExecutorProvider;
+import com.google.api.gax.core.NoCredentialsProvider;
+import com.google.api.gax.grpc.GrpcTransportChannel;
+import com.google.api.gax.rpc.FixedTransportChannelProvider;
+import com.google.businessmessages.samples.config.BotConfig;
+import com.google.businessmessages.samples.metrics.Counter;
+import com.google.businessmessages.samples.metrics.LatencyHistogram;
+import com.google.businessmessages.samples.metrics.MetricsRegistry;
+import com.google.cloud.pubsub.v1.AckReplyConsumer;
+import com.google.cloud.pubsub.v1.Subscriber;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.pubsub.v1.ProjectSubscriptionName;
+import com.google.pubsub.v1.PubsubMessage;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pulls Business Messages events from a Pub/Sub subscription, as an alternative to receiving them
+ * on the webhook.
+ *
+ * Events are pulled over several streams and handed to a {@link Handler}. A message is
+ * acknowledged once the handler is done with it, or nacked so that Pub/Sub redelivers it later.
+ * Flow control caps the number and size of messages that are pulled but not yet acknowledged, so
+ * a spike of traffic waits in the subscription instead of piling up in memory.
+ *
+ * When the {@code PUBSUB_EMULATOR_HOST} environment variable is set, the subscriber connects to
+ * the local Pub/Sub emulator at that address, without credentials.
+ */
+public final class PubSubIngestor {
+
+  private static final Logger logger = Logger.getLogger(PubSubIngestor.class.getName());
+
+  // System properties used to configure the subscriber
+  public static final String PROP_SUBSCRIPTION = "bm.pubsub.subscription";
+  public static final String PROP_MAX_OUTSTANDING_MESSAGES = "bm.pubsub.maxOutstandingMessages";
+  public static final String PROP_MAX_OUTSTANDING_BYTES = "bm.pubsub.maxOutstandingBytes";
+  public static final String PROP_PARALLEL_PULLS = "bm.pubsub.parallelPulls";
+  public static final String PROP_THREADS = "bm.pubsub.threads";
+
+  private static final String EMULATOR_HOST_ENV = "PUBSUB_EMULATOR_HOST";
+
+  private static final long DEFAULT_MAX_OUTSTANDING_MESSAGES = 1000;
+  private static final long DEFAULT_MAX_OUTSTANDING_BYTES = 100L * 1024 * 1024;
+  private static final int DEFAULT_PARALLEL_PULLS = 1;
+  private static final int DEFAULT_THREADS = 4;
+
+  /**
+   * Processes the payload of a pulled message.
+   */
+  public interface Handler {
+    /**
+     * @param payload The event, in the same JSON format as the body of a webhook call.
+     * @return Completes with true once the message can be acknowledged, or false to have it
+     *     redelivered.
+     */
+    CompletionStage<Boolean> handle(byte[] payload);
+  }
+
+  private final ProjectSubscriptionName subscription;
+  private final Handler handler;
+  private final long maxOutstandingMessages;
+  private final long maxOutstandingBytes;
+  private final int parallelPulls;
+  private final ScheduledExecutorService executor;
+  private final String emulatorHost;
+
+  private final AtomicInteger outstanding = new AtomicInteger();
+  private final LatencyHistogram handleLatency;
+  private final Counter acked;
+  private final Counter nacked;
+
+  private Subscriber subscriber;
+  private ManagedChannel emulatorChannel;
+
+  /**
+   * Creates an ingestor. Call {@link #start()} to begin pulling.
+   *
+   * @param subscription The full name of the subscription, projects/PROJECT/subscriptions/NAME.
+   * @param handler Processes the pulled events.
+   * @param maxOutstandingMessages How many messages may be pulled but not yet acknowledged.
+   * @param maxOutstandingBytes How many bytes of messages may be pulled but not yet acknowledged.
+   * @param parallelPulls The number of streams messages are pulled over.
+   * @param threads The number of threads that receive messages.
+   * @param emulatorHost The host and port of the Pub/Sub emulator, or null to use Pub/Sub.
+   */
+  public PubSubIngestor(String subscription, Handler handler, long maxOutstandingMessages,
+      long maxOutstandingBytes, int parallelPulls, int threads, String emulatorHost) {
+    this.subscription = ProjectSubscriptionName.parse(subscription);
+    this.handler = handler;
+    this.maxOutstandingMessages = maxOutstandingMessages;
+    this.maxOutstandingBytes = maxOutstandingBytes;
+    this.parallelPulls = parallelPulls;
+    this.emulatorHost = emulatorHost;
+    this.executor = Executors.newScheduledThreadPool(threads,
+        new ThreadFactoryBuilder().setNameFormat("bm-pubsub-%d").setDaemon(true).build());
+
+    MetricsRegistry metrics = MetricsRegistry.getDefault();
+    this.handleLatency = metrics.histogram("bm_pubsub_handle_seconds",
+        "Time from pulling a Pub/Sub message to acknowledging it.");
+    this.acked = metrics.counter("bm_pubsub_messages_total", "Pulled Pub/Sub messages by outcome.",
+        "outcome", "acked");
+    this.nacked = metrics.counter("bm_pubsub_messages_total",
+        "Pulled Pub/Sub messages by outcome.", "outcome", "nacked");
+    metrics.gauge("bm_pubsub_outstanding", "Pulled Pub/Sub messages not yet acknowledged.",
+        outstanding::get);
+  }
+
+  /**
+   * Creates an ingestor from the {@code bm.pubsub.*} system properties.
+   *
+   * @param handler Processes the pulled events.
+   * @return A new ingestor, or null if no subscription is configured.
+   */
+  public static PubSubIngestor fromConfig(Handler handler) {
+    String subscription = BotConfig.getString(PROP_SUBSCRIPTION, null);
+
+    if (subscription == null || subscription.isEmpty()) {
+      return null;
+    }
+
+    return new PubSubIngestor(subscription, handler,
+        Math.max(1, BotConfig.getLong(PROP_MAX_OUTSTANDING_MESSAGES,
+            DEFAULT_MAX_OUTSTANDING_MESSAGES)),
+        Math.max(1, BotConfig.getLong(PROP_MAX_OUTSTANDING_BYTES, DEFAULT_MAX_OUTSTANDING_BYTES)),
+        Math.max(1, BotConfig.getInt(PROP_PARALLEL_PULLS, DEFAULT_PARALLEL_PULLS)),
+        Math.max(1, BotConfig.getInt(PROP_THREADS, DEFAULT_THREADS)),
+        System.getenv(EMULATOR_HOST_ENV));
+  }
+
+  /**
+   * Starts pulling messages and waits until the subscriber is running.
+   */
+  public synchronized void start() {
+    Subscriber.Builder builder = Subscriber.newBuilder(subscription, this::receive)
+        .setFlowControlSettings(FlowControlSettings.newBuilder()
+            .setMaxOutstandingElementCount(maxOutstandingMessages)
+            .setMaxOutstandingRequestBytes(maxOutstandingBytes)
+            .setLimitExceededBehavior(FlowController.LimitExceededBehavior.Block)
+            .build())
+        .setParallelPullCount(parallelPulls)
+        .setExecutorProvider(FixedExecutorProvider.create(executor));
+
+    if (emulatorHost != null && !emulatorHost.isEmpty()) {
+      logger.info("Using the Pub/Sub emulator at " + emulatorHost);
+
+      emulatorChannel = ManagedChannelBuilder.forTarget(emulatorHost).usePlaintext(true).build();
+      builder.setChannelProvider(FixedTransportChannelProvider.create(
+          GrpcTransportChannel.create(emulatorChannel)))
+          .setCredentialsProvider(NoCredentialsProvider.create());
+    }
+
+    subscriber = builder.build();
+    subscriber.addListener(new ApiService.Listener() {
+      @Override
+      public void failed(ApiService.State from, Throwable failure) {
+        logger.log(Level.SEVERE, "Pub/Sub subscriber failed", failure);
+      }
+    }, MoreExecutors.directExecutor());
+
+    subscriber.startAsync().awaitRunning();
+    logger.info("Pulling events from " + subscription);
+  }
+
+  /**
+   * Stops pulling messages. Messages that were pulled but not handled in time are redelivered.
+   *
+   * @param timeout How long to wait for outstanding messages.
+   * @param unit The unit of the timeout.
+   */
+  public synchronized void stop(long timeout, TimeUnit unit) {
+    if (subscriber != null) {
+      try {
+        subscriber.stopAsync().awaitTerminated(timeout, unit);
+      } catch (TimeoutException e) {
+        logger.warning("Pub/Sub subscriber did not stop in time");
+      }
+    }
+
+    if (emulatorChannel != null) {
+      emulatorChannel.shutdownNow();
+    }
+
+    executor.shutdownNow();
+  }
+
+  private void receive(PubsubMessage message, AckReplyConsumer consumer) {
+    long start = System.nanoTime();
+    outstanding.incrementAndGet();
+
+    CompletionStage<Boolean> handled;
+    try {
+      handled = handler.handle(message.getData().toByteArray());
+    } catch (RuntimeException e) {
+      logger.log(Level.SEVERE, "Unable to handle Pub/Sub message " + message.getMessageId(), e);
+      reply(consumer, false, start);
+      return;
+    }
+
+    handled.whenComplete((ack, error) -> {
+      if (error != null) {
+        logger.log(Level.SEVERE, "Unable to handle Pub/Sub message " + message.getMessageId(),
+            error);
+      }
+
+      reply(consumer, error == null && Boolean.TRUE.equals(ack), start);
+    });
+  }
+
+  private void reply(AckReplyConsumer consumer, boolean ack, long start) {
+    if (ack) {
+      consumer.ack();
+      acked.increment();
+    } else {
+      consumer.nack();
+      nacked.increment();
+    }
+
+    outstanding.decrementAndGet();
+    handleLatency.recordSince(start);
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.routing;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import java.util.Map;
+
+/**
+ * Maps inbound messages to the handler that creates their response.
+ *
+ * Handlers are registered by keyword, matched against the trimmed message text ignoring case, and
+ * by the postback data of the suggestion the user tapped. Postback data takes precedence over the
+ * text, and messages that match neither go to the fallback handler.
+ *
+ * Lookups are lock-free. Registration copies the tables, so it is meant to happen at startup.
+ */
+public final class CommandRegistry {
+
+  private final CommandHandler fallback;
+
+  private volatile KeywordTable<CommandHandler> keywords = KeywordTable.empty();
+  private volatile Map<String, CommandHandler> postbacks = ImmutableMap.of();
+
+  /**
+   * Creates a registry.
+   *
+   * @param fallback Handles messages that match no command.
+   */
+  public CommandRegistry(CommandHandler fallback) {
+    this.fallback = fallback;
+  }
+
+  /**
+   * Registers a handler for messages whose text is the keyword.
+   *
+   * @param keyword The command, matched ignoring case and surrounding whitespace.
+   * @param handler The handler of the command.
+   * @return This registry.
+   */
+  public synchronized CommandRegistry registerKeyword(String keyword, CommandHandler handler) {
+    keywords = keywords.with(keyword, handler);
+    return this;
+  }
+
+  /**
+   * Registers a handler for taps on suggestions with the given postback data.
+   *
+   * @param postbackData The postback data of the suggestion, matched exactly.
+   * @param handler The handler of the suggestion.
+   * @return This registry.
+   */
+  public synchronized CommandRegistry registerPostback(String postbackData,
+      CommandHandler handler) {
+    postbacks = ImmutableMap.<String, CommandHandler>builder()
+        .putAll(Maps.filterKeys(postbacks, key -> !key.equals(postbackData)))
+        .put(postbackData, handler)
+        .build();
+    return this;
+  }
+
+  /**
+   * Finds the handler for an inbound message.
+   *
+   * @param text The message text received from the user.
+   * @param postbackData The postback data of the tapped suggestion, or null.
+   * @return The handler, the fallback handler if no command matches.
+   */
+  public CommandHandler resolve(String text, String postbackData) {
+    CommandHandler handler = postbackData == null ? null : postbacks.get(postbackData);
+
+    if (handler == null) {
+      handler = keywords.get(text);
+    }
+
+    return handler == null ? fallback : handler;
+  }
+}
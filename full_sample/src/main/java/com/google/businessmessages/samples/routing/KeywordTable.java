@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.routing;
+
+/**
+ * Immutable open-addressing hash table keyed by case-insensitive keywords.
+ *
+ * Lookups hash and compare the trimmed region of the input in place, folding case one character
+ * at a time, so no normalized copy of the message is allocated. Case folding follows
+ * {@link String#equalsIgnoreCase} and does not depend on the default locale.
+ */
+final class KeywordTable<V> {
+
+  private final String[] keys;
+  private final Object[] values;
+  private final int mask;
+
+  private KeywordTable(String[] keys, Object[] values) {
+    this.keys = keys;
+    this.values = values;
+    this.mask = keys.length - 1;
+  }
+
+  /**
+   * @return A table without entries.
+   */
+  static <V> KeywordTable<V> empty() {
+    return new KeywordTable<>(new String[1], new Object[1]);
+  }
+
+  /**
+   * Returns a copy of this table with one more entry, replacing any entry with the same keyword.
+   *
+   * @param keyword The keyword, surrounding whitespace is ignored.
+   * @param value The value to store.
+   * @return The new table.
+   */
+  KeywordTable<V> with(String keyword, V value) {
+    String key = keyword.trim();
+    int size = 1;
+
+    for (String existing : keys) {
+      if (existing != null && !existing.equalsIgnoreCase(key)) {
+        size++;
+      }
+    }
+
+    // Keep the load factor at or below one half so probe sequences stay short
+    int capacity = Integer.highestOneBit(Math.max(2, size * 2 - 1)) << 1;
+    String[] newKeys = new String[capacity];
+    Object[] newValues = new Object[capacity];
+
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != null && !keys[i].equalsIgnoreCase(key)) {
+        insert(newKeys, newValues, keys[i], values[i]);
+      }
+    }
+    insert(newKeys, newValues, key, value);
+
+    return new KeywordTable<>(newKeys, newValues);
+  }
+
+  /**
+   * Looks up the value of the keyword matching the trimmed text, ignoring case.
+   *
+   * @param text The text to look up.
+   * @return The value, or null if no keyword matches.
+   */
+  @SuppressWarnings("unchecked")
+  V get(String text) {
+    int start = 0;
+    int end = text.length();
+
+    // Same whitespace rules as String.trim()
+    while (start < end && text.charAt(start) <= ' ') {
+      start++;
+    }
+    while (end > start && text.charAt(end - 1) <= ' ') {
+      end--;
+    }
+
+    int length = end - start;
+
+    for (int i = hash(text, start, end) & mask; keys[i] != null; i = (i + 1) & mask) {
+      String key = keys[i];
+
+      if (key.length() == length && key.regionMatches(true, 0, text, start, length)) {
+        return (V) values[i];
+      }
+    }
+
+    return null;
+  }
+
+  private static void insert(String[] keys, Object[] values, String key, Object value) {
+    int mask = keys.length - 1;
+    int i = hash(key, 0, key.length()) & mask;
+
+    while (keys[i] != null) {
+      i = (i + 1) & mask;
+    }
+
+    keys[i] = key;
+    values[i] = value;
+  }
+
+  private static int hash(String text, int start, int end) {
+    int h = 0;
+
+    for (int i = start; i < end; i++) {
+      h = 31 * h + Character.toLowerCase(Character.toUpperCase(text.charAt(i)));
+    }
+
+    // Spread the high bits into the ones used for indexing
+    return h ^ (h >>> 16);
+  }
+}
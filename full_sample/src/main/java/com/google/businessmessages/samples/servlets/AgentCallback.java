@@ -16,46 +16,50 @@ package com.google.businessmessages.samples.servlets;
 // [START callback for receiving consumer messages]
 
 // [START import_libraries]
-import com.google.api.client.googleapis.services.AbstractGoogleClientRequest;
-import com.google.api.client.http.HttpBackOffUnsuccessfulResponseHandler;
-import com.google.api.client.http.HttpRequest;
-import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
-import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.jackson2.JacksonFactory;
-import com.google.api.client.util.ExponentialBackOff;
-import com.google.api.services.businessmessages.v1.Businessmessages;
-import com.google.api.services.businessmessages.v1.model.BusinessMessagesCardContent;
-import com.google.api.services.businessmessages.v1.model.BusinessMessagesCarouselCard;
-import com.google.api.services.businessmessages.v1.model.BusinessMessagesContentInfo;
-import com.google.api.services.businessmessages.v1.model.BusinessMessagesDialAction;
 import com.google.api.services.businessmessages.v1.model.BusinessMessagesEvent;
-import com.google.api.services.businessmessages.v1.model.BusinessMessagesMedia;
 import com.google.api.services.businessmessages.v1.model.BusinessMessagesMessage;
-import com.google.api.services.businessmessages.v1.model.BusinessMessagesOpenUrlAction;
-import com.google.api.services.businessmessages.v1.model.BusinessMessagesRepresentative;
-import com.google.api.services.businessmessages.v1.model.BusinessMessagesRichCard;
-import com.google.api.services.businessmessages.v1.model.BusinessMessagesStandaloneCard;
-import com.google.api.services.businessmessages.v1.model.BusinessMessagesSuggestedAction;
-import com.google.api.services.businessmessages.v1.model.BusinessMessagesSuggestedReply;
-import com.google.api.services.businessmessages.v1.model.BusinessMessagesSuggestion;
-import com.google.appengine.api.memcache.MemcacheService;
-import com.google.appengine.api.memcache.MemcacheServiceFactory;
-import com.google.communications.businessmessages.v1.CardWidth;
+import com.google.businessmessages.samples.async.ConversationDispatcher;
+import com.google.businessmessages.samples.async.RejectionPolicy;
+import com.google.businessmessages.samples.async.WorkQueue;
+import com.google.businessmessages.samples.config.BotConfig;
+import com.google.businessmessages.samples.dedupe.ClaimStatus;
+import com.google.businessmessages.samples.dedupe.Deduplicator;
+import com.google.businessmessages.samples.logging.AsyncLogHandler;
+import com.google.businessmessages.samples.logging.PayloadLog;
+import com.google.businessmessages.samples.metrics.Counter;
+import com.google.businessmessages.samples.metrics.LatencyHistogram;
+import com.google.businessmessages.samples.metrics.MetricsRegistry;
+import com.google.businessmessages.samples.nlu.DialogflowIntentDetector;
+import com.google.businessmessages.samples.nlu.IntentCache;
+import com.google.businessmessages.samples.outbound.AsyncBmClient;
+import com.google.businessmessages.samples.outbound.BmClientRegistry;
+import com.google.businessmessages.samples.outbound.TypingIndicatorPolicy;
+import com.google.businessmessages.samples.outbox.Outbox;
+import com.google.businessmessages.samples.pubsub.PubSubIngestor;
+import com.google.businessmessages.samples.routing.CommandRegistry;
+import com.google.businessmessages.samples.templates.ReplyTemplate;
+import com.google.businessmessages.samples.templates.ReplyTemplates;
+import com.google.businessmessages.samples.webhook.DeadlinePolicy;
+import com.google.businessmessages.samples.webhook.RequestContext;
+import com.google.businessmessages.samples.webhook.WebhookEvent;
+import com.google.businessmessages.samples.webhook.WebhookEventDecoder;
 import com.google.communications.businessmessages.v1.EventType;
-import com.google.communications.businessmessages.v1.MediaHeight;
-import com.google.communications.businessmessages.v1.RepresentativeType;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-import java.util.UUID;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
-import javax.servlet.annotation.WebServlet;
+import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -70,9 +74,19 @@ import javax.servlet.http.HttpServletResponse;
  * - carousel - Sends a sample carousel
  * - chips - Sends a message with suggested replies
  *
- * Any other incoming message is echoed back to the end-user.
+ * Any other incoming message is echoed back to the end-user. When the bm.dialogflow.projectId
+ * system property is set, it is answered with the reply of the Dialogflow intent it matches
+ * instead, and only echoed if the intent has no reply or cannot be detected before the deadline
+ * set by bm.intent.deadlineMs.
+ *
+ * When the bm.async.enabled system property is true, the webhook is acknowledged as soon as the
+ * event has been de-duplicated and the response is created by a bounded pool of workers. When the
+ * bm.outbox.path system property is also set, the event is first recorded in a durable outbox, and
+ * events whose responses were not sent before a restart are handled again on startup.
+ *
+ * When the bm.pubsub.subscription system property is set, events are also pulled from that Pub/Sub
+ * subscription and handled the same way as webhook calls.
  */
-@WebServlet(name = "AgentCallback", value = "/callback")
 public class AgentCallback extends HttpServlet {
 
   private static final Logger logger = Logger.getLogger(AgentCallback.class.getName());
@@ -81,362 +95,826 @@ public class AgentCallback extends HttpServlet {
 
   private static final String CREDENTIALS_FILE_NAME = "bm-agent-service-account-credentials.json";
 
+  // Enables acknowledging webhooks before the response is sent
+  private static final String PROP_ASYNC_ENABLED = "bm.async.enabled";
+
+  private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+  // Event object reused by request threads that handle the event themselves
+  private static final ThreadLocal<WebhookEvent> reusableEvent =
+      ThreadLocal.withInitial(WebhookEvent::new);
+
+  // Metrics of the webhook path, served by the MetricsServlet
+  private static final MetricsRegistry metrics = MetricsRegistry.getDefault();
+  private static final LatencyHistogram webhookLatency = metrics.histogram(
+      "bm_webhook_seconds", "Time to answer a webhook call.");
+  private static final LatencyHistogram readLatency = stageHistogram("read");
+  private static final LatencyHistogram decodeLatency = stageHistogram("decode");
+  private static final LatencyHistogram dedupeLatency = stageHistogram("dedupe");
+  private static final LatencyHistogram handleLatency = stageHistogram("handle");
+  private static final LatencyHistogram enqueueLatency = stageHistogram("enqueue");
+  private static final LatencyHistogram outboxLatency = stageHistogram("outbox");
+  private static final LatencyHistogram queueWaitLatency = metrics.histogram(
+      "bm_async_queue_wait_seconds", "Time an event waited for a worker in async mode.");
+  private static final Counter processedEvents = outcomeCounter("processed");
+  private static final Counter duplicateEvents = outcomeCounter("duplicate");
+  private static final Counter invalidEvents = outcomeCounter("invalid");
+  private static final Counter rejectedEvents = outcomeCounter("rejected");
+  private static final Counter inFlightEvents = outcomeCounter("in_flight");
+  private static final Counter replayedEvents = metrics.counter("bm_outbox_replayed_total",
+      "Events recorded in the outbox before a restart and handled again after it.");
+  private static final Counter expiredEvents = metrics.counter("bm_stale_dropped_total",
+      "Work dropped because the event it was for had become too old to matter.",
+      "item", "inbound");
+  private static final LatencyHistogram messageCallLatency = apiCallHistogram("message");
+  private static final Counter messageCallErrors = apiErrorCounter("message");
+  private static final Counter intentTimeoutFallbacks = intentFallbackCounter("timeout");
+  private static final Counter intentErrorFallbacks = intentFallbackCounter("error");
+  private static final Counter intentNoReplyFallbacks = intentFallbackCounter("no_reply");
+  private static final Map<EventType, LatencyHistogram> eventCallLatency =
+      new EnumMap<>(EventType.class);
+  private static final Map<EventType, Counter> eventCallErrors = new EnumMap<>(EventType.class);
+
+  static {
+    for (EventType eventType : EventType.values()) {
+      String call = eventType.toString().toLowerCase(Locale.ROOT);
+
+      eventCallLatency.put(eventType, apiCallHistogram(call));
+      eventCallErrors.put(eventType, apiErrorCounter(call));
+    }
+  }
+
+  // Samples and truncates the payloads that are logged
+  private static final PayloadLog payloadLog = PayloadLog.fromConfig(logger);
+
   // Set of commands the bot understands
   private static final String CMD_RICH_CARD = "card";
   private static final String CMD_CAROUSEL_CARD = "carousel";
   private static final String CMD_SUGGESTIONS = "chips";
 
-  // Images used in cards and carousel examples
-  private static final String SAMPLE_IMAGES[] = new String[]{
-      "https://storage.googleapis.com/kitchen-sink-sample-images/cute-dog.jpg",
-      "https://storage.googleapis.com/kitchen-sink-sample-images/elephant.jpg",
-      "https://storage.googleapis.com/kitchen-sink-sample-images/adventure-cliff.jpg",
-      "https://storage.googleapis.com/kitchen-sink-sample-images/sheep.jpg",
-      "https://storage.googleapis.com/kitchen-sink-sample-images/golden-gate-bridge.jpg"};
+  // Postback data of the suggestions attached to the sample cards
+  private static final String POSTBACK_SAMPLE_CHIP = "sample_chip";
+  private static final String POSTBACK_URL_ACTION = "url_action";
+  private static final String POSTBACK_DIAL_ACTION = "dial_action";
+
+  // Reference to the shared BM api client
+  private AsyncBmClient client;
+
+  // Workers that create responses in async mode, null when responses are sent synchronously
+  private WorkQueue workQueue;
+
+  // Detects webhook events that were delivered more than once
+  private Deduplicator deduplicator;
+
+  // Keeps the responses of each conversation in order
+  private ConversationDispatcher dispatcher;
+
+  // Maps commands and suggestion taps to their handlers
+  private CommandRegistry commands;
+
+  // Pre-serialized static replies
+  private ReplyTemplates templates;
+
+  // Decides when typing indicators are sent
+  private TypingIndicatorPolicy typingPolicy;
 
-  // Object to maintain OAuth2 credentials to call the BM API
-  private GoogleCredential credential;
+  // Decides how long the response to an event remains worth sending
+  private DeadlinePolicy deadlines;
 
-  // Reference to the BM api builder
-  private Businessmessages.Builder builder;
+  // Writes log records off the request threads, null when logging is synchronous
+  private AsyncLogHandler logHandler;
 
-  public AgentCallback() {
-    super();
+  // Detects the intents of messages that are not commands, null when messages are echoed
+  private DialogflowIntentDetector intentDetector;
+
+  // Remembers the intents of repeated messages
+  private IntentCache intents;
+
+  // Records accepted events until they are handled, null when they are not recorded
+  private Outbox outbox;
+
+  // Pulls events from Pub/Sub, null when events only arrive on the webhook
+  private PubSubIngestor pubSub;
+
+  @Override
+  public void init() throws ServletException {
+    super.init();
+
+    logHandler = AsyncLogHandler.installFromConfig();
+
+    client = BmClientRegistry.get().getAsyncClient();
+    deduplicator = Deduplicator.fromConfig();
+
+    try {
+      templates = ReplyTemplates.create(JacksonFactory.getDefaultInstance());
+    } catch (IOException e) {
+      throw new ServletException("Unable to build reply templates", e);
+    }
+
+    try {
+      intentDetector = DialogflowIntentDetector.fromConfig();
+    } catch (IOException e) {
+      throw new ServletException("Unable to create the Dialogflow client", e);
+    }
 
-    initBmApi();
+    if (intentDetector != null) {
+      intents = IntentCache.fromConfig(intentDetector, DialogflowIntentDetector.getLanguageCode());
+    }
+
+    // Suggestion taps are echoed like typed messages, replace these handlers to act on them
+    commands = new CommandRegistry(intents == null ? this::echoMessage : this::answerWithIntent)
+        .registerKeyword(CMD_RICH_CARD, (message, context) -> sendRichCard(context))
+        .registerKeyword(CMD_CAROUSEL_CARD, (message, context) -> sendCarousel(context))
+        .registerKeyword(CMD_SUGGESTIONS, (message, context) -> sendMessageWithSuggestions(context))
+        .registerPostback(POSTBACK_SAMPLE_CHIP, this::echoMessage)
+        .registerPostback(POSTBACK_URL_ACTION, this::echoMessage)
+        .registerPostback(POSTBACK_DIAL_ACTION, this::echoMessage);
+
+    typingPolicy = TypingIndicatorPolicy.fromConfig(this::sendTypingEvent);
+    deadlines = DeadlinePolicy.fromConfig();
+
+    if (BotConfig.getBoolean(PROP_ASYNC_ENABLED, false)) {
+      workQueue = WorkQueue.fromConfig();
+      dispatcher = new ConversationDispatcher(workQueue, workQueue.getCapacity());
+
+      try {
+        outbox = Outbox.fromConfig();
+      } catch (IOException e) {
+        throw new ServletException("Unable to open the outbox", e);
+      }
+    } else {
+      dispatcher = new ConversationDispatcher(MoreExecutors.directExecutor(), Integer.MAX_VALUE);
+    }
+
+    registerMetrics();
+
+    if (outbox != null) {
+      replayOutbox();
+    }
+
+    pubSub = PubSubIngestor.fromConfig(this::processPubSubMessage);
+    if (pubSub != null) {
+      pubSub.start();
+    }
+  }
+
+  /**
+   * Exposes the counters and queue sizes kept by the components of this servlet.
+   */
+  private void registerMetrics() {
+    Deduplicator deduplicator = this.deduplicator;
+    String dedupeName = "bm_dedupe_lookups_total";
+    String dedupeHelp = "requestId lookups by tier and result.";
+
+    metrics.counterFunction(dedupeName, dedupeHelp, deduplicator::getLocalHits,
+        "tier", "local", "result", "hit");
+    metrics.counterFunction(dedupeName, dedupeHelp, deduplicator::getLocalMisses,
+        "tier", "local", "result", "miss");
+    metrics.counterFunction(dedupeName, dedupeHelp, deduplicator::getRemoteHits,
+        "tier", "remote", "result", "hit");
+    metrics.counterFunction(dedupeName, dedupeHelp, deduplicator::getRemoteMisses,
+        "tier", "remote", "result", "miss");
+
+    ConversationDispatcher dispatcher = this.dispatcher;
+    metrics.gauge("bm_dispatcher_pending", "Responses waiting for earlier ones to be sent.",
+        dispatcher::getPendingCount);
+
+    AsyncLogHandler logHandler = this.logHandler;
+    if (logHandler != null) {
+      metrics.counterFunction("bm_log_dropped_total", "Log records dropped by a full log queue.",
+          logHandler::getDroppedCount);
+    }
+
+    WorkQueue workQueue = this.workQueue;
+    if (workQueue != null) {
+      metrics.gauge("bm_async_queue_depth", "Events waiting for a worker.",
+          workQueue::getQueueDepth);
+      metrics.gauge("bm_async_active_workers", "Workers creating a response.",
+          workQueue::getActiveCount);
+      metrics.counterFunction("bm_async_rejected_total", "Events the full work queue rejected.",
+          workQueue::getRejectedCount);
+    }
+  }
+
+  @Override
+  public void destroy() {
+    if (pubSub != null) {
+      pubSub.stop(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    if (workQueue != null) {
+      workQueue.shutdown(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    // Events still queued stay in the outbox and are handled after the restart
+    if (outbox != null) {
+      outbox.close();
+    }
+
+    typingPolicy.shutdown();
+
+    if (intentDetector != null) {
+      intents.shutdown();
+      intentDetector.shutdown();
+    }
+
+    if (logHandler != null) {
+      logHandler.flush();
+    }
+
+    super.destroy();
   }
 
   @Override
   public void doPost(HttpServletRequest request, HttpServletResponse response)
       throws IOException {
+    long start = System.nanoTime();
+
+    try {
+      processWebhook(request, response, start);
+    } finally {
+      webhookLatency.recordSince(start);
+    }
+  }
+
+  /**
+   * Reads, de-duplicates and handles or queues an inbound event, timing each stage.
+   *
+   * @param request The webhook request.
+   * @param response The webhook response.
+   * @param start When the webhook call started, from {@link System#nanoTime()}.
+   */
+  private void processWebhook(HttpServletRequest request, HttpServletResponse response,
+      long start) throws IOException {
     // set the response type to JSON
     response.setContentType("application/json");
     response.setCharacterEncoding("UTF-8");
 
-    String jsonResponse = request.getReader().lines().collect(
-        Collectors.joining(System.lineSeparator())
-    );
-
-    logger.info(jsonResponse);
+    byte[] body = ByteStreams.toByteArray(request.getInputStream());
+    long stageStart = System.nanoTime();
+    readLatency.recordNanos(stageStart - start);
 
-    // load the JSON string into a Json parser
-    JsonParser parser = new JsonParser();
-    JsonObject obj = parser.parse(jsonResponse).getAsJsonObject();
+    payloadLog.sampled("webhook body", body);
 
-    String conversationId = obj.get("conversationId").getAsString();
+    // Events handled on this thread reuse one event object, queued events need their own
+    WebhookEvent event = workQueue == null ? reusableEvent.get() : new WebhookEvent();
 
-    // Use memcache to de-dupe messages
-    MemcacheService syncCache = MemcacheServiceFactory.getMemcacheService();
+    try {
+      if (!WebhookEventDecoder.decode(body, 0, body.length, event)) {
+        invalidEvents.increment();
+        payloadLog.failure("webhook without conversationId", body);
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Missing conversationId");
+        return;
+      }
+    } catch (IOException | IllegalStateException e) {
+      invalidEvents.increment();
+      payloadLog.failure("malformed webhook", body);
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Malformed payload");
+      return;
+    } finally {
+      stageStart = recordStage(decodeLatency, stageStart);
+    }
 
     // Check that the object has a requestId
-    if (obj.has("requestId")) {
-      String requestId = obj.get("requestId").getAsString();
+    if (event.getRequestId() == null) {
+      invalidEvents.increment();
+      return;
+    }
 
-      // Check to see if this response has already been seen, if so, ignore
-      if (!syncCache.contains(requestId)) {
-        syncCache.put(requestId, true);
+    // Check to see if this response has already been seen, if so, ignore
+    boolean duplicate = deduplicator.isDuplicate(event.getRequestId());
+    stageStart = recordStage(dedupeLatency, stageStart);
 
-        // Check that the message object contains a text value, otherwise ignore
-        if (obj.has("message")) {
-          obj = obj.get("message").getAsJsonObject();
-          if (obj.has("text")) {
-            String message = obj.get("text").getAsString();
+    if (duplicate) {
+      duplicateEvents.increment();
+      return;
+    }
 
-            routeMessage(message, conversationId);
-          }
-        } else if (obj.has("suggestionResponse")) {
-          obj = obj.get("suggestionResponse").getAsJsonObject();
-          if (obj.has("text")) {
-            String message = obj.get("text").getAsString();
+    if (workQueue == null) {
+      DeadlinePolicy.Deadline deadline = deadlines.start(start, stageStart);
+      handleEvent(event, deadline);
+      awaitResponses(event.getConversationId(), deadline);
+      recordStage(handleLatency, stageStart);
+      processedEvents.increment();
+      return;
+    }
 
-            routeMessage(message, conversationId);
-          }
-        } else if (obj.has("userStatus")) {
-          obj = obj.get("userStatus").getAsJsonObject();
+    // Record the event before acknowledging it, so that it survives a restart
+    long sequence = -1;
+    if (outbox != null && event.getText() != null) {
+      try {
+        sequence = outbox.accept(event.getConversationId(), event.getRequestId(), event.getText(),
+            event.getPostbackData(), System.currentTimeMillis()
+                - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+      } catch (IOException e) {
+        rejectedEvents.increment();
+        logger.log(Level.WARNING, "Unable to record the event in the outbox", e);
+
+        // Forget the request so that the redelivery is not treated as a duplicate
+        deduplicator.release(event.getRequestId());
+
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Outbox is unavailable");
+        return;
+      } finally {
+        stageStart = recordStage(outboxLatency, stageStart);
+      }
+    }
 
-          if (obj.has("isTyping")) {
-            logger.info("User is typing");
-          } else if (obj.has("requestedLiveAgent")) {
-            logger.info("User requested transfer to live agent");
-          }
-        }
+    // Queue the event behind earlier events of the same conversation
+    DeadlinePolicy.Deadline deadline = deadlines.start(start, stageStart);
+    try {
+      dispatcher.submit(event.getConversationId(), () -> {
+        queueWaitLatency.recordSince(deadline.getEnqueuedAtNanos());
+        handleEvent(event, deadline);
+      });
+      processedEvents.increment();
+      markDoneAfterResponses(event.getConversationId(), sequence);
+    } catch (RejectedExecutionException e) {
+      // Runs in the lane of the conversation, so that its responses are sent in order too
+      boolean handled = workQueue.onRejected(() -> dispatcher.runInLane(
+          event.getConversationId(), () -> handleEvent(event, deadline)));
+
+      if (handled && workQueue.getRejectionPolicy() == RejectionPolicy.CALLER_RUNS) {
+        // The lane may still be busy with earlier events, so the responses can be pending
+        processedEvents.increment();
+        markDoneAfterResponses(event.getConversationId(), sequence);
+      } else if (handled) {
+        // Dropped on purpose
+        processedEvents.increment();
+        markDone(sequence);
+      } else {
+        rejectedEvents.increment();
+
+        // The event is redelivered, and recorded again then
+        markDone(sequence);
+
+        // Forget the request so that the redelivery is not treated as a duplicate
+        deduplicator.release(event.getRequestId());
+
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Work queue is full");
       }
+    } finally {
+      recordStage(enqueueLatency, stageStart);
     }
   }
 
   /**
-   * Routes the message received from the user to create a response.
+   * Waits until the responses queued for a conversation have been sent, so that in synchronous
+   * mode the webhook is only answered once the reply was posted or failed.
    *
-   * @param message The message text received from the user.
-   * @param conversationId The unique id for this user and agent.
+   * @param conversationId The conversation of the event.
+   * @param deadline The deadline of the event, after which its responses are no longer sent.
    */
-  private void routeMessage(String message, String conversationId) {
-    String normalizedMessage = message.trim().toLowerCase();
-
-    if (normalizedMessage.equals(CMD_RICH_CARD)) {
-      sendRichCard(conversationId);
-    } else if (normalizedMessage.equals(CMD_CAROUSEL_CARD)) {
-      sendCarousel(conversationId);
-    } else if (normalizedMessage.equals(CMD_SUGGESTIONS)) {
-      sendMessageWithSuggestions(conversationId);
-    } else {
-      echoMessage(message, conversationId);
+  private void awaitResponses(String conversationId, DeadlinePolicy.Deadline deadline) {
+    CompletableFuture<Void> sent = new CompletableFuture<>();
+
+    // Runs after the responses, on the thread that completes the last of them
+    dispatcher.submit(conversationId, () -> sent.complete(null));
+
+    try {
+      sent.get(Math.max(0, deadline.getReplyByNanos() - System.nanoTime()),
+          TimeUnit.NANOSECONDS);
+    } catch (TimeoutException e) {
+      logger.warning("Responses were still being sent when the reply deadline passed");
+    } catch (ExecutionException e) {
+      // Only completes normally
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
   }
 
   /**
-   * Sends a sample rich card to the user.
+   * Marks an outbox entry done once the responses to its event have been sent.
    *
-   * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   * @param conversationId The conversation of the event.
+   * @param sequence The sequence number of the outbox entry, or -1 if the event was not recorded.
    */
-  private void sendRichCard(String conversationId) {
+  private void markDoneAfterResponses(String conversationId, long sequence) {
+    if (outbox == null || sequence < 0) {
+      return;
+    }
+
+    Outbox outbox = this.outbox;
     try {
-      BusinessMessagesStandaloneCard standaloneCard = new BusinessMessagesStandaloneCard()
-          .setCardContent(
-              new BusinessMessagesCardContent()
-                  .setTitle("Business Messages!!!")
-                  .setDescription("This is an example rich card")
-                  .setSuggestions(getSampleSuggestions())
-                  .setMedia(new BusinessMessagesMedia()
-                      .setHeight(MediaHeight.MEDIUM.toString())
-                      .setContentInfo(
-                          new BusinessMessagesContentInfo()
-                              .setFileUrl(SAMPLE_IMAGES[0])
-                      ))
-          );
-
-      // Construct a fallback text for devices that do not support rich cards
-      StringBuilder fallbackText = new StringBuilder();
-      fallbackText.append(standaloneCard.getCardContent().getTitle()).append("\n\n")
-          .append(standaloneCard.getCardContent().getDescription()).append("\n\n")
-          .append(standaloneCard.getCardContent().getMedia().getContentInfo().getFileUrl());
-
-      // Send the rich card message and suggestions to the user
-      sendResponse(new BusinessMessagesMessage()
-          .setMessageId(UUID.randomUUID().toString())
-          .setRichCard(new BusinessMessagesRichCard()
-              .setStandaloneCard(standaloneCard))
-          .setRepresentative(getRepresentative())
-          .setFallback(fallbackText.toString()), conversationId);
-    } catch (Exception e) {
-      logger.log(Level.SEVERE, EXCEPTION_WAS_THROWN, e);
+      // Runs after the event and the responses it queued
+      dispatcher.submit(conversationId, () -> outbox.markDone(sequence));
+    } catch (RejectedExecutionException e) {
+      // Still has to wait for the lane, marking the entry done now could lose the event
+      dispatcher.runInLane(conversationId, () -> outbox.markDone(sequence));
     }
   }
 
   /**
-   * Sends a sample carousel rich card to the user.
+   * Marks an outbox entry done right away.
    *
-   * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   * @param sequence The sequence number of the outbox entry, or -1 if the event was not recorded.
    */
-  private void sendCarousel(String conversationId) {
-    try {
-      BusinessMessagesCarouselCard carouselCard = getSampleCarousel();
-
-      // Construct a fallback text for devices that do not support carousels
-      StringBuilder fallbackText = new StringBuilder();
-      for (BusinessMessagesCardContent cardContent : carouselCard.getCardContents()) {
-        fallbackText.append(cardContent.getTitle()).append("\n\n");
-        fallbackText.append(cardContent.getDescription()).append("\n\n");
-        fallbackText.append(cardContent.getMedia().getContentInfo().getFileUrl()).append("\n");
-        fallbackText.append("---------------------------------------------\n\n");
+  private void markDone(long sequence) {
+    if (outbox != null && sequence >= 0) {
+      outbox.markDone(sequence);
+    }
+  }
+
+  /**
+   * Queues the events recorded in the outbox whose responses were not sent before the last
+   * shutdown. Their requestIds are registered with the deduplicator so that a redelivery is not
+   * handled a second time, and their deadlines run from when they were first received, so that
+   * events that are too old by now are dropped.
+   */
+  private void replayOutbox() {
+    int replayed = 0;
+
+    for (Outbox.Entry entry : outbox.recover()) {
+      WebhookEvent event = WebhookEvent.ofMessage(entry.getConversationId(),
+          entry.getRequestId(), entry.getText(), entry.getPostbackData());
+      long now = System.nanoTime();
+      long receivedAt = now - TimeUnit.MILLISECONDS.toNanos(
+          Math.max(0, System.currentTimeMillis() - entry.getReceivedAtMillis()));
+      DeadlinePolicy.Deadline deadline = deadlines.start(receivedAt, now);
+
+      if (event.getRequestId() != null) {
+        deduplicator.isDuplicate(event.getRequestId());
       }
 
-      // Send the carousel card message and suggestions to the user
-      sendResponse(new BusinessMessagesMessage()
-          .setMessageId(UUID.randomUUID().toString())
-          .setRichCard(new BusinessMessagesRichCard()
-              .setCarouselCard(carouselCard))
-          .setRepresentative(getRepresentative())
-          .setFallback(fallbackText.toString()), conversationId);
-    } catch (Exception e) {
-      logger.log(Level.SEVERE, EXCEPTION_WAS_THROWN, e);
+      try {
+        dispatcher.submit(event.getConversationId(), () -> handleEvent(event, deadline));
+      } catch (RejectedExecutionException e) {
+        // Left in the outbox for the next start
+        logger.warning("Work queue is full, " + (outbox.recover().size() - replayed)
+            + " outbox events were not replayed");
+        break;
+      }
+
+      replayed++;
+      markDoneAfterResponses(event.getConversationId(), entry.getSequence());
     }
+
+    replayedEvents.add(replayed);
   }
 
   /**
-   * Creates a sample carousel rich card.
+   * Decodes, de-duplicates and queues an event pulled from Pub/Sub, like a webhook call.
+   *
+   * Events are handled in order within their conversation, as on the webhook path. The message is
+   * only acknowledged once its responses have been sent, so an instance that goes away before
+   * that leaves the event to be redelivered. Until then the event is only claimed as in flight,
+   * and a redelivery that finds it in flight is not acknowledged but redelivered again later, by
+   * which time the claim was either completed or has expired with the instance that made it.
    *
-   * @return A carousel rich card.
+   * @param body The payload of the Pub/Sub message.
+   * @return Completes with whether the message can be acknowledged.
    */
-  private BusinessMessagesCarouselCard getSampleCarousel() {
-    List<BusinessMessagesCardContent> cardContents = new ArrayList<>();
-
-    // Create individual cards for the carousel
-    for (int i = 0; i < SAMPLE_IMAGES.length; i++) {
-      cardContents.add(new BusinessMessagesCardContent()
-          .setTitle("Card #" + (i + 1))
-          .setDescription("This is a sample card")
-          .setSuggestions(getSampleSuggestions())
-          .setMedia(new BusinessMessagesMedia()
-              .setHeight(MediaHeight.MEDIUM.toString())
-              .setContentInfo(new BusinessMessagesContentInfo()
-                  .setFileUrl(SAMPLE_IMAGES[i]))));
-    }
-
-    return new BusinessMessagesCarouselCard()
-        .setCardContents(cardContents)
-        .setCardWidth(CardWidth.MEDIUM.toString());
+  private CompletableFuture<Boolean> processPubSubMessage(byte[] body) {
+    long receivedAt = System.nanoTime();
+    payloadLog.sampled("pubsub message", body);
+
+    WebhookEvent event = new WebhookEvent();
+
+    // Redelivering a payload that cannot be decoded would not help, acknowledge it
+    try {
+      if (!WebhookEventDecoder.decode(body, 0, body.length, event)
+          || event.getRequestId() == null) {
+        invalidEvents.increment();
+        payloadLog.failure("pubsub message without conversationId or requestId", body);
+        return CompletableFuture.completedFuture(true);
+      }
+    } catch (IOException | IllegalStateException e) {
+      invalidEvents.increment();
+      payloadLog.failure("malformed pubsub message", body);
+      return CompletableFuture.completedFuture(true);
+    }
+
+    ClaimStatus claim = deduplicator.claimInFlight(event.getRequestId());
+
+    if (claim == ClaimStatus.HANDLED) {
+      duplicateEvents.increment();
+      return CompletableFuture.completedFuture(true);
+    } else if (claim == ClaimStatus.IN_FLIGHT) {
+      inFlightEvents.increment();
+      return CompletableFuture.completedFuture(false);
+    }
+
+    CompletableFuture<Boolean> handled = new CompletableFuture<>();
+    DeadlinePolicy.Deadline deadline = deadlines.start(receivedAt, System.nanoTime());
+
+    try {
+      dispatcher.submit(event.getConversationId(), () -> handleEvent(event, deadline));
+    } catch (RejectedExecutionException e) {
+      rejectedEvents.increment();
+
+      // Forget the request so that the redelivery is not treated as a duplicate
+      deduplicator.release(event.getRequestId());
+
+      handled.complete(false);
+      return handled;
+    }
+
+    processedEvents.increment();
+
+    Runnable acknowledge = () -> {
+      deduplicator.complete(event.getRequestId());
+      handled.complete(true);
+    };
+
+    try {
+      // Runs after the event and the responses it queued
+      dispatcher.submit(event.getConversationId(), acknowledge);
+    } catch (RejectedExecutionException e) {
+      // Still has to wait for the lane, acknowledging now could lose the event
+      dispatcher.runInLane(event.getConversationId(), acknowledge);
+    }
+
+    return handled;
   }
 
   /**
-   * Sends a message with a suggested replies.
+   * Creates a response for an inbound event.
    *
-   * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   * @param event The event received from the user.
+   * @param deadline When the event was received and how long its response remains worth
+   *     sending.
    */
-  private void sendMessageWithSuggestions(String conversationId) {
+  private void handleEvent(WebhookEvent event, DeadlinePolicy.Deadline deadline) {
+    TypingIndicatorPolicy.Session typing = null;
+
     try {
-      sendResponse(new BusinessMessagesMessage()
-          .setMessageId(UUID.randomUUID().toString())
-          .setText("Message with suggestions")
-          .setSuggestions(getSampleSuggestions())
-          .setFallback("Your device does not support suggestions")
-          .setRepresentative(getRepresentative()), conversationId);
+      if (event.getText() != null) {
+        // A reply this late would only confuse the user, and building it delays the queue
+        if (deadline.isExpired()) {
+          expiredEvents.increment();
+          logger.fine(() -> "Dropped an event that waited "
+              + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - deadline.getEnqueuedAtNanos())
+              + " ms to be handled");
+          return;
+        }
+
+        typing = typingPolicy.begin(event.getConversationId(), event.getRequestId(),
+            deadline.getStaleAtNanos());
+        RequestContext context = new RequestContext(event.getConversationId(),
+            event.getRequestId(), deadline, typing);
+
+        routeMessage(event.getText(), event.getPostbackData(), context);
+      } else if (event.isUserTyping()) {
+        logger.info("User is typing");
+      } else if (event.isLiveAgentRequested()) {
+        logger.info("User requested transfer to live agent");
+      }
     } catch (Exception e) {
       logger.log(Level.SEVERE, EXCEPTION_WAS_THROWN, e);
+
+      // No reply is coming, so the typing indicator must not be shown or left on
+      if (typing != null) {
+        typing.responseAbandoned();
+      }
     }
   }
 
   /**
-   * Sends the message received from the user back to the user.
+   * Routes the message received from the user to create a response.
    *
    * @param message The message text received from the user.
-   * @param conversationId The unique id for this user and agent.
+   * @param postbackData The postback data of the suggestion the user tapped, or null.
+   * @param context The context of the inbound event.
    */
-  private void echoMessage(String message, String conversationId) {
-    sendResponse(new BusinessMessagesMessage()
-        .setMessageId(UUID.randomUUID().toString())
-        .setText(message)
-        .setRepresentative(getRepresentative()), conversationId);
+  private void routeMessage(String message, String postbackData, RequestContext context) {
+    commands.resolve(message, postbackData).handle(message, context);
   }
 
-  private BusinessMessagesRepresentative getRepresentative() {
-    return new BusinessMessagesRepresentative()
-        .setRepresentativeType(RepresentativeType.BOT.toString())
-        .setDisplayName("Echo Bot")
-        .setAvatarImage("https://storage.googleapis.com/sample-avatars-for-bm/bot-avatar.jpg");
+  /**
+   * Sends a sample rich card to the user.
+   *
+   * @param context The context of the inbound event.
+   */
+  private void sendRichCard(RequestContext context) {
+    dispatchResponse(templates.getRichCard(), context);
   }
 
   /**
-   * Posts a message to the Business Messages API, first sending a typing indicator event and
-   * sending a stop typing event after the message has been sent.
+   * Sends a sample carousel rich card to the user.
    *
-   * @param message The message object to send the user.
-   * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   * @param context The context of the inbound event.
    */
-  private void sendResponse(BusinessMessagesMessage message, String conversationId) {
-    try {
-      // Send typing indicator
-      BusinessMessagesEvent event =
-          new BusinessMessagesEvent()
-              .setEventType(EventType.TYPING_STARTED.toString());
-
-      Businessmessages.Conversations.Events.Create request
-          = builder.build().conversations().events()
-          .create("conversations/" + conversationId, event);
+  private void sendCarousel(RequestContext context) {
+    dispatchResponse(templates.getCarousel(), context);
+  }
 
-      request.setEventId(UUID.randomUUID().toString());
-      request.execute();
+  /**
+   * Sends a message with a suggested replies.
+   *
+   * @param context The context of the inbound event.
+   */
+  private void sendMessageWithSuggestions(RequestContext context) {
+    dispatchResponse(templates.getSuggestions(), context);
+  }
 
-      logger.info("message id: " + message.getMessageId());
-      logger.info("message body: " + message.toPrettyString());
+  /**
+   * Sends the message received from the user back to the user.
+   *
+   * @param message The message text received from the user.
+   * @param context The context of the inbound event.
+   */
+  private void echoMessage(String message, RequestContext context) {
+    String messageId = context.nextMessageId();
 
-      // Send the message
-      Businessmessages.Conversations.Messages.Create messageRequest
-          = builder.build().conversations().messages()
-          .create("conversations/" + conversationId, message);
+    dispatcher.submitAsync(context.getConversationId(),
+        () -> sendText(messageId, message, context));
+  }
 
-      // Setup retries with exponential backoff
-      HttpRequest httpRequest =
-          ((AbstractGoogleClientRequest) messageRequest).buildHttpRequest();
+  /**
+   * Answers the message received from the user with the reply of the intent it matches, or echoes
+   * it if the intent has no reply or cannot be detected.
+   *
+   * The intent is resolved while earlier responses of the conversation are still being sent, and
+   * without holding a worker while the detectIntent call is in flight. Once the deadline of the
+   * event passes the message is echoed, so a slow answer delays the later responses of the
+   * conversation by no more than the deadline.
+   *
+   * @param message The message text received from the user.
+   * @param context The context of the inbound event.
+   */
+  private void answerWithIntent(String message, RequestContext context) {
+    String messageId = context.nextMessageId();
+    CompletableFuture<String> reply = intents.resolve(context.getConversationId(), message,
+        context.getDeadline().getReceivedAtNanos()).handle((intent, error) -> {
+          if (error instanceof TimeoutException) {
+            intentTimeoutFallbacks.increment();
+            logger.fine("Intent not detected before the deadline, echoing the message");
+            return message;
+          } else if (error != null) {
+            intentErrorFallbacks.increment();
+            logger.log(Level.WARNING, "Unable to detect the intent, echoing the message", error);
+            return message;
+          } else if (Strings.isNullOrEmpty(intent.getFulfillmentText())) {
+            intentNoReplyFallbacks.increment();
+            return message;
+          }
 
-      httpRequest.setUnsuccessfulResponseHandler(new
-          HttpBackOffUnsuccessfulResponseHandler(
-          new ExponentialBackOff()));
+          return intent.getFulfillmentText();
+        });
 
-      httpRequest.execute();
+    dispatcher.submitAsync(context.getConversationId(),
+        () -> reply.thenCompose(text -> sendText(messageId, text, context)));
+  }
 
-      // Stop typing indicator
-      event =
-          new BusinessMessagesEvent()
-              .setEventType(EventType.TYPING_STOPPED.toString());
+  /**
+   * Posts a text message to the user.
+   *
+   * @param messageId The ID of the message.
+   * @param text The text of the message.
+   * @param context The context of the inbound event.
+   * @return Completes once the message was posted or failed.
+   */
+  private CompletableFuture<Void> sendText(String messageId, String text,
+      RequestContext context) {
+    BusinessMessagesMessage response = new BusinessMessagesMessage()
+        .setMessageId(messageId)
+        .setText(text)
+        .setRepresentative(ReplyTemplates.newRepresentative());
 
-      request
-          = builder.build().conversations().events()
-          .create("conversations/" + conversationId, event);
+    payloadLog.sampled("message body", () -> toPrettyString(response));
 
-      request.setEventId(UUID.randomUUID().toString());
-      request.execute();
-    } catch (Exception e) {
+    byte[] body;
+    try {
+      body = JacksonFactory.getDefaultInstance().toByteArray(response);
+    } catch (IOException e) {
+      messageCallErrors.increment();
       logger.log(Level.SEVERE, EXCEPTION_WAS_THROWN, e);
+      context.getTyping().responseSent(false);
+      return CompletableFuture.completedFuture(null);
+    }
+
+    return sendResponse(messageId, body, context);
+  }
+
+  /**
+   * Queues a static reply to be posted after all earlier responses in the same conversation.
+   *
+   * @param template The pre-serialized reply.
+   * @param context The context of the inbound event.
+   */
+  private void dispatchResponse(ReplyTemplate template, RequestContext context) {
+    String messageId = context.nextMessageId();
+
+    dispatcher.submitAsync(context.getConversationId(), () -> {
+      logger.info(() -> "message body: " + template.getName() + " template");
+
+      return sendResponse(messageId, template.render(messageId), context);
+    });
+  }
+
+  private static String toPrettyString(BusinessMessagesMessage message) {
+    try {
+      return message.toPrettyString();
+    } catch (IOException e) {
+      return message.toString();
     }
   }
 
   /**
-   * Creates a list of sample suggestions that includes a suggested reply and two actions.
+   * Posts a message to the Business Messages API. A typing indicator is only shown if the
+   * {@link TypingIndicatorPolicy} decided the response took long enough to need one.
    *
-   * @return A list of sample suggestions.
+   * @param messageId The ID of the message.
+   * @param body The serialized message.
+   * @param context The context of the inbound event.
+   * @return Completes once the message was posted or failed.
    */
-  private List<BusinessMessagesSuggestion> getSampleSuggestions() {
-    return new ArrayList<BusinessMessagesSuggestion>() {{
-      add(new BusinessMessagesSuggestion()
-          .setReply(new BusinessMessagesSuggestedReply()
-              .setText("Sample Chip").setPostbackData("sample_chip")
-          ));
-      add(new BusinessMessagesSuggestion()
-          .setAction(new BusinessMessagesSuggestedAction()
-              .setText("URL Action").setPostbackData("url_action")
-              .setOpenUrlAction(
-                  new BusinessMessagesOpenUrlAction().setUrl("https://www.google.com"))
-          ));
-      add(new BusinessMessagesSuggestion()
-          .setAction(new BusinessMessagesSuggestedAction()
-              .setText("Dial Action").setPostbackData("dial_action")
-              .setDialAction(new BusinessMessagesDialAction().setPhoneNumber("+12223334444"))
-          ));
-    }};
+  private CompletableFuture<Void> sendResponse(String messageId, byte[] body,
+      RequestContext context) {
+    return context.getTyping().responseReady().thenCompose(ignored -> {
+      logger.info(() -> "message id: " + messageId);
+
+      long callStart = System.nanoTime();
+
+      return client.createMessage(context.getConversationId(), body,
+          context.getDeadline().getReplyByNanos())
+          .whenComplete((result, error) -> {
+            messageCallLatency.recordSince(callStart);
+
+            if (error != null) {
+              messageCallErrors.increment();
+              logger.log(Level.SEVERE, EXCEPTION_WAS_THROWN, error);
+            }
+
+            context.getTyping().responseSent(error == null);
+          });
+    });
   }
 
   /**
-   * Initializes credentials used by the Business Messages API.
+   * Sends a typing indicator event to the user.
+   *
+   * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   * @param eventId The ID of the event.
+   * @param eventType The type of typing event.
+   * @param deadlineNanos When the event stops being worth sending, from
+   *     {@link System#nanoTime()}.
+   * @return Completes once the event was sent or failed.
    */
-  private void initCredentials() {
-    logger.info("Initializing credentials for Business Messages.");
+  private CompletableFuture<Void> sendTypingEvent(String conversationId, String eventId,
+      EventType eventType, long deadlineNanos) {
+    BusinessMessagesEvent event =
+        new BusinessMessagesEvent()
+            .setEventType(eventType.toString());
 
-    try {
-      this.credential = GoogleCredential.getApplicationDefault();
-      this.credential = credential.createScoped(Arrays.asList(
-          "https://www.googleapis.com/auth/businessmessages"));
+    long callStart = System.nanoTime();
+    CompletableFuture<Void> sent;
 
-      this.credential.refreshToken();
-    } catch (Exception e) {
-      logger.log(Level.SEVERE, EXCEPTION_WAS_THROWN, e);
+    try {
+      sent = client.createEvent(conversationId, eventId,
+          JacksonFactory.getDefaultInstance().toByteArray(event), deadlineNanos);
+    } catch (IOException e) {
+      sent = new CompletableFuture<>();
+      sent.completeExceptionally(e);
     }
+
+    return sent.whenComplete((result, error) -> {
+      eventCallLatency.get(eventType).recordSince(callStart);
+
+      if (error != null) {
+        eventCallErrors.get(eventType).increment();
+      }
+    });
   }
 
   /**
-   * Initializes the BM API object.
+   * Records the time spent in a stage of the webhook path.
+   *
+   * @param histogram The latency histogram of the stage.
+   * @param stageStart When the stage started.
+   * @return When the stage ended, which is when the next stage starts.
    */
-  private void initBmApi() {
-    logger.info("Initializing Business Messages API");
+  private static long recordStage(LatencyHistogram histogram, long stageStart) {
+    long now = System.nanoTime();
+    histogram.recordNanos(now - stageStart);
+    return now;
+  }
 
-    if (this.credential == null) {
-      initCredentials();
-    }
+  private static LatencyHistogram stageHistogram(String stage) {
+    return metrics.histogram("bm_webhook_stage_seconds",
+        "Time spent in each stage of answering a webhook call.", "stage", stage);
+  }
 
-    try {
-      HttpTransport httpTransport = GoogleNetHttpTransport.newTrustedTransport();
-      JacksonFactory jsonFactory = JacksonFactory.getDefaultInstance();
+  private static Counter outcomeCounter(String outcome) {
+    return metrics.counter("bm_webhook_events_total", "Webhook events by outcome.",
+        "outcome", outcome);
+  }
 
-      // create instance of the BM API
-      builder = new Businessmessages
-          .Builder(httpTransport, jsonFactory, null)
-          .setApplicationName("Echo Bot");
+  private static LatencyHistogram apiCallHistogram(String call) {
+    return metrics.histogram("bm_api_call_seconds",
+        "Time to complete each type of Business Messages API call, retries included.",
+        "call", call);
+  }
 
-      // set the API credentials and endpoint
-      builder.setHttpRequestInitializer(credential);
-    } catch (Exception e) {
-      logger.log(Level.SEVERE, EXCEPTION_WAS_THROWN, e);
-    }
+  private static Counter intentFallbackCounter(String reason) {
+    return metrics.counter("bm_intent_fallbacks_total",
+        "Messages echoed instead of answered with the reply of their intent, by reason.",
+        "reason", reason);
+  }
+
+  private static Counter apiErrorCounter(String call) {
+    return metrics.counter("bm_api_call_errors_total",
+        "Business Messages API calls that failed after any retries.", "call", call);
   }
 }
 // [END callback for receiving consumer messages]
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.templates;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesMessage;
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.Bytes;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A static reply serialized once, with a slot for the messageId.
+ *
+ * Rendering the reply for a request only copies the serialized bytes around the new messageId,
+ * without building or serializing the message again.
+ */
+public final class ReplyTemplate {
+
+  // Stand-in for the messageId while the template is serialized
+  private static final String MESSAGE_ID_PLACEHOLDER = "__MESSAGE_ID__";
+
+  private final String name;
+  private final String fallback;
+  private final byte[] prefix;
+  private final byte[] suffix;
+
+  private ReplyTemplate(String name, String fallback, byte[] prefix, byte[] suffix) {
+    this.name = name;
+    this.fallback = fallback;
+    this.prefix = prefix;
+    this.suffix = suffix;
+  }
+
+  /**
+   * Serializes a message into a template.
+   *
+   * @param name The name of the template, used in logs.
+   * @param message The message to send, its messageId is ignored.
+   * @param jsonFactory The factory used to serialize the message.
+   * @return The template.
+   */
+  static ReplyTemplate compile(String name, BusinessMessagesMessage message,
+      JsonFactory jsonFactory) throws IOException {
+    byte[] json = jsonFactory.toByteArray(message.clone().setMessageId(MESSAGE_ID_PLACEHOLDER));
+    byte[] placeholder = MESSAGE_ID_PLACEHOLDER.getBytes(StandardCharsets.UTF_8);
+    int index = Bytes.indexOf(json, placeholder);
+
+    byte[] prefix = new byte[index];
+    byte[] suffix = new byte[json.length - index - placeholder.length];
+    System.arraycopy(json, 0, prefix, 0, prefix.length);
+    System.arraycopy(json, index + placeholder.length, suffix, 0, suffix.length);
+
+    return new ReplyTemplate(name, message.getFallback(), prefix, suffix);
+  }
+
+  /**
+   * Renders the JSON body of the message.
+   *
+   * @param messageId The messageId of this copy of the message, it must not need JSON escaping.
+   * @return The serialized message.
+   */
+  public byte[] render(String messageId) {
+    int length = messageId.length();
+    byte[] body = new byte[prefix.length + length + suffix.length];
+
+    System.arraycopy(prefix, 0, body, 0, prefix.length);
+
+    for (int i = 0; i < length; i++) {
+      char c = messageId.charAt(i);
+
+      Preconditions.checkArgument(c >= 0x20 && c < 0x7F && c != '"' && c != '\\',
+          "Unsupported messageId %s", messageId);
+
+      body[prefix.length + i] = (byte) c;
+    }
+
+    System.arraycopy(suffix, 0, body, prefix.length + length, suffix.length);
+
+    return body;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return The fallback text of the message, for devices that cannot display it.
+   */
+  public String getFallback() {
+    return fallback;
+  }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.templates;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesCardContent;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesCarouselCard;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesContentInfo;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesDialAction;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesMedia;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesMessage;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesOpenUrlAction;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesRepresentative;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesRichCard;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesStandaloneCard;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesSuggestedAction;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesSuggestedReply;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesSuggestion;
+import com.google.communications.businessmessages.v1.CardWidth;
+import com.google.communications.businessmessages.v1.MediaHeight;
+import com.google.communications.businessmessages.v1.RepresentativeType;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The static replies of the bot, built and serialized once at startup.
+ */
+public final class ReplyTemplates {
+
+  // Images used in cards and carousel examples
+  private static final String SAMPLE_IMAGES[] = new String[]{
+      "https://storage.googleapis.com/kitchen-sink-sample-images/cute-dog.jpg",
+      "https://storage.googleapis.com/kitchen-sink-sample-images/elephant.jpg",
+      "https://storage.googleapis.com/kitchen-sink-sample-images/adventure-cliff.jpg",
+      "https://storage.googleapis.com/kitchen-sink-sample-images/sheep.jpg",
+      "https://storage.googleapis.com/kitchen-sink-sample-images/golden-gate-bridge.jpg"};
+
+  private final ReplyTemplate richCard;
+  private final ReplyTemplate carousel;
+  private final ReplyTemplate suggestions;
+
+  private ReplyTemplates(ReplyTemplate richCard, ReplyTemplate carousel,
+      ReplyTemplate suggestions) {
+    this.richCard = richCard;
+    this.carousel = carousel;
+    this.suggestions = suggestions;
+  }
+
+  /**
+   * Builds and serializes every static reply.
+   *
+   * @param jsonFactory The factory used to serialize the replies.
+   * @return The templates.
+   */
+  public static ReplyTemplates create(JsonFactory jsonFactory) throws IOException {
+    return new ReplyTemplates(
+        ReplyTemplate.compile("rich card", buildRichCard(), jsonFactory),
+        ReplyTemplate.compile("carousel", buildCarousel(), jsonFactory),
+        ReplyTemplate.compile("suggestions", buildSuggestions(), jsonFactory));
+  }
+
+  /**
+   * @return The sample rich card.
+   */
+  public ReplyTemplate getRichCard() {
+    return richCard;
+  }
+
+  /**
+   * @return The sample carousel.
+   */
+  public ReplyTemplate getCarousel() {
+    return carousel;
+  }
+
+  /**
+   * @return The sample message with suggested replies.
+   */
+  public ReplyTemplate getSuggestions() {
+    return suggestions;
+  }
+
+  /**
+   * Creates the representative that replies are sent as.
+   *
+   * @return The bot representative.
+   */
+  public static BusinessMessagesRepresentative newRepresentative() {
+    return new BusinessMessagesRepresentative()
+        .setRepresentativeType(RepresentativeType.BOT.toString())
+        .setDisplayName("Echo Bot")
+        .setAvatarImage("https://storage.googleapis.com/sample-avatars-for-bm/bot-avatar.jpg");
+  }
+
+  /**
+   * Creates a sample rich card message, without a messageId.
+   *
+   * @return A rich card message.
+   */
+  public static BusinessMessagesMessage buildRichCard() {
+    BusinessMessagesStandaloneCard standaloneCard = new BusinessMessagesStandaloneCard()
+        .setCardContent(
+            new BusinessMessagesCardContent()
+                .setTitle("Business Messages!!!")
+                .setDescription("This is an example rich card")
+                .setSuggestions(buildSampleSuggestions())
+                .setMedia(new BusinessMessagesMedia()
+                    .setHeight(MediaHeight.MEDIUM.toString())
+                    .setContentInfo(
+                        new BusinessMessagesContentInfo()
+                            .setFileUrl(SAMPLE_IMAGES[0])
+                    ))
+        );
+
+    // Construct a fallback text for devices that do not support rich cards
+    StringBuilder fallbackText = new StringBuilder();
+    fallbackText.append(standaloneCard.getCardContent().getTitle()).append("\n\n")
+        .append(standaloneCard.getCardContent().getDescription()).append("\n\n")
+        .append(standaloneCard.getCardContent().getMedia().getContentInfo().getFileUrl());
+
+    return new BusinessMessagesMessage()
+        .setRichCard(new BusinessMessagesRichCard()
+            .setStandaloneCard(standaloneCard))
+        .setRepresentative(newRepresentative())
+        .setFallback(fallbackText.toString());
+  }
+
+  /**
+   * Creates a sample carousel message, without a messageId.
+   *
+   * @return A carousel message.
+   */
+  public static BusinessMessagesMessage buildCarousel() {
+    List<BusinessMessagesCardContent> cardContents = new ArrayList<>();
+    List<BusinessMessagesSuggestion> suggestions = buildSampleSuggestions();
+
+    // Create individual cards for the carousel
+    for (int i = 0; i < SAMPLE_IMAGES.length; i++) {
+      cardContents.add(new BusinessMessagesCardContent()
+          .setTitle("Card #" + (i + 1))
+          .setDescription("This is a sample card")
+          .setSuggestions(suggestions)
+          .setMedia(new BusinessMessagesMedia()
+              .setHeight(MediaHeight.MEDIUM.toString())
+              .setContentInfo(new BusinessMessagesContentInfo()
+                  .setFileUrl(SAMPLE_IMAGES[i]))));
+    }
+
+    // Construct a fallback text for devices that do not support carousels
+    StringBuilder fallbackText = new StringBuilder();
+    for (BusinessMessagesCardContent cardContent : cardContents) {
+      fallbackText.append(cardContent.getTitle()).append("\n\n");
+      fallbackText.append(cardContent.getDescription()).append("\n\n");
+      fallbackText.append(cardContent.getMedia().getContentInfo().getFileUrl()).append("\n");
+      fallbackText.append("---------------------------------------------\n\n");
+    }
+
+    return new BusinessMessagesMessage()
+        .setRichCard(new BusinessMessagesRichCard()
+            .setCarouselCard(new BusinessMessagesCarouselCard()
+                .setCardContents(cardContents)
+                .setCardWidth(CardWidth.MEDIUM.toString())))
+        .setRepresentative(newRepresentative())
+        .setFallback(fallbackText.toString());
+  }
+
+  /**
+   * Creates a sample message with suggested replies, without a messageId.
+   *
+   * @return A message with suggestions.
+   */
+  public static BusinessMessagesMessage buildSuggestions() {
+    return new BusinessMessagesMessage()
+        .setText("Message with suggestions")
+        .setSuggestions(buildSampleSuggestions())
+        .setFallback("Your device does not support suggestions")
+        .setRepresentative(newRepresentative());
+  }
+
+  /**
+   * Creates a list of sample suggestions that includes a suggested reply and two actions.
+   *
+   * @return A list of sample suggestions.
+   */
+  private static List<BusinessMessagesSuggestion> buildSampleSuggestions() {
+    return Arrays.asList(
+        new BusinessMessagesSuggestion()
+            .setReply(new BusinessMessagesSuggestedReply()
+                .setText("Sample Chip").setPostbackData("sample_chip")
+            ),
+        new BusinessMessagesSuggestion()
+            .setAction(new BusinessMessagesSuggestedAction()
+                .setText("URL Action").setPostbackData("url_action")
+                .setOpenUrlAction(
+                    new BusinessMessagesOpenUrlAction().setUrl("https://www.google.com"))
+            ),
+        new BusinessMessagesSuggestion()
+            .setAction(new BusinessMessagesSuggestedAction()
+                .setText("Dial Action").setPostbackData("dial_action")
+                .setDialAction(new BusinessMessagesDialAction().setPhoneNumber("+12223334444"))
+            ));
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.webhook;
+
+import com.google.businessmessages.samples.config.BotConfig;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides how long the work done for an inbound event remains worth doing.
+ *
+ * Both limits count from when the event was received, so time spent waiting in a queue is
+ * charged to the event. Past the stale threshold the reply is already late and only the reply
+ * itself is still sent, without typing indicators. Past the reply deadline the event is not
+ * answered at all, and API calls made for it are neither attempted nor retried.
+ */
+public final class DeadlinePolicy {
+
+  // System properties used to configure the policy
+  public static final String PROP_REPLY_MS = "bm.deadline.replyMs";
+  public static final String PROP_STALE_MS = "bm.deadline.staleMs";
+
+  private static final long DEFAULT_REPLY_MS = 30000;
+  private static final long DEFAULT_STALE_MS = 5000;
+
+  private final long replyNanos;
+  private final long staleNanos;
+
+  /**
+   * Creates a policy.
+   *
+   * @param replyMillis How long after an event was received a reply may still be sent.
+   * @param staleMillis How long after an event was received typing indicators are still sent.
+   */
+  public DeadlinePolicy(long replyMillis, long staleMillis) {
+    this.replyNanos = TimeUnit.MILLISECONDS.toNanos(replyMillis);
+    this.staleNanos = TimeUnit.MILLISECONDS.toNanos(Math.min(staleMillis, replyMillis));
+  }
+
+  /**
+   * Creates a policy from the {@code bm.deadline.*} system properties.
+   *
+   * @return A new policy.
+   */
+  public static DeadlinePolicy fromConfig() {
+    return new DeadlinePolicy(
+        Math.max(1, BotConfig.getLong(PROP_REPLY_MS, DEFAULT_REPLY_MS)),
+        Math.max(0, BotConfig.getLong(PROP_STALE_MS, DEFAULT_STALE_MS)));
+  }
+
+  /**
+   * Starts the clock of an inbound event.
+   *
+   * @param receivedAtNanos When the event was received, from {@link System#nanoTime()}.
+   * @param enqueuedAtNanos When the event was queued to be handled, from
+   *     {@link System#nanoTime()}.
+   * @return The deadline of the work done for the event.
+   */
+  public Deadline start(long receivedAtNanos, long enqueuedAtNanos) {
+    return new Deadline(receivedAtNanos, enqueuedAtNanos);
+  }
+
+  /**
+   * The timing of the work done for a single inbound event.
+   */
+  public final class Deadline {
+
+    private final long receivedAtNanos;
+    private final long enqueuedAtNanos;
+
+    private Deadline(long receivedAtNanos, long enqueuedAtNanos) {
+      this.receivedAtNanos = receivedAtNanos;
+      this.enqueuedAtNanos = enqueuedAtNanos;
+    }
+
+    /**
+     * @return When the event was received, from {@link System#nanoTime()}.
+     */
+    public long getReceivedAtNanos() {
+      return receivedAtNanos;
+    }
+
+    /**
+     * @return When the event was queued to be handled, from {@link System#nanoTime()}.
+     */
+    public long getEnqueuedAtNanos() {
+      return enqueuedAtNanos;
+    }
+
+    /**
+     * @return When a reply stops being worth sending, from {@link System#nanoTime()}.
+     */
+    public long getReplyByNanos() {
+      return receivedAtNanos + replyNanos;
+    }
+
+    /**
+     * @return When typing indicators and other extras stop being worth sending, from
+     *     {@link System#nanoTime()}.
+     */
+    public long getStaleAtNanos() {
+      return receivedAtNanos + staleNanos;
+    }
+
+    /**
+     * @return Whether a reply is no longer worth sending.
+     */
+    public boolean isExpired() {
+      return System.nanoTime() - getReplyByNanos() >= 0;
+    }
+  }
+}
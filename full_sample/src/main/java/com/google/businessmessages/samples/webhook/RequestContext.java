@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.webhook;
+
+import com.google.businessmessages.samples.outbound.IdGenerator;
+import com.google.businessmessages.samples.outbound.TypingIndicatorPolicy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * State carried from an inbound event through routing to the response sent for it.
+ */
+public final class RequestContext {
+
+  private final String conversationId;
+  private final String requestId;
+  private final DeadlinePolicy.Deadline deadline;
+  private final TypingIndicatorPolicy.Session typing;
+  private final AtomicInteger messageSequence = new AtomicInteger();
+
+  /**
+   * Creates a context.
+   *
+   * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   * @param requestId The requestId of the inbound event, or null.
+   * @param deadline When the event was received and how long its response remains worth
+   *     sending.
+   * @param typing The typing indicator state of the response.
+   */
+  public RequestContext(String conversationId, String requestId,
+      DeadlinePolicy.Deadline deadline, TypingIndicatorPolicy.Session typing) {
+    this.conversationId = conversationId;
+    this.requestId = requestId;
+    this.deadline = deadline;
+    this.typing = typing;
+  }
+
+  /**
+   * Returns the ID of the next message sent in reply to the event, derived from its requestId.
+   *
+   * @return The message ID.
+   */
+  public String nextMessageId() {
+    return IdGenerator.derive(requestId, "message", messageSequence.getAndIncrement());
+  }
+
+  public String getConversationId() {
+    return conversationId;
+  }
+
+  public String getRequestId() {
+    return requestId;
+  }
+
+  public DeadlinePolicy.Deadline getDeadline() {
+    return deadline;
+  }
+
+  public TypingIndicatorPolicy.Session getTyping() {
+    return typing;
+  }
+}
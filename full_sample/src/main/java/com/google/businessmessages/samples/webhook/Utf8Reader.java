@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.webhook;
+
+import java.io.Reader;
+
+/**
+ * Reader that decodes UTF-8 directly from a byte array into the caller's buffer.
+ *
+ * Unlike an InputStreamReader it allocates no intermediate byte or char buffers, which dominate
+ * the cost of decoding small payloads. Malformed sequences are replaced with U+FFFD.
+ */
+final class Utf8Reader extends Reader {
+
+  private static final char REPLACEMENT = '\uFFFD';
+
+  private final byte[] bytes;
+  private final int end;
+  private int position;
+
+  // Low surrogate left over when a supplementary character did not fit in the caller's buffer
+  private char pendingLowSurrogate;
+
+  Utf8Reader(byte[] bytes, int offset, int length) {
+    this.bytes = bytes;
+    this.position = offset;
+    this.end = offset + length;
+  }
+
+  @Override
+  public int read(char[] buffer, int offset, int length) {
+    if (length == 0) {
+      return 0;
+    }
+
+    int count = 0;
+
+    if (pendingLowSurrogate != 0) {
+      buffer[offset + count++] = pendingLowSurrogate;
+      pendingLowSurrogate = 0;
+    }
+
+    while (count < length && position < end) {
+      int b = bytes[position];
+
+      // ASCII fast path
+      if (b >= 0) {
+        buffer[offset + count++] = (char) b;
+        position++;
+        continue;
+      }
+
+      int codePoint = decodeMultiByte();
+
+      if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+        buffer[offset + count++] = (char) codePoint;
+      } else {
+        buffer[offset + count++] = Character.highSurrogate(codePoint);
+
+        if (count < length) {
+          buffer[offset + count++] = Character.lowSurrogate(codePoint);
+        } else {
+          pendingLowSurrogate = Character.lowSurrogate(codePoint);
+        }
+      }
+    }
+
+    return count == 0 ? -1 : count;
+  }
+
+  /**
+   * Decodes the multi-byte sequence at the current position and advances past it.
+   */
+  private int decodeMultiByte() {
+    int lead = bytes[position] & 0xFF;
+    int extra;
+    int codePoint;
+    int min;
+
+    if ((lead & 0xE0) == 0xC0) {
+      extra = 1;
+      codePoint = lead & 0x1F;
+      min = 0x80;
+    } else if ((lead & 0xF0) == 0xE0) {
+      extra = 2;
+      codePoint = lead & 0x0F;
+      min = 0x800;
+    } else if ((lead & 0xF8) == 0xF0) {
+      extra = 3;
+      codePoint = lead & 0x07;
+      min = Character.MIN_SUPPLEMENTARY_CODE_POINT;
+    } else {
+      position++;
+      return REPLACEMENT;
+    }
+
+    position++;
+
+    for (int i = 0; i < extra; i++) {
+      if (position >= end || (bytes[position] & 0xC0) != 0x80) {
+        return REPLACEMENT;
+      }
+
+      codePoint = (codePoint << 6) | (bytes[position++] & 0x3F);
+    }
+
+    boolean surrogate =
+        codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE;
+
+    return codePoint < min || codePoint > Character.MAX_CODE_POINT || surrogate
+        ? REPLACEMENT
+        : codePoint;
+  }
+
+  @Override
+  public void close() {
+  }
+}
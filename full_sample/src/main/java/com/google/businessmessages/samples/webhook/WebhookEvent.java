@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.webhook;
+
+/**
+ * The fields of an inbound webhook payload that the bot acts on.
+ *
+ * Instances are filled in by {@link WebhookEventDecoder} and can be reused for the next payload
+ * once the previous event has been handled.
+ */
+public final class WebhookEvent {
+
+  private String conversationId;
+  private String requestId;
+  private String text;
+  private String postbackData;
+  private boolean userTyping;
+  private boolean liveAgentRequested;
+
+  /**
+   * Creates the event of a message or tapped suggestion that was received earlier, for example to
+   * handle it again after a restart.
+   *
+   * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   * @param requestId The requestId of the event, or null.
+   * @param text The text of the message or tapped suggestion.
+   * @param postbackData The postback data of the tapped suggestion, or null for a message.
+   * @return A new event.
+   */
+  public static WebhookEvent ofMessage(String conversationId, String requestId, String text,
+      String postbackData) {
+    WebhookEvent event = new WebhookEvent();
+    event.conversationId = conversationId;
+    event.requestId = requestId;
+    event.text = text;
+    event.postbackData = postbackData;
+    return event;
+  }
+
+  /**
+   * Clears all fields so the instance can hold the next event.
+   */
+  void reset() {
+    conversationId = null;
+    requestId = null;
+    text = null;
+    postbackData = null;
+    userTyping = false;
+    liveAgentRequested = false;
+  }
+
+  public String getConversationId() {
+    return conversationId;
+  }
+
+  void setConversationId(String conversationId) {
+    this.conversationId = conversationId;
+  }
+
+  public String getRequestId() {
+    return requestId;
+  }
+
+  void setRequestId(String requestId) {
+    this.requestId = requestId;
+  }
+
+  /**
+   * @return The text of the user's message or tapped suggestion, or null if there is none.
+   */
+  public String getText() {
+    return text;
+  }
+
+  void setText(String text) {
+    this.text = text;
+  }
+
+  /**
+   * @return The postback data of the tapped suggestion, or null if the user typed a message.
+   */
+  public String getPostbackData() {
+    return postbackData;
+  }
+
+  void setPostbackData(String postbackData) {
+    this.postbackData = postbackData;
+  }
+
+  public boolean isUserTyping() {
+    return userTyping;
+  }
+
+  void setUserTyping(boolean userTyping) {
+    this.userTyping = userTyping;
+  }
+
+  public boolean isLiveAgentRequested() {
+    return liveAgentRequested;
+  }
+
+  void setLiveAgentRequested(boolean liveAgentRequested) {
+    this.liveAgentRequested = liveAgentRequested;
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.webhook;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.IOException;
+
+/**
+ * Decodes webhook payloads with a streaming reader.
+ *
+ * Only the fields the bot routes on are extracted, everything else is skipped without building a
+ * JSON tree. When a payload contains more than one of message, suggestionResponse and userStatus,
+ * they take precedence in that order.
+ */
+public final class WebhookEventDecoder {
+
+  private WebhookEventDecoder() {
+  }
+
+  /**
+   * Decodes a UTF-8 webhook payload.
+   *
+   * @param body The buffer holding the raw payload.
+   * @param offset The position of the payload in the buffer.
+   * @param length The length of the payload.
+   * @param event The event to fill in, any previous contents are cleared.
+   * @return False if the payload has no conversationId.
+   * @throws IOException If the payload is not a JSON object.
+   */
+  public static boolean decode(byte[] body, int offset, int length, WebhookEvent event)
+      throws IOException {
+    event.reset();
+
+    JsonReader reader = new JsonReader(new Utf8Reader(body, offset, length));
+    reader.setLenient(true);
+
+    boolean hasMessage = false;
+    boolean hasSuggestionResponse = false;
+    String messageText = null;
+    String suggestionText = null;
+
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "conversationId":
+          event.setConversationId(nextString(reader));
+          break;
+        case "requestId":
+          event.setRequestId(nextString(reader));
+          break;
+        case "message":
+          hasMessage = true;
+          messageText = readText(reader, null);
+          break;
+        case "suggestionResponse":
+          hasSuggestionResponse = true;
+          suggestionText = readText(reader, event);
+          break;
+        case "userStatus":
+          readUserStatus(reader, event);
+          break;
+        default:
+          reader.skipValue();
+      }
+    }
+
+    if (hasMessage) {
+      event.setText(messageText);
+      event.setPostbackData(null);
+    } else if (hasSuggestionResponse) {
+      event.setText(suggestionText);
+    }
+
+    if (hasMessage || hasSuggestionResponse) {
+      event.setUserTyping(false);
+      event.setLiveAgentRequested(false);
+    }
+
+    return event.getConversationId() != null;
+  }
+
+  /**
+   * Reads the text field of a message or suggestionResponse object.
+   *
+   * @param postbackEvent Receives the postbackData field, or null if it should be ignored.
+   */
+  private static String readText(JsonReader reader, WebhookEvent postbackEvent)
+      throws IOException {
+    if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+      reader.skipValue();
+      return null;
+    }
+
+    String text = null;
+
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+
+      if (name.equals("text")) {
+        text = nextString(reader);
+      } else if (postbackEvent != null && name.equals("postbackData")) {
+        postbackEvent.setPostbackData(nextString(reader));
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+
+    return text;
+  }
+
+  /**
+   * Reads the userStatus object, only the presence of its fields matters.
+   */
+  private static void readUserStatus(JsonReader reader, WebhookEvent event) throws IOException {
+    if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+      reader.skipValue();
+      return;
+    }
+
+    boolean typing = false;
+    boolean liveAgent = false;
+
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+
+      typing |= name.equals("isTyping");
+      liveAgent |= name.equals("requestedLiveAgent");
+
+      reader.skipValue();
+    }
+    reader.endObject();
+
+    event.setUserTyping(typing);
+    event.setLiveAgentRequested(!typing && liveAgent);
+  }
+
+  private static String nextString(JsonReader reader) throws IOException {
+    switch (reader.peek()) {
+      case NULL:
+        reader.nextNull();
+        return null;
+      case BOOLEAN:
+        return String.valueOf(reader.nextBoolean());
+      case STRING:
+      case NUMBER:
+        return reader.nextString();
+      default:
+        reader.skipValue();
+        return null;
+    }
+  }
+}
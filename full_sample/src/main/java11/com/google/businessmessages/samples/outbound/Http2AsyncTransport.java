@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.outbound;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Makes non-blocking calls with the JDK HTTP client, multiplexing concurrent requests as streams
+ * over a few HTTP/2 connections.
+ *
+ * No thread is held while a call is in flight, the responses are handled by a small pool.
+ * Compiled separately for Java 11 by the java11 build profile and only loaded by
+ * {@link BmClientRegistry} when {@link TransportMode#HTTP2} is selected.
+ */
+public final class Http2AsyncTransport implements AsyncTransport {
+
+  private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(20);
+
+  private final ExecutorService executor;
+  private final HttpClient client;
+
+  /**
+   * Creates a transport.
+   *
+   * @param threads The number of threads that handle responses.
+   */
+  public Http2AsyncTransport(int threads) {
+    this.executor = Executors.newFixedThreadPool(threads,
+        new ThreadFactoryBuilder().setNameFormat("bm-http2-%d").setDaemon(true).build());
+    this.client = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_2)
+        .connectTimeout(CONNECT_TIMEOUT)
+        .executor(executor)
+        .build();
+  }
+
+  @Override
+  public CompletableFuture<Void> post(String url, String authorization, byte[] body,
+      long timeoutMillis) {
+    HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(url))
+        .timeout(Duration.ofMillis(Math.max(1, timeoutMillis)))
+        .header("Content-Type", "application/json; charset=UTF-8")
+        .POST(HttpRequest.BodyPublishers.ofByteArray(body));
+
+    if (authorization != null) {
+      request.header("Authorization", authorization);
+    }
+
+    return client.sendAsync(request.build(), HttpResponse.BodyHandlers.ofString())
+        .thenCompose(response -> {
+          CompletableFuture<Void> result = new CompletableFuture<>();
+
+          if (response.statusCode() / 100 == 2) {
+            result.complete(null);
+          } else {
+            result.completeExceptionally(
+                new ApiCallException(response.statusCode(), response.body()));
+          }
+
+          return result;
+        });
+  }
+
+  @Override
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.async;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+public class ConversationDispatcherTest {
+
+  @Test
+  public void runsTasksInOrderWithinEachConversation() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    ConversationDispatcher dispatcher = new ConversationDispatcher(executor, Integer.MAX_VALUE);
+    Map<String, List<Integer>> runs = new ConcurrentHashMap<>();
+    CountDownLatch done = new CountDownLatch(300);
+
+    for (int i = 0; i < 100; i++) {
+      for (String conversationId : new String[] {"a", "b", "c"}) {
+        int sequence = i;
+        dispatcher.submit(conversationId, () -> {
+          runs.computeIfAbsent(conversationId, key -> Collections.synchronizedList(
+              new ArrayList<>())).add(sequence);
+          done.countDown();
+        });
+      }
+    }
+
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+
+    // The lanes finish their bookkeeping after the last task returns
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+    for (List<Integer> sequences : runs.values()) {
+      assertEquals(100, sequences.size());
+
+      for (int i = 0; i < sequences.size(); i++) {
+        assertEquals(i, (int) sequences.get(i));
+      }
+    }
+
+    assertEquals(0, dispatcher.getPendingCount());
+    assertTrue(dispatcher.getQueueDepths().isEmpty());
+  }
+
+  @Test
+  public void parksTheLaneUntilAnAsyncTaskCompletes() {
+    ConversationDispatcher dispatcher =
+        new ConversationDispatcher(MoreExecutors.directExecutor(), Integer.MAX_VALUE);
+    CompletableFuture<Void> reply = new CompletableFuture<>();
+    List<String> runs = new ArrayList<>();
+
+    dispatcher.submitAsync("a", () -> {
+      runs.add("first");
+      return reply;
+    });
+    dispatcher.submit("a", () -> runs.add("second"));
+    dispatcher.submit("b", () -> runs.add("other"));
+
+    // Other conversations are not held up by the parked lane
+    assertEquals(2, runs.size());
+    assertEquals("other", runs.get(1));
+    assertEquals(2, dispatcher.getQueueDepth("a"));
+
+    reply.complete(null);
+
+    assertEquals("second", runs.get(2));
+    assertEquals(0, dispatcher.getPendingCount());
+    assertEquals(0, dispatcher.getQueueDepth("a"));
+  }
+
+  @Test
+  public void holdsTheLaneForTasksSubmittedFromTheLane() {
+    ConversationDispatcher dispatcher =
+        new ConversationDispatcher(MoreExecutors.directExecutor(), Integer.MAX_VALUE);
+    CompletableFuture<Void> reply = new CompletableFuture<>();
+    List<String> runs = new ArrayList<>();
+
+    dispatcher.submit("a", () -> {
+      runs.add("event");
+      // Runs right away, and the event only releases the lane once it completes
+      dispatcher.submitAsync("a", () -> {
+        runs.add("reply");
+        return reply;
+      });
+    });
+    dispatcher.submit("a", () -> runs.add("next event"));
+
+    assertEquals(2, runs.size());
+
+    reply.complete(null);
+
+    assertEquals("next event", runs.get(2));
+  }
+
+  @Test
+  public void rejectsTasksOverThePendingLimit() {
+    ConversationDispatcher dispatcher =
+        new ConversationDispatcher(MoreExecutors.directExecutor(), 1);
+    CompletableFuture<Void> reply = new CompletableFuture<>();
+
+    dispatcher.submitAsync("a", () -> reply);
+
+    try {
+      dispatcher.submit("b", () -> fail("Rejected task ran"));
+      fail("Expected a rejection");
+    } catch (RejectedExecutionException expected) {
+      // The limit counts tasks across conversations
+    }
+
+    assertEquals(1, dispatcher.getPendingCount());
+    assertEquals(0, dispatcher.getQueueDepth("b"));
+
+    reply.complete(null);
+
+    assertEquals(0, dispatcher.getPendingCount());
+  }
+
+  @Test
+  public void forgetsTasksTheExecutorRejects() {
+    ConversationDispatcher dispatcher = new ConversationDispatcher(task -> {
+      throw new RejectedExecutionException("Full");
+    }, Integer.MAX_VALUE);
+
+    try {
+      dispatcher.submit("a", () -> fail("Rejected task ran"));
+      fail("Expected a rejection");
+    } catch (RejectedExecutionException expected) {
+      // Passed on to the caller
+    }
+
+    assertEquals(0, dispatcher.getPendingCount());
+    assertEquals(0, dispatcher.getQueueDepth("a"));
+
+    // The lane was retired, a later task starts a new one
+    List<String> runs = new ArrayList<>();
+    ConversationDispatcher direct =
+        new ConversationDispatcher(MoreExecutors.directExecutor(), Integer.MAX_VALUE);
+    direct.submit("a", () -> runs.add("later"));
+    assertEquals(1, runs.size());
+  }
+
+  @Test
+  public void resumesOnTheCompletingThreadWhenTheExecutorIsFull() {
+    SwitchableExecutor executor = new SwitchableExecutor();
+    ConversationDispatcher dispatcher = new ConversationDispatcher(executor, Integer.MAX_VALUE);
+    CompletableFuture<Void> reply = new CompletableFuture<>();
+    AtomicReference<Thread> ranOn = new AtomicReference<>();
+
+    dispatcher.submitAsync("a", () -> reply);
+    dispatcher.submit("a", () -> ranOn.set(Thread.currentThread()));
+
+    executor.full = true;
+    reply.complete(null);
+
+    assertSame(Thread.currentThread(), ranOn.get());
+    assertEquals(0, dispatcher.getPendingCount());
+  }
+
+  @Test
+  public void runInLaneDrainsAnIdleLaneOnTheCallingThread() {
+    SwitchableExecutor executor = new SwitchableExecutor();
+    executor.full = true;
+    ConversationDispatcher dispatcher = new ConversationDispatcher(executor, 0);
+    List<String> runs = new ArrayList<>();
+
+    // The response joins the lane instead of being rejected by the full executor
+    dispatcher.runInLane("a", () -> {
+      runs.add("event");
+      dispatcher.submitAsync("a", () -> {
+        runs.add("reply");
+        return null;
+      });
+    });
+
+    assertEquals(2, runs.size());
+    assertEquals(0, dispatcher.getPendingCount());
+  }
+
+  @Test
+  public void runInLaneQueuesBehindEarlierTasks() {
+    SwitchableExecutor executor = new SwitchableExecutor();
+    ConversationDispatcher dispatcher = new ConversationDispatcher(executor, 1);
+    CompletableFuture<Void> reply = new CompletableFuture<>();
+    List<String> runs = new ArrayList<>();
+
+    dispatcher.submitAsync("a", () -> reply);
+    executor.full = true;
+    dispatcher.runInLane("a", () -> runs.add("later"));
+
+    assertTrue(runs.isEmpty());
+    assertEquals(2, dispatcher.getPendingCount());
+
+    reply.complete(null);
+
+    assertEquals(1, runs.size());
+    assertFalse(dispatcher.getQueueDepths().containsKey("a"));
+  }
+
+  /**
+   * Runs tasks on the calling thread until it is marked full.
+   */
+  private static final class SwitchableExecutor implements Executor {
+
+    private volatile boolean full;
+
+    @Override
+    public void execute(Runnable task) {
+      if (full) {
+        throw new RejectedExecutionException("Full");
+      }
+
+      task.run();
+    }
+  }
+}
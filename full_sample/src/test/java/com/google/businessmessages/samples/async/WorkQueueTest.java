@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.async;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+public class WorkQueueTest {
+
+  private final CountDownLatch release = new CountDownLatch(1);
+  private WorkQueue workQueue;
+
+  @After
+  public void tearDown() {
+    release.countDown();
+    workQueue.shutdown(5, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void callerRunsPostsTheReplyOfARejectedEvent() throws Exception {
+    workQueue = new WorkQueue(1, 1, RejectionPolicy.CALLER_RUNS);
+    ConversationDispatcher dispatcher =
+        new ConversationDispatcher(workQueue, workQueue.getCapacity());
+    List<String> posted = new CopyOnWriteArrayList<>();
+
+    fill(dispatcher);
+
+    // As the servlet does: the event is handled on the caller thread and replies asynchronously
+    Runnable event = () -> dispatcher.submitAsync("b",
+        () -> CompletableFuture.runAsync(() -> posted.add("reply")));
+
+    try {
+      dispatcher.submit("b", event);
+      fail("Expected the full queue to reject the event");
+    } catch (RejectedExecutionException e) {
+      assertTrue(workQueue.onRejected(() -> dispatcher.runInLane("b", event)));
+    }
+
+    // The lane is released just after the reply completes
+    waitFor(() -> !posted.isEmpty() && !dispatcher.getQueueDepths().containsKey("b"));
+    assertEquals(1, workQueue.getRejectedCount());
+  }
+
+  @Test
+  public void callerRunsKeepsTheOrderOfTheConversation() throws Exception {
+    workQueue = new WorkQueue(1, 1, RejectionPolicy.CALLER_RUNS);
+    ConversationDispatcher dispatcher =
+        new ConversationDispatcher(workQueue, workQueue.getCapacity());
+    List<String> runs = new CopyOnWriteArrayList<>();
+
+    dispatcher.submit("a", () -> {
+      awaitRelease();
+      runs.add("earlier");
+    });
+
+    try {
+      dispatcher.submit("a", () -> runs.add("later"));
+      fail("Expected the full queue to reject the event");
+    } catch (RejectedExecutionException e) {
+      assertTrue(workQueue.onRejected(() -> dispatcher.runInLane("a", () -> runs.add("later"))));
+    }
+
+    // Queued behind the earlier event rather than overtaking it
+    assertTrue(runs.isEmpty());
+
+    release.countDown();
+    waitFor(() -> runs.size() == 2);
+    assertEquals("earlier", runs.get(0));
+  }
+
+  @Test
+  public void abortAsksForRedelivery() {
+    workQueue = new WorkQueue(1, 1, RejectionPolicy.ABORT);
+
+    assertFalse(workQueue.onRejected(() -> fail("Rejected event ran")));
+    assertEquals(1, workQueue.getRejectedCount());
+  }
+
+  /**
+   * Occupies the only worker and the whole pending limit with a task of another conversation.
+   */
+  private void fill(ConversationDispatcher dispatcher) {
+    dispatcher.submit("a", this::awaitRelease);
+  }
+
+  private void awaitRelease() {
+    try {
+      release.await(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void waitFor(Condition condition) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+
+    while (!condition.holds()) {
+      if (System.nanoTime() - deadline > 0) {
+        fail("Timed out");
+      }
+
+      Thread.sleep(5);
+    }
+  }
+
+  private interface Condition {
+    boolean holds();
+  }
+}
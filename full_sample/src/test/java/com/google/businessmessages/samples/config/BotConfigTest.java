@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.config;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class BotConfigTest {
+
+  private static final String NAME = "bm.test.value";
+
+  @After
+  public void tearDown() {
+    System.clearProperty(NAME);
+  }
+
+  @Test
+  public void readsIntegers() {
+    System.setProperty(NAME, " 42 ");
+
+    assertEquals(42, BotConfig.getInt(NAME, 7));
+    assertEquals(42, BotConfig.getLong(NAME, 7));
+  }
+
+  @Test
+  public void unsetOrMalformedValueUsesTheDefault() {
+    assertEquals(7, BotConfig.getInt(NAME, 7));
+
+    System.setProperty(NAME, "lots");
+    assertEquals(7, BotConfig.getInt(NAME, 7));
+  }
+
+  @Test
+  public void valueOutsideTheIntRangeUsesTheDefault() {
+    System.setProperty(NAME, "3000000000");
+
+    assertEquals(7, BotConfig.getInt(NAME, 7));
+    assertEquals(3000000000L, BotConfig.getLong(NAME, 7));
+
+    System.setProperty(NAME, "-3000000000");
+    assertEquals(7, BotConfig.getInt(NAME, 7));
+  }
+}
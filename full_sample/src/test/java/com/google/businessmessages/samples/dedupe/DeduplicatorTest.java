@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.dedupe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class DeduplicatorTest {
+
+  private final FakeClaimStore store = new FakeClaimStore();
+
+  // Two instances sharing the store
+  private final Deduplicator first = new Deduplicator(store, 100, 600, 60);
+  private final Deduplicator second = new Deduplicator(store, 100, 600, 60);
+
+  @Test
+  public void detectsRedeliveriesLocallyAndAcrossInstances() {
+    assertFalse(first.isDuplicate("r1"));
+
+    int calls = store.calls.get();
+    assertTrue(first.isDuplicate("r1"));
+    assertEquals("Answered without the shared store", calls, store.calls.get());
+    assertEquals(1, first.getLocalHits());
+
+    assertTrue(second.isDuplicate("r1"));
+    assertEquals(1, second.getRemoteHits());
+  }
+
+  @Test
+  public void releasedRequestIsProcessedAgain() {
+    assertFalse(first.isDuplicate("r1"));
+
+    first.release("r1");
+
+    assertFalse(second.isDuplicate("r1"));
+    second.release("r1");
+    assertFalse(first.isDuplicate("r1"));
+  }
+
+  @Test
+  public void inFlightClaimIsHandledOnlyOnceCompleted() {
+    assertEquals(ClaimStatus.CLAIMED, first.claimInFlight("r1"));
+
+    // Redeliveries while it is handled are retried later, on any instance
+    assertEquals(ClaimStatus.IN_FLIGHT, first.claimInFlight("r1"));
+    assertEquals(ClaimStatus.IN_FLIGHT, second.claimInFlight("r1"));
+
+    first.complete("r1");
+
+    assertEquals(ClaimStatus.HANDLED, first.claimInFlight("r1"));
+    assertEquals(ClaimStatus.HANDLED, second.claimInFlight("r1"));
+  }
+
+  @Test
+  public void releasedInFlightClaimCanBeClaimedAgain() {
+    assertEquals(ClaimStatus.CLAIMED, first.claimInFlight("r1"));
+
+    first.release("r1");
+
+    assertEquals(ClaimStatus.CLAIMED, second.claimInFlight("r1"));
+  }
+
+  @Test
+  public void unavailableStoreLetsEventsThrough() {
+    store.failing = true;
+
+    assertFalse(first.isDuplicate("r1"));
+    assertEquals(ClaimStatus.CLAIMED, first.claimInFlight("r2"));
+  }
+
+  /**
+   * An in-memory claim store whose in-flight claims never expire.
+   */
+  private static final class FakeClaimStore implements ClaimStore {
+
+    private final Map<String, ClaimStatus> claims = new ConcurrentHashMap<>();
+    private final AtomicInteger calls = new AtomicInteger();
+    private volatile boolean failing;
+
+    @Override
+    public boolean claim(String requestId) {
+      call();
+      return claims.putIfAbsent(requestId, ClaimStatus.HANDLED) == null;
+    }
+
+    @Override
+    public ClaimStatus claimInFlight(String requestId, int leaseSeconds) {
+      call();
+      ClaimStatus existing = claims.putIfAbsent(requestId, ClaimStatus.IN_FLIGHT);
+      return existing == null ? ClaimStatus.CLAIMED : existing;
+    }
+
+    @Override
+    public void complete(String requestId) {
+      call();
+      claims.put(requestId, ClaimStatus.HANDLED);
+    }
+
+    @Override
+    public void release(String requestId) {
+      call();
+      claims.remove(requestId);
+    }
+
+    private void call() {
+      calls.incrementAndGet();
+
+      if (failing) {
+        throw new IllegalStateException("Store unavailable");
+      }
+    }
+  }
+}
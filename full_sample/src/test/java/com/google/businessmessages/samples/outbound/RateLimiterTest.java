@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.outbound;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.base.Ticker;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+public class RateLimiterTest {
+
+  private static final long MAX_WAIT_MS = 10000;
+  private static final long FOREVER = TimeUnit.HOURS.toNanos(1);
+
+  private final AtomicLong cacheTime = new AtomicLong();
+  private final Ticker ticker = new Ticker() {
+    @Override
+    public long read() {
+      return cacheTime.get();
+    }
+  };
+
+  @Test
+  public void delaysMessagesBeyondTheBurst() {
+    RateLimiter limiter = new RateLimiter(0, 1, 1, 2, MAX_WAIT_MS, ticker);
+
+    assertEquals(0, limiter.reserveMessage("a", FOREVER));
+    assertEquals(0, limiter.reserveMessage("a", FOREVER));
+    assertTrue(limiter.reserveMessage("a", FOREVER) > 0);
+
+    // Other conversations have their own bucket
+    assertEquals(0, limiter.reserveMessage("b", FOREVER));
+  }
+
+  @Test
+  public void dropsMessagesThatWouldWaitTooLong() {
+    RateLimiter limiter = new RateLimiter(0, 1, 1, 1, MAX_WAIT_MS, ticker);
+
+    assertEquals(0, limiter.reserveMessage("a", FOREVER));
+    assertEquals(-1, limiter.reserveMessage("a", TimeUnit.MILLISECONDS.toNanos(100)));
+  }
+
+  @Test
+  public void keepsTheBucketWhileBookedMessagesWait() {
+    RateLimiter limiter = new RateLimiter(0, 1, 1, 2, MAX_WAIT_MS, ticker);
+    long wait;
+
+    // Book the conversation up to the maximum wait, as a user spamming a command would
+    do {
+      wait = limiter.reserveMessage("a", FOREVER);
+    } while (wait >= 0);
+
+    // Long after a burst would have refilled, but the booked messages are still waiting
+    cacheTime.addAndGet(TimeUnit.SECONDS.toNanos(5));
+
+    assertEquals(-1, limiter.reserveMessage("a", FOREVER));
+    assertFalse(limiter.tryEvent("a"));
+
+    // Once idle past the booked messages and a refill, the bucket is forgotten
+    cacheTime.addAndGet(TimeUnit.SECONDS.toNanos(20));
+
+    assertEquals(0, limiter.reserveMessage("a", FOREVER));
+  }
+
+  @Test
+  public void refusedAgentSlotDoesNotUseUpTheConversationSlot() {
+    // A conversation slot every 10 seconds, an agent slot every second
+    RateLimiter limiter = new RateLimiter(1, 1, 0.1, 1, MAX_WAIT_MS, ticker);
+
+    // Takes the only slot of the agent
+    assertEquals(0, limiter.reserveMessage("a", FOREVER));
+
+    // Refused by the agent, so conversation b keeps its slot and only waits for the agent
+    assertEquals(-1, limiter.reserveMessage("b", 0));
+    long wait = limiter.reserveMessage("b", FOREVER);
+    assertTrue(wait >= 0 && wait < TimeUnit.SECONDS.toNanos(5));
+  }
+
+  @Test
+  public void eventsDoNotTakeSlots() {
+    RateLimiter limiter = new RateLimiter(0, 1, 1, 1, MAX_WAIT_MS, ticker);
+
+    assertTrue(limiter.tryEvent("a"));
+    assertTrue(limiter.tryEvent("a"));
+    assertEquals(0, limiter.reserveMessage("a", FOREVER));
+    assertFalse(limiter.tryEvent("a"));
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.outbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.businessmessages.samples.metrics.Counter;
+import com.google.businessmessages.samples.metrics.MetricsRegistry;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class OutboxTest {
+
+  private static final int FILE_BYTES = 4096;
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private Path path;
+
+  @Before
+  public void setUp() {
+    path = folder.getRoot().toPath().resolve("outbox.log");
+  }
+
+  @Test
+  public void replaysTheEntriesNotMarkedDone() throws Exception {
+    Outbox outbox = new Outbox(path, FILE_BYTES, 1000);
+    long first = outbox.accept("c1", "r1", "hello", null, 1000);
+    long second = outbox.accept("c2", "r2", "yes", "postback", 2000);
+    long third = outbox.accept("c1", "r3", "bye", null, 3000);
+    outbox.markDone(second);
+    outbox.close();
+
+    List<Outbox.Entry> entries = new Outbox(path, FILE_BYTES, 1000).recover();
+
+    assertEquals(2, entries.size());
+    assertEquals(first, entries.get(0).getSequence());
+    assertEquals("c1", entries.get(0).getConversationId());
+    assertEquals("r1", entries.get(0).getRequestId());
+    assertEquals("hello", entries.get(0).getText());
+    assertNull(entries.get(0).getPostbackData());
+    assertEquals(1000, entries.get(0).getReceivedAtMillis());
+    assertEquals(third, entries.get(1).getSequence());
+    assertEquals("bye", entries.get(1).getText());
+  }
+
+  @Test
+  public void tornTailRecordEndsTheReplay() throws Exception {
+    Outbox outbox = new Outbox(path, FILE_BYTES, 1000);
+    long first = outbox.accept("c1", "r1", "hello", null, 1000);
+    outbox.accept("c1", "r2", "torn", null, 2000);
+    outbox.close();
+
+    // Flip a byte in the last record, as a crash in the middle of writing it could
+    byte[] bytes = Files.readAllBytes(path);
+    bytes[endOfRecords(bytes) - 1] ^= 1;
+    Files.write(path, bytes);
+
+    Outbox reopened = new Outbox(path, FILE_BYTES, 1000);
+    List<Outbox.Entry> entries = reopened.recover();
+
+    assertEquals(1, entries.size());
+    assertEquals(first, entries.get(0).getSequence());
+
+    // The torn record is gone for good and its sequence number is not reused
+    long next = reopened.accept("c1", "r3", "again", null, 3000);
+    assertTrue(next > first);
+    reopened.markDone(first);
+    reopened.close();
+
+    entries = new Outbox(path, FILE_BYTES, 1000).recover();
+    assertEquals(1, entries.size());
+    assertEquals(next, entries.get(0).getSequence());
+    assertEquals("again", entries.get(0).getText());
+  }
+
+  @Test
+  public void compactionKeepsThePendingEntries() throws Exception {
+    Counter compactions = MetricsRegistry.getDefault().counter("bm_outbox_compactions_total", "");
+    long compactionsBefore = compactions.get();
+    Outbox outbox = new Outbox(path, FILE_BYTES, 5000);
+    List<Long> pending = new ArrayList<>();
+
+    // Many times the size of the log, so that it has to be compacted while events arrive
+    for (int i = 0; i < 2000; i++) {
+      long sequence = outbox.accept("c" + (i % 7), "r" + i, "message " + i, null, i);
+
+      if (i % 200 == 0) {
+        pending.add(sequence);
+      } else {
+        outbox.markDone(sequence);
+      }
+    }
+
+    outbox.close();
+
+    assertTrue(compactions.get() - compactionsBefore > 2);
+    assertEquals(FILE_BYTES, Files.size(path));
+
+    List<Outbox.Entry> entries = new Outbox(path, FILE_BYTES, 1000).recover();
+
+    assertEquals(pending.size(), entries.size());
+    for (int i = 0; i < pending.size(); i++) {
+      assertEquals((long) pending.get(i), entries.get(i).getSequence());
+      assertEquals("message " + i * 200, entries.get(i).getText());
+    }
+  }
+
+  /**
+   * @return The offset after the last record of a log, where its unwritten end starts.
+   */
+  private static int endOfRecords(byte[] log) {
+    ByteBuffer buffer = ByteBuffer.wrap(log);
+    int end = 0;
+
+    while (end + 8 <= log.length && buffer.getInt(end) > 0) {
+      end += 8 + buffer.getInt(end);
+    }
+
+    return end;
+  }
+}
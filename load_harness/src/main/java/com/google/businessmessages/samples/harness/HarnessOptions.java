@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.harness;
+
+import com.google.common.base.Splitter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Command line options of the load harness, given as {@code --name value} pairs.
+ */
+final class HarnessOptions {
+
+  private static final List<String> FLAGS = Arrays.asList("stubOnly", "help");
+
+  private final Map<String, String> values;
+
+  private HarnessOptions(Map<String, String> values) {
+    this.values = values;
+  }
+
+  /**
+   * Parses the command line.
+   *
+   * @param args The command line arguments.
+   * @return The options.
+   */
+  static HarnessOptions parse(String[] args) {
+    Map<String, String> values = new HashMap<>();
+
+    for (int i = 0; i < args.length; i++) {
+      if (!args[i].startsWith("--")) {
+        throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+      }
+
+      String name = args[i].substring(2);
+
+      if (FLAGS.contains(name)) {
+        values.put(name, "true");
+      } else if (i + 1 < args.length) {
+        values.put(name, args[++i]);
+      } else {
+        throw new IllegalArgumentException("Missing value for " + args[i]);
+      }
+    }
+
+    return new HarnessOptions(values);
+  }
+
+  static String usage() {
+    return "Usage: java -jar load-harness.jar [options]\n"
+        + "\n"
+        + "Webhook traffic:\n"
+        + "  --webhook URL          Webhook of the bot (http://localhost:8080/callback)\n"
+        + "  --label NAME           Name of the sample under test, used in the report\n"
+        + "  --rate N               Events per second of the first step (50)\n"
+        + "  --maxRate N            Events per second of the last step (--rate)\n"
+        + "  --rateStep N           Increase of the rate between steps (--rate)\n"
+        + "  --duration SECONDS     Length of each step (10)\n"
+        + "  --warmup SECONDS       Unreported warm-up at the first rate (5)\n"
+        + "  --conversations N      Number of conversations events are spread across (100)\n"
+        + "  --texts A,B,...        Message texts, used in turn (Hello there)\n"
+        + "  --partnerKey KEY       Sign events with this key, for message_validation_sample\n"
+        + "  --connections N        Maximum concurrent webhook calls (64)\n"
+        + "  --timeoutMs N          Timeout of each webhook call (30000)\n"
+        + "  --sloP99Ms N           Highest p99 a step may have to count as sustained (1000)\n"
+        + "  --drainSeconds N       Longest wait for outbound calls after each step (10)\n"
+        + "\n"
+        + "Stub Business Messages API:\n"
+        + "  --stubPort N           Port of the stub API (9090)\n"
+        + "  --stubThreads N        Maximum concurrent calls to the stub API (200)\n"
+        + "  --latency SPEC         fixed:MS, uniform:MIN:MAX, exponential:MEAN or\n"
+        + "                         lognormal:MEDIAN:SIGMA (exponential:50)\n"
+        + "  --throttleRate R       Share of calls answered with 429 (0)\n"
+        + "  --errorRate R          Share of calls answered with 500 (0)\n"
+        + "  --credentials FILE     Write a service account key file for the stub API\n"
+        + "  --stubOnly             Only run the stub API, until interrupted\n";
+  }
+
+  boolean has(String name) {
+    return values.containsKey(name);
+  }
+
+  String getString(String name, String defaultValue) {
+    return values.getOrDefault(name, defaultValue);
+  }
+
+  int getInt(String name, int defaultValue) {
+    String value = values.get(name);
+
+    try {
+      return value == null ? defaultValue : Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid number for --" + name + ": " + value);
+    }
+  }
+
+  double getDouble(String name, double defaultValue) {
+    String value = values.get(name);
+
+    try {
+      return value == null ? defaultValue : Double.parseDouble(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid number for --" + name + ": " + value);
+    }
+  }
+
+  List<String> getList(String name, String defaultValue) {
+    return Splitter.on(',').trimResults().omitEmptyStrings()
+        .splitToList(getString(name, defaultValue));
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.harness;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Distribution of the simulated latency of the stub API, in milliseconds.
+ *
+ * Parsed from a specification such as {@code fixed:20}, {@code uniform:10:80},
+ * {@code exponential:40} or {@code lognormal:40:0.8}.
+ */
+final class LatencyDistribution {
+
+  private enum Kind {
+    FIXED, UNIFORM, EXPONENTIAL, LOGNORMAL
+  }
+
+  private final String spec;
+  private final Kind kind;
+  private final double first;
+  private final double second;
+
+  private LatencyDistribution(String spec, Kind kind, double first, double second) {
+    this.spec = spec;
+    this.kind = kind;
+    this.first = first;
+    this.second = second;
+  }
+
+  /**
+   * Parses a latency specification.
+   *
+   * @param spec The kind followed by its parameters: fixed:millis, uniform:minMillis:maxMillis,
+   *     exponential:meanMillis or lognormal:medianMillis:sigma.
+   * @return The distribution.
+   */
+  static LatencyDistribution parse(String spec) {
+    String[] parts = spec.split(":");
+    Kind kind;
+
+    try {
+      kind = Kind.valueOf(parts[0].toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Unknown latency distribution: " + spec);
+    }
+
+    int expectedParts = kind == Kind.UNIFORM || kind == Kind.LOGNORMAL ? 3 : 2;
+    if (parts.length != expectedParts) {
+      throw new IllegalArgumentException("Malformed latency distribution: " + spec);
+    }
+
+    double first = Double.parseDouble(parts[1]);
+    double second = expectedParts == 3 ? Double.parseDouble(parts[2]) : 0;
+
+    if (first < 0 || second < 0 || (kind == Kind.UNIFORM && second < first)) {
+      throw new IllegalArgumentException("Invalid latency distribution: " + spec);
+    }
+
+    return new LatencyDistribution(spec, kind, first, second);
+  }
+
+  /**
+   * Draws a latency.
+   *
+   * @return The latency in milliseconds.
+   */
+  long sampleMillis() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+
+    switch (kind) {
+      case UNIFORM:
+        return Math.round(first + random.nextDouble() * (second - first));
+      case EXPONENTIAL:
+        return Math.round(-first * Math.log(1 - random.nextDouble()));
+      case LOGNORMAL:
+        return Math.round(first * Math.exp(second * random.nextGaussian()));
+      default:
+        return Math.round(first);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return spec;
+  }
+}
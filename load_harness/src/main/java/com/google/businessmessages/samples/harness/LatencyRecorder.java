@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.harness;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records latencies from many threads into a preallocated array and reports their percentiles.
+ *
+ * Samples beyond the capacity are counted but not kept.
+ */
+final class LatencyRecorder {
+
+  private final long[] samples;
+  private final AtomicInteger count = new AtomicInteger();
+
+  /**
+   * Creates a recorder.
+   *
+   * @param capacity The maximum number of samples kept.
+   */
+  LatencyRecorder(int capacity) {
+    this.samples = new long[capacity];
+  }
+
+  /**
+   * Records one latency.
+   *
+   * @param micros The latency in microseconds.
+   */
+  void record(long micros) {
+    int index = count.getAndIncrement();
+
+    if (index < samples.length) {
+      samples[index] = micros;
+    }
+  }
+
+  /**
+   * @return The number of latencies recorded, including those that were not kept.
+   */
+  int getCount() {
+    return count.get();
+  }
+
+  /**
+   * Computes percentiles of the kept samples. Call once recording has finished.
+   *
+   * @param percentiles The percentiles to compute, between 0 and 100.
+   * @return The latency at each percentile in microseconds, or zeros if nothing was recorded.
+   */
+  long[] percentiles(double... percentiles) {
+    int kept = Math.min(count.get(), samples.length);
+    long[] sorted = Arrays.copyOf(samples, kept);
+    long[] result = new long[percentiles.length];
+
+    Arrays.sort(sorted);
+
+    for (int i = 0; kept > 0 && i < percentiles.length; i++) {
+      int rank = (int) Math.ceil(percentiles[i] / 100 * kept) - 1;
+      result[i] = sorted[Math.max(0, Math.min(kept - 1, rank))];
+    }
+
+    return result;
+  }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.harness;
+
+import com.google.businessmessages.samples.harness.TrafficGenerator.StepResult;
+import java.net.URL;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load tests a sample bot end to end on the local machine.
+ *
+ * Starts a stub of the Business Messages API, then offers webhook events to the bot in steps of
+ * increasing rate. Each step reports the webhook latency, the outbound calls the bot made to the
+ * stub per event, and whether the bot sustained the rate. The highest sustained rate is the
+ * throughput ceiling of the sample.
+ *
+ * The bot must run with bm.api.rootUrl set to the stub, see the README.
+ */
+public final class LoadHarness {
+
+  // The share of the target rate a step must reach to count as sustained
+  private static final double SUSTAINED_THROUGHPUT = 0.95;
+  // The share of events a step may fail to count as sustained
+  private static final double SUSTAINED_ERROR_RATE = 0.01;
+
+  private LoadHarness() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    HarnessOptions options;
+
+    try {
+      options = HarnessOptions.parse(args);
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.err.println(HarnessOptions.usage());
+      System.exit(2);
+      return;
+    }
+
+    if (options.has("help")) {
+      System.out.println(HarnessOptions.usage());
+      return;
+    }
+
+    int connections = Math.max(1, options.getInt("connections", 64));
+
+    // Let HttpURLConnection keep a connection alive for every sender
+    System.setProperty("http.maxConnections", String.valueOf(connections));
+    // Without this, Nagle's algorithm adds tens of milliseconds to every stub API call
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+
+    StubBusinessMessagesApi stub = new StubBusinessMessagesApi(
+        options.getInt("stubPort", 9090),
+        Math.max(1, options.getInt("stubThreads", 200)),
+        LatencyDistribution.parse(options.getString("latency", "exponential:50")),
+        options.getDouble("throttleRate", 0),
+        options.getDouble("errorRate", 0));
+
+    stub.start();
+    System.out.println("Stub Business Messages API listening at " + stub.getRootUrl());
+
+    if (options.has("credentials")) {
+      stub.writeCredentials(Paths.get(options.getString("credentials", null)));
+      System.out.println("Wrote credentials for the stub API to "
+          + options.getString("credentials", null));
+    }
+
+    if (options.has("stubOnly")) {
+      Thread.currentThread().join();
+    }
+
+    int rate = Math.max(1, options.getInt("rate", 50));
+    int maxRate = Math.max(rate, options.getInt("maxRate", rate));
+    int rateStep = Math.max(1, options.getInt("rateStep", rate));
+    int duration = Math.max(1, options.getInt("duration", 10));
+    int warmup = Math.max(0, options.getInt("warmup", 5));
+    long sloP99Micros = TimeUnit.MILLISECONDS.toMicros(options.getInt("sloP99Ms", 1000));
+    int drainSeconds = Math.max(0, options.getInt("drainSeconds", 10));
+    String label = options.getString("label", "bot");
+
+    WebhookPayloads payloads = new WebhookPayloads(
+        Math.max(1, options.getInt("conversations", 100)),
+        options.getList("texts", "Hello there"),
+        options.getString("partnerKey", null));
+    TrafficGenerator generator = new TrafficGenerator(
+        new URL(options.getString("webhook", "http://localhost:8080/callback")),
+        payloads, connections, options.getInt("timeoutMs", 30000));
+
+    // Warm up the bot and the harness at the first rate, without reporting
+    if (warmup > 0) {
+      System.out.println("Warming up for " + warmup + "s at " + rate + " events/s");
+      generator.run(rate, warmup);
+      awaitOutboundCalls(stub, drainSeconds);
+    }
+
+    System.out.printf("%n%-8s %8s %8s %9s %9s %9s %8s %8s %8s %8s%n", "rate", "ok/s", "shed",
+        "p50 ms", "p99 ms", "p999 ms", "msg/evt", "typ/evt", "call/evt", "429+5xx");
+
+    int ceiling = 0;
+
+    for (int target = rate; target <= maxRate; target += rateStep) {
+      long callsBefore = stub.getCalls();
+      long messagesBefore = stub.getMessages();
+      long typingBefore = stub.getTypingStarted() + stub.getTypingStopped();
+      long injectedBefore = stub.getThrottled() + stub.getFailed();
+
+      StepResult step = generator.run(target, duration);
+      awaitOutboundCalls(stub, drainSeconds);
+
+      long[] latencies = step.getLatencyPercentiles();
+      double events = Math.max(1, step.getSucceeded());
+
+      System.out.printf("%-8d %8.1f %8d %9.1f %9.1f %9.1f %8.2f %8.2f %8.2f %8d%n",
+          target,
+          step.getThroughput(),
+          step.getRejected() + step.getFailed() + step.getErrors(),
+          latencies[0] / 1000.0, latencies[1] / 1000.0, latencies[2] / 1000.0,
+          (stub.getMessages() - messagesBefore) / events,
+          (stub.getTypingStarted() + stub.getTypingStopped() - typingBefore) / events,
+          (stub.getCalls() - callsBefore) / events,
+          stub.getThrottled() + stub.getFailed() - injectedBefore);
+
+      if (!isSustained(step, sloP99Micros)) {
+        break;
+      }
+
+      ceiling = target;
+    }
+
+    System.out.println();
+    System.out.println(ceiling == 0
+        ? label + " did not sustain " + rate + " events/s"
+        : "Throughput ceiling of " + label + ": " + ceiling + " events/s");
+    System.out.println("Access tokens issued by the stub API: " + stub.getTokens());
+
+    generator.shutdown();
+    stub.stop();
+  }
+
+  /**
+   * Checks whether the bot kept up with the offered rate within the latency objective.
+   */
+  private static boolean isSustained(StepResult step, long sloP99Micros) {
+    long unsuccessful = step.getRejected() + step.getFailed() + step.getErrors();
+
+    return step.getThroughput() >= SUSTAINED_THROUGHPUT * step.getRate()
+        && unsuccessful <= SUSTAINED_ERROR_RATE * step.getTotal()
+        && step.getLatencyPercentiles()[1] <= sloP99Micros;
+  }
+
+  /**
+   * Waits until the bot stops calling the stub API, so replies sent after the webhook was
+   * acknowledged are counted in the step that caused them.
+   */
+  private static void awaitOutboundCalls(StubBusinessMessagesApi stub, int maxSeconds)
+      throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(maxSeconds);
+    long calls = stub.getCalls();
+    int quietPolls = 0;
+
+    while (quietPolls < 2 && System.nanoTime() < deadline) {
+      TimeUnit.MILLISECONDS.sleep(500);
+
+      long current = stub.getCalls();
+      quietPolls = current == calls ? quietPolls + 1 : 0;
+      calls = current;
+    }
+  }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.harness;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends webhook events to the bot at a fixed rate, independently of how fast it responds.
+ *
+ * Events are scheduled open-loop: each one has an intended send time, and its latency is measured
+ * from that time. Time spent waiting for a free connection while the bot is slow is therefore
+ * counted, instead of silently lowering the offered rate.
+ */
+final class TrafficGenerator {
+
+  private final URL webhookUrl;
+  private final WebhookPayloads payloads;
+  private final ExecutorService senders;
+  private final int timeoutMillis;
+
+  private long sequence;
+
+  /**
+   * Creates a traffic generator.
+   *
+   * @param webhookUrl The webhook of the bot.
+   * @param payloads The source of payloads.
+   * @param connections The maximum number of concurrent webhook calls.
+   * @param timeoutMillis The connect and read timeout of each call.
+   */
+  TrafficGenerator(URL webhookUrl, WebhookPayloads payloads, int connections, int timeoutMillis) {
+    this.webhookUrl = webhookUrl;
+    this.payloads = payloads;
+    this.timeoutMillis = timeoutMillis;
+    this.senders = new ThreadPoolExecutor(connections, connections, 0, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<>(),
+        new ThreadFactoryBuilder().setNameFormat("bm-load-%d").setDaemon(true).build());
+  }
+
+  /**
+   * Offers webhook events at a fixed rate and waits for every response.
+   *
+   * @param rate The target number of events per second.
+   * @param durationSeconds How long to offer events for.
+   * @return The outcome of the step.
+   * @throws InterruptedException If interrupted while waiting.
+   */
+  StepResult run(int rate, int durationSeconds) throws InterruptedException {
+    int total = rate * durationSeconds;
+    long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+    StepResult result = new StepResult(rate, total);
+    long start = System.nanoTime();
+
+    for (int i = 0; i < total; i++) {
+      long intendedTime = start + i * intervalNanos;
+      long wait = intendedTime - System.nanoTime();
+
+      if (wait > 0) {
+        LockSupport.parkNanos(wait);
+      }
+
+      byte[] payload = payloads.message(sequence++);
+      senders.execute(() -> send(payload, intendedTime, result));
+    }
+
+    result.awaitCompletion();
+    result.finish(System.nanoTime() - start);
+
+    return result;
+  }
+
+  void shutdown() {
+    senders.shutdownNow();
+  }
+
+  private void send(byte[] payload, long intendedTime, StepResult result) {
+    int status;
+
+    try {
+      HttpURLConnection connection = (HttpURLConnection) webhookUrl.openConnection();
+      connection.setRequestMethod("POST");
+      connection.setDoOutput(true);
+      connection.setConnectTimeout(timeoutMillis);
+      connection.setReadTimeout(timeoutMillis);
+      connection.setFixedLengthStreamingMode(payload.length);
+      connection.setRequestProperty("Content-Type", "application/json");
+
+      String signature = payloads.sign(payload);
+      if (signature != null) {
+        connection.setRequestProperty("X-Goog-Signature", signature);
+      }
+
+      try (OutputStream out = connection.getOutputStream()) {
+        out.write(payload);
+      }
+
+      status = connection.getResponseCode();
+
+      // Drain the response so the connection is kept alive for the next call
+      InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+      if (in != null) {
+        try (InputStream body = in) {
+          ByteStreams.exhaust(body);
+        }
+      }
+    } catch (IOException e) {
+      status = -1;
+    }
+
+    result.record(status, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intendedTime));
+  }
+
+  /**
+   * The outcome of offering events at one rate.
+   */
+  static final class StepResult {
+
+    private final int rate;
+    private final int total;
+    private final LatencyRecorder latencies;
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    private final Object lock = new Object();
+    private int completed;
+    private long elapsedNanos;
+
+    StepResult(int rate, int total) {
+      this.rate = rate;
+      this.total = total;
+      this.latencies = new LatencyRecorder(total);
+    }
+
+    void record(int status, long micros) {
+      latencies.record(micros);
+
+      if (status >= 200 && status < 300) {
+        succeeded.increment();
+      } else if (status == 429 || status == 503) {
+        rejected.increment();
+      } else if (status > 0) {
+        failed.increment();
+      } else {
+        errors.increment();
+      }
+
+      synchronized (lock) {
+        completed++;
+        if (completed == total) {
+          lock.notifyAll();
+        }
+      }
+    }
+
+    void awaitCompletion() throws InterruptedException {
+      synchronized (lock) {
+        while (completed < total) {
+          lock.wait();
+        }
+      }
+    }
+
+    void finish(long elapsedNanos) {
+      this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * @return The target number of events per second.
+     */
+    int getRate() {
+      return rate;
+    }
+
+    /**
+     * @return The number of events sent.
+     */
+    int getTotal() {
+      return total;
+    }
+
+    /**
+     * @return The number of events acknowledged with 2xx.
+     */
+    long getSucceeded() {
+      return succeeded.sum();
+    }
+
+    /**
+     * @return The number of events shed with 429 or 503, which Business Messages redelivers.
+     */
+    long getRejected() {
+      return rejected.sum();
+    }
+
+    /**
+     * @return The number of events answered with another error status.
+     */
+    long getFailed() {
+      return failed.sum();
+    }
+
+    /**
+     * @return The number of events that could not be sent or timed out.
+     */
+    long getErrors() {
+      return errors.sum();
+    }
+
+    /**
+     * @return The number of events acknowledged with 2xx per second, from the first send to the
+     *     last response.
+     */
+    double getThroughput() {
+      return elapsedNanos == 0 ? 0 : getSucceeded() * 1e9 / elapsedNanos;
+    }
+
+    /**
+     * @return The webhook latency at p50, p99 and p999, in microseconds.
+     */
+    long[] getLatencyPercentiles() {
+      return latencies.percentiles(50, 99, 99.9);
+    }
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.harness;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Builds webhook payloads shaped like the ones Business Messages delivers, and their signatures.
+ */
+final class WebhookPayloads {
+
+  private static final String HMAC_ALGORITHM = "HmacSHA512";
+
+  private final String[] conversationIds;
+  private final String[] texts;
+  private final SecretKeySpec signingKey;
+  private final ThreadLocal<Mac> macs;
+
+  /**
+   * Creates a payload source.
+   *
+   * @param conversations The number of conversations the payloads are spread across.
+   * @param texts The message texts, used in turn.
+   * @param partnerKey The key to sign payloads with, or null to leave them unsigned.
+   */
+  WebhookPayloads(int conversations, List<String> texts, String partnerKey) {
+    this.conversationIds = new String[conversations];
+    this.texts = texts.toArray(new String[0]);
+
+    for (int i = 0; i < conversations; i++) {
+      conversationIds[i] = UUID.randomUUID().toString();
+    }
+
+    if (partnerKey == null) {
+      this.signingKey = null;
+      this.macs = null;
+    } else {
+      this.signingKey =
+          new SecretKeySpec(partnerKey.getBytes(StandardCharsets.UTF_8), HMAC_ALGORITHM);
+      this.macs = ThreadLocal.withInitial(() -> {
+        try {
+          Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+          mac.init(signingKey);
+          return mac;
+        } catch (GeneralSecurityException e) {
+          throw new IllegalStateException(e);
+        }
+      });
+    }
+  }
+
+  /**
+   * Builds the payload of a message event. Conversations and texts are used round-robin.
+   *
+   * @param sequence The sequence number of the event.
+   * @return The JSON payload.
+   */
+  byte[] message(long sequence) {
+    String conversationId = conversationIds[(int) (sequence % conversationIds.length)];
+    String text = texts[(int) (sequence % texts.length)];
+
+    return ("{"
+        + "\"agent\":\"brands/load-harness/agents/load-harness\","
+        + "\"conversationId\":\"" + conversationId + "\","
+        + "\"customAgentId\":\"load-harness\","
+        + "\"requestId\":\"" + UUID.randomUUID() + "\","
+        + "\"message\":{"
+        + "\"messageId\":\"" + UUID.randomUUID() + "\","
+        + "\"name\":\"conversations/" + conversationId + "/messages/" + sequence + "\","
+        + "\"text\":\"" + escape(text) + "\","
+        + "\"createTime\":\"2020-09-14T17:12:33.412Z\"},"
+        + "\"context\":{\"entryPoint\":\"PLACESHEET\",\"resolvedLocale\":\"en\"},"
+        + "\"sendTime\":\"2020-09-14T17:12:33.520Z\"}").getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Signs a payload as Google does in the X-Goog-Signature header.
+   *
+   * @param payload The payload.
+   * @return The base64 signature, or null if payloads are unsigned.
+   */
+  String sign(byte[] payload) {
+    if (macs == null) {
+      return null;
+    }
+
+    return Base64.getEncoder().encodeToString(macs.get().doFinal(payload));
+  }
+
+  private static String escape(String text) {
+    StringBuilder escaped = new StringBuilder(text.length());
+
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+
+      if (c == '"' || c == '\\') {
+        escaped.append('\\').append(c);
+      } else if (c < ' ') {
+        escaped.append(String.format("\\u%04x", (int) c));
+      } else {
+        escaped.append(c);
+      }
+    }
+
+    return escaped.toString();
+  }
+}
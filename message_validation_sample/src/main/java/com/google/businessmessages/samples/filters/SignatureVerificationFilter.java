@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.samples.filters;
+
+import com.google.common.io.BaseEncoding;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Filter that rejects webhook calls whose X-Goog-Signature does not match the request body.
+ *
+ * The raw body is read once into a buffer owned by the request thread while the HMAC-SHA512 of
+ * each chunk is computed, so the signature covers exactly the bytes Google sent. The signature is
+ * compared in constant time and only verified requests reach the servlet, which reads the same
+ * buffer without another copy.
+ *
+ * The partner key is read from the partnerKey init parameter in web.xml.
+ */
+public class SignatureVerificationFilter implements Filter {
+
+  private static final Logger logger =
+      Logger.getLogger(SignatureVerificationFilter.class.getName());
+
+  private static final String SIGNATURE_HEADER = "X-Goog-Signature";
+  private static final String HMAC_ALGORITHM = "HmacSHA512";
+
+  private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+  // Buffers larger than this are not kept for the next request on the thread
+  private static final int MAX_POOLED_BUFFER_SIZE = 256 * 1024;
+
+  // Webhook payloads larger than this are rejected without being read
+  private static final int MAX_BODY_SIZE = 1024 * 1024;
+
+  private static final ThreadLocal<byte[]> buffers =
+      ThreadLocal.withInitial(() -> new byte[INITIAL_BUFFER_SIZE]);
+
+  private ThreadLocal<Mac> macs;
+
+  @Override
+  public void init(FilterConfig filterConfig) throws ServletException {
+    String partnerKey = filterConfig.getInitParameter("partnerKey");
+
+    if (partnerKey == null || partnerKey.isEmpty()) {
+      throw new ServletException("The partnerKey init parameter is not set");
+    }
+
+    SecretKeySpec key =
+        new SecretKeySpec(partnerKey.getBytes(StandardCharsets.UTF_8), HMAC_ALGORITHM);
+
+    macs = ThreadLocal.withInitial(() -> {
+      try {
+        Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+        mac.init(key);
+        return mac;
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException(e);
+      }
+    });
+  }
+
+  @Override
+  public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse,
+      FilterChain chain) throws IOException, ServletException {
+    HttpServletRequest request = (HttpServletRequest) servletRequest;
+    HttpServletResponse response = (HttpServletResponse) servletResponse;
+
+    if (request.getContentLength() > MAX_BODY_SIZE) {
+      response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+      return;
+    }
+
+    byte[] expected = decodeSignature(request.getHeader(SIGNATURE_HEADER));
+
+    if (expected == null) {
+      logger.info("Missing or malformed signature, do not trust this message.");
+      response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+      return;
+    }
+
+    // Read the body and compute the signature as it arrives
+    Mac mac = macs.get();
+    byte[] buffer = buffers.get();
+    int length = 0;
+
+    // A previous request on this thread may have failed part way through its body
+    mac.reset();
+
+    try (InputStream in = request.getInputStream()) {
+      int read;
+
+      while ((read = in.read(buffer, length, buffer.length - length)) != -1) {
+        mac.update(buffer, length, read);
+        length += read;
+
+        if (length > MAX_BODY_SIZE) {
+          response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+          return;
+        }
+
+        if (length == buffer.length) {
+          buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+      }
+    }
+
+    if (buffer.length <= MAX_POOLED_BUFFER_SIZE) {
+      buffers.set(buffer);
+    }
+
+    if (!MessageDigest.isEqual(expected, mac.doFinal())) {
+      logger.info("Signature mismatch, do not trust this message.");
+      response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+      return;
+    }
+
+    chain.doFilter(new VerifiedRequest(request, buffer, length), response);
+  }
+
+  @Override
+  public void destroy() {
+  }
+
+  /**
+   * Decodes the base64 signature sent by Google.
+   *
+   * @param signature The value of the X-Goog-Signature header.
+   * @return The raw signature, or null if it is missing or malformed.
+   */
+  private static byte[] decodeSignature(String signature) {
+    if (signature == null) {
+      return null;
+    }
+
+    try {
+      return BaseEncoding.base64().decode(signature.trim());
+    } catch (IllegalArgumentException e) {
+      logger.log(Level.FINE, "Malformed signature", e);
+      return null;
+    }
+  }
+
+  /**
+   * Request whose body is served from the verified buffer.
+   */
+  private static final class VerifiedRequest extends HttpServletRequestWrapper {
+
+    private final byte[] body;
+    private final int length;
+
+    private VerifiedRequest(HttpServletRequest request, byte[] body, int length) {
+      super(request);
+      this.body = body;
+      this.length = length;
+    }
+
+    @Override
+    public int getContentLength() {
+      return length;
+    }
+
+    @Override
+    public long getContentLengthLong() {
+      return length;
+    }
+
+    @Override
+    public ServletInputStream getInputStream() {
+      ByteArrayInputStream in = new ByteArrayInputStream(body, 0, length);
+
+      return new ServletInputStream() {
+        @Override
+        public int read() {
+          return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+          return in.read(b, off, len);
+        }
+
+        @Override
+        public boolean isFinished() {
+          return in.available() == 0;
+        }
+
+        @Override
+        public boolean isReady() {
+          return true;
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+          if (readListener == null) {
+            throw new NullPointerException("readListener");
+          }
+
+          if (!isAsyncStarted()) {
+            throw new IllegalStateException("The request is not in asynchronous mode");
+          }
+
+          // The body is already buffered, so all of it is available right away
+          try {
+            if (!isFinished()) {
+              readListener.onDataAvailable();
+            }
+
+            readListener.onAllDataRead();
+          } catch (IOException | RuntimeException e) {
+            readListener.onError(e);
+          }
+        }
+      };
+    }
+
+    @Override
+    public BufferedReader getReader() {
+      return new BufferedReader(new InputStreamReader(getInputStream(), StandardCharsets.UTF_8));
+    }
+  }
+}
@@ -47,9 +47,6 @@ import com.google.communications.businessmessages.v1.MediaHeight;
 import com.google.communications.businessmessages.v1.RepresentativeType;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
-import com.google.protobuf.ByteString;
-import com.google.common.hash.Hashing;
-import com.google.common.io.BaseEncoding;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -57,7 +54,6 @@ import java.util.List;
 import java.util.UUID;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -117,32 +113,11 @@ public class AgentCallback extends HttpServlet {
     response.setContentType("application/json");
     response.setCharacterEncoding("UTF-8");
 
-    String jsonResponse = request.getReader().lines().collect(
-        Collectors.joining(System.lineSeparator())
-    );
-
-    // Calculate the signature to validate the message is from Google
-    byte[] source = ByteString.copyFromUtf8(jsonResponse).toByteArray();
-    String partnerKey = "YOUR_PARTNER_KEY";
-
-    // Grab the x-goog-signature from the request header
-    String googleSignature = request.getHeader("X-Goog-Signature");
-    String generatedSignature = generateHash(partnerKey.getBytes("UTF-8"), source);
-
-    logger.info("X-Goog-Signature: " + googleSignature);
-    logger.info("Generated signature: " + generatedSignature);
-
-    if (generatedSignature.equals(googleSignature)) {
-      logger.info("Signature match.");
-    } else {
-      logger.info("Signature mismatch, do not trust this message.");
-    }
-
-    logger.info(jsonResponse);
-
-    // load the JSON string into a Json parser
+    // The body has already been verified by the SignatureVerificationFilter, parse it in place
     JsonParser parser = new JsonParser();
-    JsonObject obj = parser.parse(jsonResponse).getAsJsonObject();
+    JsonObject obj = parser.parse(request.getReader()).getAsJsonObject();
+
+    logger.info(obj::toString);
 
     String conversationId = obj.get("conversationId").getAsString();
 
@@ -358,8 +333,12 @@ public class AgentCallback extends HttpServlet {
       request.setEventId(UUID.randomUUID().toString());
       request.execute();
 
-      logger.info("message id: " + message.getMessageId());
-      logger.info("message body: " + message.toPrettyString());
+      logger.info(() -> "message id: " + message.getMessageId());
+
+      // Pretty-printing re-serializes the whole message, only do it if it will be logged
+      if (logger.isLoggable(Level.INFO)) {
+        logger.info("message body: " + message.toPrettyString());
+      }
 
       // Send the message
       Businessmessages.Conversations.Messages.Create messageRequest
@@ -451,7 +430,8 @@ public class AgentCallback extends HttpServlet {
       // create instance of the BM API
       builder = new Businessmessages
           .Builder(httpTransport, jsonFactory, null)
-          .setApplicationName("Echo Bot");
+          .setApplicationName("Echo Bot")
+          .setRootUrl(System.getProperty("bm.api.rootUrl", Businessmessages.DEFAULT_ROOT_URL));
 
       // set the API credentials and endpoint
       builder.setHttpRequestInitializer(credential);
@@ -459,12 +439,5 @@ public class AgentCallback extends HttpServlet {
       logger.log(Level.SEVERE, EXCEPTION_WAS_THROWN, e);
     }
   }
-
-  /**
-   * Function to calculate hash for comparison against x-goog-signature
-   */
-  private static String generateHash(byte[] clientToken, byte[] data) {
-    return BaseEncoding.base64().encode(Hashing.hmacSha512(clientToken).hashBytes(data).asBytes());
-  }
 }
 // [END callback for receiving consumer messages]
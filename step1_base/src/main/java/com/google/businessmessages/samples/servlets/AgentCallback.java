@@ -237,7 +237,8 @@ public class AgentCallback extends HttpServlet {
       // create instance of the BM API
       builder = new Businessmessages
           .Builder(httpTransport, jsonFactory, null)
-          .setApplicationName("Echo Bot");
+          .setApplicationName("Echo Bot")
+          .setRootUrl(System.getProperty("bm.api.rootUrl", Businessmessages.DEFAULT_ROOT_URL));
 
       // set the API credentials and endpoint
       builder.setHttpRequestInitializer(credential);